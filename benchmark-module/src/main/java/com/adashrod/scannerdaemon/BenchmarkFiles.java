@@ -0,0 +1,37 @@
+package com.adashrod.scannerdaemon;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Temporary directories for benchmarks
+ */
+final class BenchmarkFiles {
+    private BenchmarkFiles() {}
+
+    static File createTempDir(final String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    static void deleteRecursively(final File dir) throws IOException {
+        if (dir == null || !dir.exists()) { return; }
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path subDir, final IOException ioe) throws IOException {
+                Files.delete(subDir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,121 @@
+package com.adashrod.scannerdaemon;
+
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole {@link Daemon} cycles with {@link MockEac3toScanner} as the demuxer, over a directory of {@link #items} entries,
+ * every fifth of which is a BD dir and the rest mkv files
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DaemonCycleBenchmark {
+    private static final byte[] EBML_HEADER = {0x1a, 0x45, (byte) 0xdf, (byte) 0xa3};
+
+    /**
+     * A daemon over a directory that has never been scanned, fresh for every invocation
+     */
+    @State(Scope.Thread)
+    public static class FreshDaemon {
+        @Param({"10", "100"})
+        public int items;
+
+        private File appDir;
+        private Daemon daemon;
+
+        @Setup(Level.Invocation)
+        public void setUp() throws IOException {
+            appDir = BenchmarkFiles.createTempDir("daemon-benchmark");
+            daemon = createDaemon(appDir, items);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException {
+            daemon.close();
+            BenchmarkFiles.deleteRecursively(appDir);
+        }
+    }
+
+    /**
+     * A daemon whose directory has already been scanned, so that each cycle is idle
+     */
+    @State(Scope.Thread)
+    public static class IdleDaemon {
+        @Param({"10", "100"})
+        public int items;
+
+        private File appDir;
+        private Daemon daemon;
+
+        @Setup
+        public void setUp() throws IOException, InterruptedException {
+            appDir = BenchmarkFiles.createTempDir("daemon-benchmark");
+            daemon = createDaemon(appDir, items);
+            daemon.runCycle(Collections.emptyList());
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            daemon.close();
+            BenchmarkFiles.deleteRecursively(appDir);
+        }
+    }
+
+    @Benchmark
+    public void fullScan(final FreshDaemon state) throws IOException, InterruptedException {
+        state.daemon.runCycle(Collections.emptyList());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void idleCycle(final IdleDaemon state) throws IOException, InterruptedException {
+        state.daemon.runCycle(Collections.emptyList());
+    }
+
+    private static Daemon createDaemon(final File appDir, final int items) throws IOException {
+        Logger.getRootLogger().setLevel(org.apache.log4j.Level.WARN);
+        final File dirToScan = new File(appDir, "scan");
+        dirToScan.mkdirs();
+        // just enough of each for SourceClassifier to recognize it
+        for (int i = 0; i < items; i++) {
+            if (i % 5 == 0) {
+                final File bdmv = new File(dirToScan, String.format("DISC_%03d/BDMV", i));
+                bdmv.mkdirs();
+                Files.write(new File(bdmv, "index.bdmv").toPath(), "INDX0200".getBytes(StandardCharsets.US_ASCII));
+            } else {
+                Files.write(new File(dirToScan, String.format("movie %03d.mkv", i)).toPath(), EBML_HEADER);
+            }
+        }
+        final Properties properties = new Properties();
+        properties.setProperty("eac3toExecutable", "mock");
+        properties.setProperty("dirToScan", dirToScan.getPath());
+        properties.setProperty("languages", "English");
+        properties.setProperty("sleepTimeMinutes", "1");
+        properties.setProperty("maxRetries", "4");
+        properties.setProperty("scanRecordFsync", "never");
+        return new Daemon(appDir.getPath(), properties);
+    }
+}
@@ -0,0 +1,56 @@
+package com.adashrod.scannerdaemon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing, formatting and ordering of single scan record lines
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogLineBenchmark {
+    private final String[] lines = {
+        "AWESOME_ACTION_FLICK|null|-1",
+        "AWESOME_ACTION_FLICK|3|2",
+        "AWESOME_ACTION_FLICK_ti3_tr2_und.mkv|null|-1",
+        "some movie (2009).mkv|null|-2"
+    };
+    private ScanRecord.LogLine[] logLines;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        logLines = new ScanRecord.LogLine[lines.length];
+        for (int i = 0; i < lines.length; i++) { logLines[i] = ScanRecord.LogLine.parseLine(lines[i]).getKey(); }
+    }
+
+    @Benchmark
+    public ScanRecord.LogLine parseLine() {
+        return ScanRecord.LogLine.parseLine(lines[next++ & 3]).getKey();
+    }
+
+    @Benchmark
+    public String writeLine() {
+        return ScanRecord.LogLine.writeLine(logLines[next++ & 3], -1);
+    }
+
+    @Benchmark
+    public int compareTo() {
+        final int i = next++;
+        return logLines[i & 3].compareTo(logLines[(i + 1) & 3]);
+    }
+}
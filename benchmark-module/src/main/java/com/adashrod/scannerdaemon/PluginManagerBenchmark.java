@@ -0,0 +1,143 @@
+package com.adashrod.scannerdaemon;
+
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+/**
+ * {@link PluginManager#addPluginsFromJars(File...)} over a synthetic plugins directory: one plugin jar declaring
+ * {@link BenchmarkPlugin}, plus {@link #dependencyJars} copies of the log4j jar, which has a couple hundred classes and
+ * no plugins.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PluginManagerBenchmark {
+    @Param({"1", "10"})
+    public int dependencyJars;
+
+    private File dir;
+    private File[] jars;
+    private PluginManager warmManager;
+    private PluginManager coldManager;
+    private File coldCacheDir;
+
+    /**
+     * A plugin that does nothing
+     */
+    public static class BenchmarkPlugin extends Plugin {
+        @Override
+        public void onLoad(final PluginApi pluginApi) {}
+
+        @Override
+        public void afterScan(final File scannedFile, final Collection<File> generatedFiles) {}
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        Logger.getRootLogger().setLevel(org.apache.log4j.Level.WARN);
+        dir = BenchmarkFiles.createTempDir("plugin-benchmark");
+        final File pluginsDir = new File(dir, "plugins");
+        pluginsDir.mkdirs();
+        jars = new File[dependencyJars + 1];
+        jars[0] = new File(pluginsDir, "BenchmarkPlugin.jar");
+        writePluginJar(jars[0]);
+        final File log4jJar = new File(Logger.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        for (int i = 1; i <= dependencyJars; i++) {
+            jars[i] = new File(pluginsDir, String.format("dependency-%d.jar", i));
+            copyJar(log4jJar, jars[i]);
+        }
+        warmManager = new PluginManager(new PluginApi(null), new PluginEventBus(10, 0), new File(dir, "warm-cache"));
+        warmManager.addPluginsFromJars(jars);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        warmManager.addPluginsFromJars();
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpColdManager() throws IOException {
+        coldCacheDir = BenchmarkFiles.createTempDir("plugin-benchmark-cache");
+        coldManager = new PluginManager(new PluginApi(null), new PluginEventBus(10, 0), coldCacheDir);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownColdManager() throws IOException {
+        // unloads everything so that class loaders don't pile up
+        coldManager.addPluginsFromJars();
+        BenchmarkFiles.deleteRecursively(coldCacheDir);
+    }
+
+    /**
+     * First load with nothing cached, as at startup after the cache was deleted
+     */
+    @Benchmark
+    public Map<String, Throwable> coldStart() {
+        return coldManager.addPluginsFromJars(jars);
+    }
+
+    /**
+     * What every cycle does when no jar changed
+     */
+    @Benchmark
+    public Map<String, Throwable> unchanged() {
+        return warmManager.addPluginsFromJars(jars);
+    }
+
+    private static void writePluginJar(final File jar) throws IOException {
+        final String classEntry = BenchmarkPlugin.class.getName().replace('.', '/') + ".class";
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+             InputStream classBytes = BenchmarkPlugin.class.getClassLoader().getResourceAsStream(classEntry)) {
+            out.putNextEntry(new JarEntry(classEntry));
+            copy(classBytes, out);
+            out.putNextEntry(new JarEntry("META-INF/services/" + Plugin.class.getName()));
+            out.write((BenchmarkPlugin.class.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void copyJar(final File source, final File target) throws IOException {
+        try (JarFile in = new JarFile(source); JarOutputStream out = new JarOutputStream(new FileOutputStream(target))) {
+            final Enumeration<JarEntry> entries = in.entries();
+            while (entries.hasMoreElements()) {
+                final JarEntry entry = entries.nextElement();
+                out.putNextEntry(new JarEntry(entry.getName()));
+                try (InputStream entryStream = in.getInputStream(entry)) { copy(entryStream, out); }
+            }
+        }
+    }
+
+    private static void copy(final InputStream in, final JarOutputStream out) throws IOException {
+        final byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) { out.write(buffer, 0, n); }
+    }
+}
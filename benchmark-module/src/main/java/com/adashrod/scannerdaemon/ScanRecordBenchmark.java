@@ -0,0 +1,103 @@
+package com.adashrod.scannerdaemon;
+
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups, journaled writes and reloads of a scan record holding {@link #entries} entries. The record is built once per
+ * trial; every entry is a success for a different file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanRecordBenchmark {
+    private static final int KEYS = 1024;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int entries;
+
+    @Param({"TEXT", "BINARY"})
+    public ScanRecord.Format format;
+
+    private File dir;
+    private File recordFile;
+    private ScanRecord scanRecord;
+    private final String[] hits = new String[KEYS];
+    private final String[] misses = new String[KEYS];
+    private int next;
+    private long stamp;
+
+    @Setup
+    public void setUp() throws IOException {
+        Logger.getRootLogger().setLevel(org.apache.log4j.Level.WARN);
+        dir = BenchmarkFiles.createTempDir("scan-record-benchmark");
+        recordFile = new File(dir, "scanRecord." + format.getExtension());
+        final ScanRecord builder = new ScanRecord(recordFile, 4, ScanRecordJournal.FsyncPolicy.NEVER, format);
+        for (int i = 0; i < entries; i++) { builder.addSuccess(String.format("movie %07d.mkv", i)); }
+        builder.writeToFile();
+        builder.close();
+
+        scanRecord = new ScanRecord(recordFile, 4, ScanRecordJournal.FsyncPolicy.NEVER, format);
+        for (int i = 0; i < KEYS; i++) {
+            hits[i] = String.format("movie %07d.mkv", (int) ((long) i * entries / KEYS));
+            misses[i] = String.format("movie %07d.m2ts", i);
+        }
+        stamp = recordFile.lastModified();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        scanRecord.close();
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean lookupHit() {
+        return scanRecord.containsSuccess(hits[next++ & (KEYS - 1)], null);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean lookupMiss() {
+        return scanRecord.containsSuccess(misses[next++ & (KEYS - 1)], null);
+    }
+
+    /**
+     * One failure journaled and committed, without fsync. Compactions triggered by the growing journal run in the
+     * background as they would in the daemon.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void addAndWriteToFile() {
+        scanRecord.addFailure(misses[next++ & (KEYS - 1)]);
+        scanRecord.writeToFile();
+    }
+
+    /**
+     * A full reload, forced by changing the file's modification time the way an edit by hand would
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public boolean reload() throws IOException {
+        recordFile.setLastModified(stamp += 1000);
+        return scanRecord.reload();
+    }
+}
@@ -0,0 +1,108 @@
+package com.adashrod.scannerdaemon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ScanRecordIndex} against the TreeMap&lt;LogLine, Integer&gt; that {@link ScanRecord} used to keep its entries
+ * in: random lookups of entries that are there, and the memory each structure retains for {@link #entries} entries,
+ * {@link #TITLES} titles per filename. The memory is measured once per trial, after a GC, leaving out the filename
+ * strings, which both structures share, and printed with the trial's output.
+ *
+ * The sizes in the defaults run with JMH's default heap; e.g. -p entries=5000000 needs -jvmArgs -Xmx2g.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanRecordIndexBenchmark {
+    private static final int TITLES = 5;
+    private static final int KEYS = 1 << 16;
+
+    public enum Structure {
+        TREE_MAP,
+        INDEX
+    }
+
+    @Param({"100000", "1000000"})
+    public int entries;
+
+    @Param({"TREE_MAP", "INDEX"})
+    public Structure structure;
+
+    private String[] filenames;
+    private Map<ScanRecord.LogLine, Integer> treeMap;
+    private ScanRecordIndex index;
+    private final String[] lookupNames = new String[KEYS];
+    private final Integer[] lookupTitles = new Integer[KEYS];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        filenames = new String[entries / TITLES];
+        for (int i = 0; i < filenames.length; i++) { filenames[i] = String.format("DISC %07d", i); }
+        final long before = usedMemory();
+        if (structure == Structure.TREE_MAP) {
+            treeMap = new TreeMap<>();
+            for (final String filename: filenames) {
+                for (int title = 1; title <= TITLES; title++) { treeMap.put(new ScanRecord.LogLine(filename, title), -1); }
+            }
+        } else {
+            index = new ScanRecordIndex();
+            for (final String filename: filenames) {
+                for (int title = 1; title <= TITLES; title++) { index.put(filename, title, -1); }
+            }
+        }
+        System.out.printf("%n%s with %d entries retains %.1f MB%n", structure, entries, (usedMemory() - before) / 1048576.0);
+
+        // copies, the way lookups get filenames from File.getName() rather than the record's own strings
+        final Random random = new Random(42);
+        for (int i = 0; i < KEYS; i++) {
+            lookupNames[i] = new String(filenames[random.nextInt(filenames.length)]);
+            lookupTitles[i] = 1 + random.nextInt(TITLES);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        treeMap = null;
+        index = null;
+    }
+
+    @Benchmark
+    public int lookupHit() {
+        final int i = next++ & (KEYS - 1);
+        if (structure == Structure.TREE_MAP) {
+            return treeMap.get(new ScanRecord.LogLine(lookupNames[i], lookupTitles[i]));
+        }
+        return index.get(lookupNames[i], lookupTitles[i]);
+    }
+
+    private static long usedMemory() {
+        final Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // a few rounds, since one System.gc() doesn't always collect everything
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
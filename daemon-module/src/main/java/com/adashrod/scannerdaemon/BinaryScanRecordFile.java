@@ -0,0 +1,252 @@
+package com.adashrod.scannerdaemon;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A read-only scan record file in the binary format, read through a {@link MappedByteBuffer}. Opening one only reads
+ * the header; lookups hash straight into the mapped file without parsing or allocating anything.
+ *
+ * Layout (all ints big-endian):
+ * <pre>
+ * header          magic "BRSR", u16 version, u16 reserved, then int stringCount, entryCount, stringIndexOffset,
+ *                 hashTableOffset, hashTableSlots, entriesOffset, stringDataOffset
+ * string index    stringCount + 1 records of (int offset into string data, int index of first entry); the extra record
+ *                 marks the end of the last string and its entries
+ * hash table      hashTableSlots ints, each 0 or a string id + 1, keyed by String.hashCode of the filename
+ * entries         entryCount records of (int string id, int title number or -1, int attempts)
+ * string data     UTF-8 filenames, back to back
+ * </pre>
+ * Strings are sorted, so string ids are in filename order, and entries are sorted by string id, then title number with
+ * no title first. That's the same order as the text format.
+ */
+class BinaryScanRecordFile {
+    private static final int MAGIC = 0x42525352; // "BRSR"
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+    private static final int ENTRY_SIZE = 12;
+    private static final int NO_TITLE = -1;
+
+    private final MappedByteBuffer buffer;
+    private final int stringCount, entryCount;
+    private final int stringIndexOffset, hashTableOffset, hashTableMask, entriesOffset, stringDataOffset;
+
+    private BinaryScanRecordFile(final MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a binary scan record file");
+        }
+        if (buffer.getShort(4) != VERSION) {
+            throw new IOException(String.format("unsupported binary scan record version %d", buffer.getShort(4)));
+        }
+        stringCount = buffer.getInt(8);
+        entryCount = buffer.getInt(12);
+        stringIndexOffset = buffer.getInt(16);
+        hashTableOffset = buffer.getInt(20);
+        hashTableMask = buffer.getInt(24) - 1;
+        entriesOffset = buffer.getInt(28);
+        stringDataOffset = buffer.getInt(32);
+    }
+
+    /**
+     * Maps a binary scan record file
+     * @param file an existing file written by {@link Writer}
+     * @return the mapped file
+     * @throws IOException if the file can't be mapped or isn't a supported binary scan record file
+     */
+    static BinaryScanRecordFile open(final File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new BinaryScanRecordFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    int size() {
+        return entryCount;
+    }
+
+    /**
+     * @param filename    name of the file or BD dir
+     * @param titleNumber title number, or null for BD dirs and files
+     * @return the recorded attempts, or {@link ScanRecordIndex#ABSENT}
+     */
+    int get(final String filename, final Integer titleNumber) {
+        final int id = findString(filename);
+        if (id == -1) { return ScanRecordIndex.ABSENT; }
+        final int title = titleNumber != null ? titleNumber : NO_TITLE;
+        final int end = firstEntry(id + 1);
+        for (int entry = firstEntry(id); entry < end; entry++) {
+            final int position = entriesOffset + entry * ENTRY_SIZE;
+            if (buffer.getInt(position + 4) == title) {
+                return buffer.getInt(position + 8);
+            }
+        }
+        return ScanRecordIndex.ABSENT;
+    }
+
+    /**
+     * Visits every entry in file order, which is sorted by filename, then title number with null first
+     */
+    void forEachSorted(final ScanRecordIndex.EntryConsumer consumer) {
+        for (int id = 0; id < stringCount; id++) {
+            final String filename = readString(id);
+            final int end = firstEntry(id + 1);
+            for (int entry = firstEntry(id); entry < end; entry++) {
+                final int position = entriesOffset + entry * ENTRY_SIZE;
+                final int title = buffer.getInt(position + 4);
+                consumer.accept(filename, title == NO_TITLE ? null : title, buffer.getInt(position + 8));
+            }
+        }
+    }
+
+    private int stringOffset(final int id) {
+        return stringDataOffset + buffer.getInt(stringIndexOffset + id * 8);
+    }
+
+    private int firstEntry(final int id) {
+        return buffer.getInt(stringIndexOffset + id * 8 + 4);
+    }
+
+    private String readString(final int id) {
+        final byte[] bytes = new byte[stringOffset(id + 1) - stringOffset(id)];
+        final ByteBuffer view = buffer.duplicate();
+        view.position(stringOffset(id));
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int findString(final String filename) {
+        for (int slot = mix(filename.hashCode()) & hashTableMask; ; slot = (slot + 1) & hashTableMask) {
+            final int idPlusOne = buffer.getInt(hashTableOffset + slot * 4);
+            if (idPlusOne == 0) { return -1; }
+            if (stringEquals(idPlusOne - 1, filename)) { return idPlusOne - 1; }
+        }
+    }
+
+    /**
+     * Compares a UTF-8 string in the file to a Java string by decoding one code point at a time, so that lookups don't
+     * need to build a String or byte array
+     */
+    private boolean stringEquals(final int id, final String filename) {
+        final int end = stringOffset(id + 1);
+        final int length = filename.length();
+        int position = stringOffset(id), i = 0;
+        while (position < end) {
+            if (i >= length) { return false; }
+            final int b = buffer.get(position) & 0xff;
+            final int codePoint;
+            if (b < 0x80) {
+                codePoint = b;
+                position += 1;
+            } else if (b < 0xe0) {
+                codePoint = (b & 0x1f) << 6 | buffer.get(position + 1) & 0x3f;
+                position += 2;
+            } else if (b < 0xf0) {
+                codePoint = (b & 0x0f) << 12 | (buffer.get(position + 1) & 0x3f) << 6 | buffer.get(position + 2) & 0x3f;
+                position += 3;
+            } else {
+                codePoint = (b & 0x07) << 18 | (buffer.get(position + 1) & 0x3f) << 12 |
+                    (buffer.get(position + 2) & 0x3f) << 6 | buffer.get(position + 3) & 0x3f;
+                position += 4;
+            }
+            final int expected = filename.codePointAt(i);
+            if (codePoint != expected) { return false; }
+            i += Character.charCount(expected);
+        }
+        return i == length;
+    }
+
+    private static int mix(final int hash) {
+        final int h = hash * 0x9e3779b9;
+        return h ^ h >>> 16;
+    }
+
+    /**
+     * Collects entries, which must arrive sorted by filename and then title number with null first (e.g. from
+     * {@link ScanRecordIndex#forEachSorted(ScanRecordIndex.EntryConsumer)}), and writes them as a binary scan record
+     * file.
+     */
+    static class Writer implements ScanRecordIndex.EntryConsumer {
+        private final ByteArrayOutputStream stringData = new ByteArrayOutputStream();
+        private int[] stringIndex = new int[64];
+        private int[] stringHashes = new int[32];
+        private int stringCount;
+        private int[] entries = new int[96];
+        private int entryCount;
+        private String lastFilename;
+
+        @Override
+        public void accept(final String filename, final Integer titleNumber, final int attempts) {
+            if (!filename.equals(lastFilename)) {
+                if (stringCount * 2 + 2 > stringIndex.length) {
+                    stringIndex = Arrays.copyOf(stringIndex, stringIndex.length * 2);
+                    stringHashes = Arrays.copyOf(stringHashes, stringHashes.length * 2);
+                }
+                stringIndex[stringCount * 2] = stringData.size();
+                stringIndex[stringCount * 2 + 1] = entryCount;
+                stringHashes[stringCount] = filename.hashCode();
+                final byte[] bytes = filename.getBytes(StandardCharsets.UTF_8);
+                stringData.write(bytes, 0, bytes.length);
+                stringCount++;
+                lastFilename = filename;
+            }
+            if (entryCount * 3 + 3 > entries.length) { entries = Arrays.copyOf(entries, entries.length * 2); }
+            entries[entryCount * 3] = stringCount - 1;
+            entries[entryCount * 3 + 1] = titleNumber != null ? titleNumber : NO_TITLE;
+            entries[entryCount * 3 + 2] = attempts;
+            entryCount++;
+        }
+
+        /**
+         * Writes everything collected so far and forces it to the device
+         * @param file where to write; replaced if it exists
+         * @throws IOException if writing fails
+         */
+        void writeTo(final File file) throws IOException {
+            int hashTableSlots = 16;
+            while (hashTableSlots < stringCount * 2) { hashTableSlots *= 2; }
+            final int[] hashTable = new int[hashTableSlots];
+            for (int id = 0; id < stringCount; id++) {
+                int slot = mix(stringHashes[id]) & (hashTableSlots - 1);
+                while (hashTable[slot] != 0) { slot = (slot + 1) & (hashTableSlots - 1); }
+                hashTable[slot] = id + 1;
+            }
+            final int stringIndexOffset = HEADER_SIZE;
+            final int hashTableOffset = stringIndexOffset + (stringCount + 1) * 8;
+            final int entriesOffset = hashTableOffset + hashTableSlots * 4;
+            final int stringDataOffset = entriesOffset + entryCount * ENTRY_SIZE;
+
+            try (FileOutputStream fileStream = new FileOutputStream(file, false);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+                out.writeShort(0);
+                out.writeInt(stringCount);
+                out.writeInt(entryCount);
+                out.writeInt(stringIndexOffset);
+                out.writeInt(hashTableOffset);
+                out.writeInt(hashTableSlots);
+                out.writeInt(entriesOffset);
+                out.writeInt(stringDataOffset);
+                out.writeInt(0);
+                for (int i = 0; i < stringCount * 2; i++) { out.writeInt(stringIndex[i]); }
+                out.writeInt(stringData.size());
+                out.writeInt(entryCount);
+                for (final int slot: hashTable) { out.writeInt(slot); }
+                for (int i = 0; i < entryCount * 3; i++) { out.writeInt(entries[i]); }
+                stringData.writeTo(out);
+                out.flush();
+                fileStream.getChannel().force(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.adashrod.scannerdaemon;
+
+import com.adashrod.mkvscanner.DemuxerException;
+import com.adashrod.mkvscanner.FileScanner;
+import com.adashrod.mkvscanner.model.Iso639Language;
+import com.adashrod.mkvscanner.model.Video;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * A FileScanner that remembers what it learned about BD dirs so that the demuxer doesn't have to read the disc again.
+ * The title numbers from {@link #scanBluRayDir(File)} and the models from {@link #scanAndParseBluRayTitle(File, int)}
+ * are cached by a fingerprint of the names, sizes and modification times of the files in BDMV/PLAYLIST and
+ * BDMV/CLIPINF, and the wrapped scanner is only called again when the fingerprint changes. Failures aren't cached.
+ *
+ * Title numbers are persisted in cache/blurayTitles.txt, which new BD dirs are appended to and which is rewritten with
+ * just the entries still in memory once it has grown to twice that many lines. Title models are persisted in
+ * cache/videos if the model class is Serializable. Only the most recently used {@link #MAX_TITLE_ENTRIES} title lists
+ * and {@link #MAX_VIDEO_ENTRIES} models are kept in memory; a model that isn't persisted is scanned again once it's
+ * been dropped. Everything else is passed straight through.
+ */
+class CachingFileScanner implements FileScanner {
+    private static final int MAX_TITLE_ENTRIES = 1000;
+    private static final int MAX_VIDEO_ENTRIES = 100;
+
+    private final Logger logger = Logger.getLogger(CachingFileScanner.class);
+
+    private final FileScanner fileScanner;
+    private final File titlesFile;
+    private final File videosDir;
+    /**
+     * fingerprint -> title numbers
+     */
+    private final Map<String, Set<Integer>> titles = new LruMap<>(MAX_TITLE_ENTRIES);
+    /**
+     * fingerprint-titleNumber -> model
+     */
+    private final Map<String, Video> videos = new LruMap<>(MAX_VIDEO_ENTRIES);
+    /**
+     * held while writing titlesFile, so that the locks on the maps aren't held during I/O
+     */
+    private final Object titlesFileLock = new Object();
+    /**
+     * how many lines titlesFile has; guarded by titlesFileLock
+     */
+    private int titlesFileLines;
+
+    /**
+     * @param fileScanner the scanner that does the actual work
+     * @param cacheDir    where the caches are persisted
+     */
+    CachingFileScanner(final FileScanner fileScanner, final File cacheDir) {
+        this.fileScanner = fileScanner;
+        titlesFile = new File(cacheDir, "blurayTitles.txt");
+        videosDir = new File(cacheDir, "videos");
+        loadTitles();
+    }
+
+    @Override
+    public String exec(final File file, final String... args) throws DemuxerException, IOException {
+        return fileScanner.exec(file, args);
+    }
+
+    @Override
+    public Video scanAndParseFile(final File file) throws DemuxerException, IOException {
+        return fileScanner.scanAndParseFile(file);
+    }
+
+    @Override
+    public Set<Integer> scanBluRayDir(final File bluRayDir) throws DemuxerException, IOException {
+        final String fingerprint = fingerprint(bluRayDir);
+        if (fingerprint != null) {
+            synchronized (titles) {
+                final Set<Integer> cached = titles.get(fingerprint);
+                if (cached != null) { return new HashSet<>(cached); }
+            }
+        }
+        final Set<Integer> titleNumbers = fileScanner.scanBluRayDir(bluRayDir);
+        if (fingerprint != null) {
+            final Set<Integer> cached = new HashSet<>(titleNumbers);
+            synchronized (titles) {
+                titles.put(fingerprint, cached);
+            }
+            saveTitles(fingerprint, cached);
+        }
+        return titleNumbers;
+    }
+
+    @Override
+    public Video scanAndParseBluRayTitle(final File bluRayDir, final int titleNumber) throws DemuxerException, IOException {
+        final String fingerprint = fingerprint(bluRayDir);
+        if (fingerprint == null) { return fileScanner.scanAndParseBluRayTitle(bluRayDir, titleNumber); }
+        final String key = fingerprint + "-" + titleNumber;
+        Video cached;
+        synchronized (videos) {
+            cached = videos.get(key);
+        }
+        if (cached == null) { cached = loadVideo(key); }
+        if (cached != null) {
+            synchronized (videos) {
+                videos.put(key, cached);
+            }
+            return cached;
+        }
+        final Video video = fileScanner.scanAndParseBluRayTitle(bluRayDir, titleNumber);
+        synchronized (videos) {
+            videos.put(key, video);
+        }
+        saveVideo(key, video);
+        return video;
+    }
+
+    @Override
+    public Collection<String> demuxBluRayTitleByTracks(final File bluRayDir, final int titleNumber, final Collection<Integer> tracks)
+            throws DemuxerException, IOException {
+        return fileScanner.demuxBluRayTitleByTracks(bluRayDir, titleNumber, tracks);
+    }
+
+    @Override
+    public Collection<String> demuxBluRayTitleByLanguages(final File bluRayDir, final int titleNumber,
+            final Collection<Iso639Language> languages) throws DemuxerException, IOException {
+        return fileScanner.demuxBluRayTitleByLanguages(bluRayDir, titleNumber, languages);
+    }
+
+    @Override
+    public Collection<String> demuxFileByTracks(final File file, final Collection<Integer> tracks) throws DemuxerException, IOException {
+        return fileScanner.demuxFileByTracks(file, tracks);
+    }
+
+    @Override
+    public Collection<String> demuxFileByLanguages(final File file, final Collection<Iso639Language> languages)
+            throws DemuxerException, IOException {
+        return fileScanner.demuxFileByLanguages(file, languages);
+    }
+
+    /**
+     * Fingerprints a BD dir by the names, sizes and modification times of its playlist and clip info files. Those
+     * describe the titles, and are small enough to list without reading the disc's streams.
+     * @param bluRayDir the directory containing the BD
+     * @return a hex digest, or null if the directory has no BDMV/PLAYLIST directory
+     */
+    static String fingerprint(final File bluRayDir) {
+        final File[] playlists = new File(bluRayDir, "BDMV" + File.separator + "PLAYLIST").listFiles();
+        if (playlists == null) { return null; }
+        final File[] clipInfos = new File(bluRayDir, "BDMV" + File.separator + "CLIPINF").listFiles();
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException nsae) {
+            // every Java platform is required to support SHA-1
+            throw new IllegalStateException(nsae);
+        }
+        for (final File[] files: Arrays.asList(playlists, clipInfos != null ? clipInfos : new File[0])) {
+            Arrays.sort(files, Comparator.comparing(File::getName));
+            for (final File file: files) {
+                digest.update(String.format("%s|%d|%d\n", file.getName(), file.length(), file.lastModified())
+                    .getBytes(StandardCharsets.UTF_8));
+            }
+            digest.update((byte) 0);
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b: digest.digest()) { hex.append(String.format("%02x", b)); }
+        return hex.toString();
+    }
+
+    private void loadTitles() {
+        if (!titlesFile.exists()) { return; }
+        try (BufferedReader reader = new BufferedReader(new FileReader(titlesFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                titlesFileLines++;
+                final String[] parts = line.split("\t", -1);
+                if (parts.length != 2) { continue; }
+                try {
+                    // later lines are newer, so the oldest are the ones that don't fit
+                    titles.put(parts[0], parts[1].isEmpty() ? new HashSet<>() : Arrays.stream(parts[1].split(","))
+                        .map(Integer::valueOf)
+                        .collect(Collectors.toSet()));
+                } catch (final NumberFormatException ignored) {
+                    // e.g. cut short by a crash while it was being appended
+                }
+            }
+        } catch (final IOException ioe) {
+            logger.warn(String.format("Ignoring unreadable BD title cache %s: %s", titlesFile, ioe));
+            titles.clear();
+        }
+    }
+
+    /**
+     * Appends a BD dir's titles to titlesFile, or rewrites it with the entries in memory if it has gotten too long
+     */
+    private void saveTitles(final String fingerprint, final Set<Integer> titleNumbers) {
+        titlesFile.getAbsoluteFile().getParentFile().mkdirs();
+        synchronized (titlesFileLock) {
+            try {
+                if (titlesFileLines < 2 * MAX_TITLE_ENTRIES) {
+                    try (Writer writer = new OutputStreamWriter(new FileOutputStream(titlesFile, true), StandardCharsets.UTF_8)) {
+                        writer.write(titlesLine(fingerprint, titleNumbers));
+                    }
+                    titlesFileLines++;
+                    return;
+                }
+                final Map<String, Set<Integer>> snapshot;
+                synchronized (titles) {
+                    snapshot = new LinkedHashMap<>(titles);
+                }
+                final File tempFile = new File(titlesFile.getPath() + ".tmp");
+                try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile, false), StandardCharsets.UTF_8))) {
+                    for (final Map.Entry<String, Set<Integer>> entry: snapshot.entrySet()) {
+                        writer.write(titlesLine(entry.getKey(), entry.getValue()));
+                    }
+                }
+                Files.move(tempFile.toPath(), titlesFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                titlesFileLines = snapshot.size();
+            } catch (final IOException ioe) {
+                logger.warn(String.format("Failed to write BD title cache %s: %s", titlesFile, ioe.getMessage()));
+            }
+        }
+    }
+
+    private static String titlesLine(final String fingerprint, final Set<Integer> titleNumbers) {
+        return String.format("%s\t%s\n", fingerprint, titleNumbers.stream()
+            .sorted()
+            .map(String::valueOf)
+            .collect(Collectors.joining(",")));
+    }
+
+    private Video loadVideo(final String key) {
+        final File videoFile = new File(videosDir, key + ".ser");
+        if (!videoFile.exists()) { return null; }
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(videoFile))) {
+            return (Video) in.readObject();
+        } catch (final IOException | ClassNotFoundException | ClassCastException e) {
+            // e.g. written by an incompatible version of the model classes
+            logger.warn(String.format("Ignoring unreadable cached title %s: %s", videoFile, e));
+            videoFile.delete();
+            return null;
+        }
+    }
+
+    private void saveVideo(final String key, final Video video) {
+        if (!(video instanceof Serializable)) { return; }
+        final File videoFile = new File(videosDir, key + ".ser");
+        videosDir.mkdirs();
+        File tempFile = null;
+        try {
+            // unique, in case another worker is saving the same title
+            tempFile = Files.createTempFile(videosDir.toPath(), key, ".ser.tmp").toFile();
+            try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(tempFile, false))) {
+                out.writeObject(video);
+            }
+            Files.move(tempFile.toPath(), videoFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException ioe) {
+            // not every part of the model has to be serializable; keep it in memory only
+            logger.debug(String.format("Not persisting title %s: %s", key, ioe));
+            if (tempFile != null) { tempFile.delete(); }
+        }
+    }
+
+    /**
+     * Drops the least recently used entry once there are more than maxEntries
+     */
+    private static class LruMap<V> extends LinkedHashMap<String, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+
+        LruMap(final int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, V> eldest) {
+            return size() > maxEntries;
+        }
+    }
+}
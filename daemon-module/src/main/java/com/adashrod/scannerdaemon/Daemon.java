@@ -8,22 +8,44 @@ import com.adashrod.mkvscanner.FormatConversionException;
 import com.adashrod.mkvscanner.NotBluRayDirectoryException;
 import com.adashrod.mkvscanner.UnreadableFileException;
 import com.adashrod.mkvscanner.model.Iso639Language;
+import com.adashrod.scannerdaemon.jfr.BluRayScanEvent;
+import com.adashrod.scannerdaemon.jfr.CycleEvent;
+import com.adashrod.scannerdaemon.jfr.FileDemuxEvent;
+import com.adashrod.scannerdaemon.jfr.FlightRecording;
+import com.adashrod.scannerdaemon.jfr.Outcome;
+import com.adashrod.scannerdaemon.jfr.TitleDemuxEvent;
+import jdk.jfr.Recording;
 import org.apache.log4j.Logger;
 
+import javax.management.ObjectName;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -32,6 +54,16 @@ import java.util.stream.Collectors;
  * separate audio, video, and subtitle files.
  */
 public class Daemon {
+    /**
+     * how many of the last lines of the demuxer's output go into error messages
+     */
+    private static final int DEMUXER_OUTPUT_LINES = 20;
+    /**
+     * where the daemons of a cluster keep their leases, in the directory being scanned
+     */
+    private static final String LEASE_DIR_NAME = ".leases";
+    private static final String SCAN_RECORD_NAME = "scanRecord";
+
     private final Logger logger = Logger.getLogger(Daemon.class);
 
     /**
@@ -39,19 +71,60 @@ public class Daemon {
      */
     private final String appDir;
     private FileScanner fileScanner;
+    private SupervisingFileScanner supervisingScanner;
+    private ObjectName scannerName;
     private File dirToScan;
+    /**
+     * where demuxed tracks are written; dirToScan unless configured otherwise
+     */
+    private File outputDir;
+    private OutputSpace outputSpace;
+    private final OutputSizeEstimator outputSizeEstimator = new OutputSizeEstimator();
+    private TitleListing titleListing;
+    private SourceFingerprints sourceFingerprints;
+    private long minTitleSeconds;
+    private long minTitleBytes;
+    private int maxTitles;
+    private boolean classifySources;
     private final Collection<Iso639Language> languages = new HashSet<>();
-    private final String scanRecordName = "scanRecord.txt";
     private ScanRecord scanRecord;
-    private File scanRecordFile;
+    /**
+     * closes the scan record if the JVM exits without {@link #close()}
+     */
+    private Thread scanRecordShutdownHook;
+    /**
+     * null unless this daemon shares dirToScan with others
+     */
+    private WorkLeases workLeases;
     private long sleepTimeMs;
     private int maxRetries;
+    private int demuxWorkers;
+    private ExecutorService demuxExecutor;
+    private DirectoryWatcher directoryWatcher;
+    private DirectorySnapshot directorySnapshot;
+    /**
+     * how deep in dirToScan entries are looked for, 1 for only its direct children
+     */
+    private int scanDepth;
+    private DemuxCheckpoints checkpoints;
+    private JobScheduler jobScheduler;
+    private ObjectName jobSchedulerName;
     private PluginManager pluginManager;
+    private PluginEventBus pluginEventBus;
+    private DaemonMetrics metrics;
+    private Recording flightRecording;
+    /**
+     * held for as long as the daemon runs, so that a second daemon started with the same appDir can't recover, or
+     * delete, the outputs of demuxes the first one is still doing
+     */
+    private FileLock appDirLock;
 
     public Daemon() {
         appDir = findAppDir();
         try {
-            loadProperties();
+            final Properties properties = new Properties();
+            properties.load(new FileReader(new File(appDir + "/daemon.properties")));
+            loadProperties(properties);
         } catch (final FileNotFoundException fnf) {
             logger.fatal("Properties file not found.");
             final InputStream sampleStream = getClass().getResourceAsStream("/daemon.properties.sample");
@@ -76,136 +149,617 @@ public class Daemon {
         }
     }
 
+    /**
+     * Creates a daemon from properties rather than from daemon.properties, e.g. for benchmarks
+     * @param appDir     where plugins and caches are
+     * @param properties the same properties as in daemon.properties
+     * @throws IOException if the scan record can't be loaded
+     */
+    Daemon(final String appDir, final Properties properties) throws IOException {
+        this.appDir = appDir;
+        loadProperties(properties);
+    }
+
     public void start() {
         logger.info("starting daemon");
-        final File pluginsDir = new File(appDir + "/plugins");
+        try {
+            appDirLock = lockAppDir();
+        } catch (final IOException ioe) {
+            logger.fatal(String.format("Failed to lock %s", appDir), ioe);
+            System.exit(-1);
+        }
+        if (appDirLock == null) {
+            logger.fatal(String.format("Another daemon is already running with %s", appDir));
+            System.exit(1);
+        }
+        // another daemon might have taken over what this one was doing when it stopped
+        checkpoints.recover((final String item) -> workLeases != null && workLeases.holderElsewhere(item) != null);
+        if (directoryWatcher != null) {
+            try {
+                directoryWatcher.start();
+            } catch (final IOException ioe) {
+                logger.error(String.format("Failed to watch %s, falling back to periodic scans only", dirToScan), ioe);
+                directoryWatcher = null;
+            }
+        }
+        // entries reported by the directory watcher; when empty, the next pass is a full sweep of dirToScan
+        List<File> settledFiles = new ArrayList<>();
+        long nextSweepMs = 0;
+        while (true) {
+            final boolean fullSweep = settledFiles.isEmpty();
+            try {
+                runCycle(settledFiles);
+            } catch (final IOException ioe) {
+                logger.error("Error reloading scan record", ioe);
+                break;
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                logger.info("daemon was interrupted while scanning");
+                break;
+            }
+
+            try {
+                if (fullSweep) { nextSweepMs = System.currentTimeMillis() + sleepTimeMs; }
+                if (directoryWatcher != null) {
+                    settledFiles = directoryWatcher.awaitSettled(nextSweepMs - System.currentTimeMillis());
+                } else {
+                    Thread.sleep(sleepTimeMs);
+                }
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                logger.info("daemon sleep was interrupted");
+                break;
+            }
+        }
+        demuxExecutor.shutdownNow();
+    }
+
+    /**
+     * Takes an exclusive lock on appDir/daemon.lock; the channel is left open so that the lock lasts until the process
+     * exits
+     * @return the lock, or null if another process holds it
+     * @throws IOException if the lock file can't be opened
+     */
+    private FileLock lockAppDir() throws IOException {
+        final FileChannel channel = FileChannel.open(new File(appDir, "daemon.lock").toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE);
+        final FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        if (lock == null) { channel.close(); }
+        return lock;
+    }
+
+    /**
+     * Runs one pass of the daemon: brings the plugins up to date with the plugins directory, reloads the scan record if
+     * it was edited, then scans whatever needs scanning
+     * @param settledFiles entries reported by the directory watcher, or empty for a sweep of every new, changed or
+     *                     unsettled entry in dirToScan
+     * @throws IOException if the scan record can't be reloaded
+     * @throws InterruptedException if interrupted while waiting for the demux workers
+     */
+    void runCycle(final List<File> settledFiles) throws IOException, InterruptedException {
+        final CycleEvent event = new CycleEvent();
+        event.begin();
+        event.watcherTriggered = !settledFiles.isEmpty();
+        event.outcome = Outcome.FAILURE;
+        final long start = System.nanoTime();
+        final long bytesBefore = metrics.getBytesDemuxed();
+        try {
+            final File[] jars = new File(appDir + "/plugins").listFiles((final File dir, final String name) -> {
+                return name.endsWith(".jar");
+            });
+            // a missing plugins directory means no plugins, so anything loaded before gets unloaded
+            final Map<String, Throwable> errors = pluginManager.addPluginsFromJars(jars != null ? jars : new File[0]);
+            if (!errors.isEmpty()) { logger.error("Encountered the following error(s) while loading plugins:"); }
+            errors.forEach((final String name, final Throwable t) -> {
+                logger.warn(String.format("class or jar: %s, ex: %s", name, t));
+            });
+            // an edited record can make entries that were exempt scannable again
+            // and so can the other daemons of a cluster finishing or giving up on them
+            if (scanRecord.reload() | scanRecord.reloadPeers()) { directorySnapshot.revalidate(this::isSettled); }
+
+            List<File> files = settledFiles;
+            // what the watcher reports at the top level can be a directory the entries are nested in
+            if (settledFiles.isEmpty() || scanDepth > 1) {
+                try {
+                    files = directorySnapshot.refresh();
+                } catch (final IOException ioe) {
+                    logger.error(String.format("Failed to list %s: %s", dirToScan, ioe.getMessage()));
+                }
+            }
+            event.entries = files.size();
+            // an idle cycle has nothing new, changed or unsettled to look at
+            if (!files.isEmpty()) { scanFiles(files); }
+            directorySnapshot.save();
+            jobScheduler.save();
+            event.outcome = Outcome.SUCCESS;
+        } finally {
+            final long nanos = System.nanoTime() - start;
+            final long bytes = metrics.getBytesDemuxed() - bytesBefore;
+            metrics.cycle.record(nanos, String.format("%d entries", event.entries));
+            metrics.cycleFinished(bytes, nanos);
+            event.bytesGenerated = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Stops the demux workers and every other thread the daemon started, and closes the scan record; for daemons that
+     * were created but never started
+     */
+    void close() {
+        metrics.unregister();
+        Jmx.unregister(jobSchedulerName);
+        Jmx.unregister(scannerName);
+        if (flightRecording != null) {
+            // writes it to its destination
+            flightRecording.stop();
+            flightRecording.close();
+        }
+        demuxExecutor.shutdownNow();
+        supervisingScanner.close();
+        pluginEventBus.close();
+        if (directoryWatcher != null) { directoryWatcher.close(); }
+        if (workLeases != null) { workLeases.close(); }
+        scanRecord.close();
+        try {
+            Runtime.getRuntime().removeShutdownHook(scanRecordShutdownHook);
+        } catch (final IllegalStateException ignored) {
+            // the JVM is already shutting down; the hook finds the record closed
+        }
+    }
+
+    /**
+     * Queues each file that isn't exempt with the job scheduler and has the demux worker pool work through them, in the
+     * scheduler's order, until all of them are finished. The scan record is written afterward if anything was scanned,
+     * and each file is marked settled in the directory snapshot if it's now exempt.
+     * @param files the new, changed or unsettled entries of the directory being scanned
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    private void scanFiles(final List<File> files) throws InterruptedException {
         /*
          * this will only be used to log certain messages if scanning happened. This is to prevent the "skipping" and
          * "scanning" messages from appearing if nothing happened
          */
-        final Consumer<Collection<String>> flushTentativeLogs = (final Collection<String> logs) -> {
-            logs.forEach(logger::info);
-            logs.clear();
-        };
-        while (true) {
-            final File[] jars = pluginsDir.listFiles((final File dir, final String name) -> { return name.endsWith(".jar"); });
-            if (jars != null) {
-                try {
-                    final Map<String, Throwable> errors = pluginManager.addPluginsFromJars(jars);
-                    if (!errors.isEmpty()) { logger.error("Encountered the following error(s) while loading plugins:"); }
-                    errors.forEach((final String className, final Throwable t) -> {
-                        logger.warn(String.format("class: %s, ex: %s", className, t));
-                    });
-                } catch (final IOException e) { logger.error("Failed to load plugin jar", e); }
+        final ItemLog cycleLog = new ItemLog(logger);
+        final Map<File, ItemLog> itemLogs = new LinkedHashMap<>();
+        for (final File file: files) {
+            // skip scanning the scan record file and any failed BD dir or failed/succeeded mkv file
+            if (isSettled(file)) {
+                cycleLog.tentative(String.format("skipping %s", itemName(file)));
+                continue;
+            }
+            // the watcher will report it once it's done being copied; it only watches the top level of dirToScan
+            if (directoryWatcher != null && directoryWatcher.isSettling(new File(dirToScan, itemName(file).split("/")[0]))) {
+                cycleLog.tentative(String.format("skipping %s until it stops changing", itemName(file)));
+                continue;
             }
-            final File[] files = dirToScan.listFiles();
-            if (files != null) {
+            itemLogs.put(file, new ItemLog(logger));
+        }
+        jobScheduler.startRound(itemLogs.keySet());
+        // each task takes whichever job should go next when a worker becomes free, rather than a job fixed up front
+        final List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < itemLogs.size(); i++) {
+            results.add(demuxExecutor.submit(() -> {
+                final File file = jobScheduler.next();
+                if (file == null) { return false; }
                 try {
-                    scanRecord.reload();
-                } catch (final IOException ioe) {
-                    logger.error("Error reloading scan record", ioe);
-                    break;
+                    return scanItem(file, itemLogs.get(file));
+                } finally {
+                    jobScheduler.release(file);
                 }
-                // only ends up staying false if all files/titles being scanned are exempt
-                boolean scannedAtLeastOneFile = false;
-
-                final Collection<String> tentativeLogs = new ArrayList<>();
-                for (final File file: files) {
-                    // skip scanning the scan record file and any failed BD dir or failed/succeeded mkv file
-                    if (isExemptFile(file) || isExemptFromScan(file, null)) {
-                        tentativeLogs.add(String.format("skipping %s", file.getName()));
-                        continue;
-                    }
+            }));
+        }
 
-                    final Collection<File> generatedFiles = new HashSet<>();
-                    if (file.isDirectory()) {
-                        final Set<Integer> titleNumbers = scanBluRayDir(file);
-                        if (titleNumbers == null) {
-                            scannedAtLeastOneFile = true;
-                            continue;
-                        }
-                        tentativeLogs.add(String.format("starting scan of titles %s from %s", titleNumbers, file.getName()));
-                        for (final int titleNumber: titleNumbers) {
-                            if (isExemptFromScan(file, titleNumber)) {
-                                tentativeLogs.add(String.format("skipping %s title %d", file.getName(), titleNumber));
-                                continue;
-                            }
-                            tentativeLogs.add(String.format("scanning title %d from %s", titleNumber, file.getName()));
-                            final Collection<File> genFilesThisTitle = demuxTitle(file, titleNumber);
-                            generatedFiles.addAll(genFilesThisTitle);
-                            flushTentativeLogs.accept(tentativeLogs);
-                            logger.info(String.format("Generated %d files from %s title %d: %s",
-                                genFilesThisTitle.size(), file.getName(), titleNumber, genFilesThisTitle));
-                            scannedAtLeastOneFile = true;
-                        }
-
-                    } else {
-                        tentativeLogs.add(String.format("scanning %s", file.getName()));
-                        generatedFiles.addAll(demuxFile(file));
-                        if (!generatedFiles.isEmpty()) {
-                            flushTentativeLogs.accept(tentativeLogs);
-                            logger.info(String.format("Generated %d files from %s: %s",
-                                generatedFiles.size(), file.getName(), generatedFiles));
-                        }
-                        scannedAtLeastOneFile = true;
-                    }
-                    if (!generatedFiles.isEmpty()) {
-                        pluginManager.getPlugins().forEach((final Plugin plugin) -> {
-                            try {
-                                plugin.afterScan(file, generatedFiles);
-                            } catch (final Exception e) {
-                                logger.warn("Failed to fire afterScan event for plugin " + plugin.getClass().getSimpleName(), e);
-                            }
-                        });
+        // only ends up staying false if all files/titles being scanned are exempt
+        boolean scannedAtLeastOneFile = false;
+        for (final Future<Boolean> result: results) {
+            try {
+                if (result.get()) { scannedAtLeastOneFile = true; }
+            } catch (final ExecutionException ee) {
+                logger.error("unhandled exception while scanning", ee.getCause());
+            }
+        }
+        files.forEach((final File file) -> directorySnapshot.setSettled(file, isSettled(file)));
+        itemLogs.keySet().forEach((final File file) -> jobScheduler.finished(file, isSettled(file)));
+
+        if (scannedAtLeastOneFile) {
+            scanRecord.writeToFile();
+            cycleLog.flush();
+            itemLogs.values().forEach(ItemLog::flush);
+            logger.info(String.format("finished scanning; sleeping for %d minute(s)", sleepTimeMs / 1000 / 60));
+            if (logger.isDebugEnabled()) {
+                pluginEventBus.getCounters().forEach((final PluginEventBus.Counters counters) -> logger.debug(counters));
+            }
+        } else {
+            itemLogs.values().forEach(ItemLog::flushDefinite);
+        }
+    }
+
+    /**
+     * Scans one BD dir or container file, demuxing all non-exempt titles, then fires the afterScan event. Runs on a demux
+     * worker thread; all messages go through the item's log so that they stay grouped.
+     * @param file the BD dir or container file
+     * @param log  the log for this item. Anything still buffered after this returns false is left for the caller
+     * @return true if at least one scan was attempted, false if everything was exempt
+     * @throws InterruptedException if interrupted while waiting for room in a plugin's event queue
+     */
+    private boolean scanItem(final File file, final ItemLog log) throws InterruptedException {
+        metrics.itemStarted();
+        try {
+            return scanItemInFlight(file, log);
+        } finally {
+            metrics.itemFinished();
+        }
+    }
+
+    private boolean scanItemInFlight(final File file, final ItemLog log) throws InterruptedException {
+        if (classifySources) {
+            final SourceClassifier.Kind kind = classify(file, log);
+            if (kind == SourceClassifier.Kind.INCOMPLETE) { return false; }
+            if (kind == SourceClassifier.Kind.UNSUPPORTED) {
+                scanRecord.addUnsupported(itemName(file));
+                scanRecord.writeToFile();
+                log.flush();
+                return true;
+            }
+        }
+        boolean scanned = false;
+        final Collection<File> generatedFiles = new HashSet<>();
+        if (file.isDirectory()) {
+            final Set<Integer> titleNumbers = scanBluRayDir(file, log);
+            if (titleNumbers == null) {
+                log.flush();
+                return true;
+            }
+            if (!linkToOriginal(file, titleNumbers, log)) {
+                log.flush();
+                return false;
+            }
+            final boolean filtering = minTitleSeconds > 0 || minTitleBytes > 0 || maxTitles > 0;
+            if ((titleNumbers.size() > 1 || filtering) &&
+                    !titleNumbers.stream().allMatch((final Integer titleNumber) -> isExemptFromScan(file, titleNumber))) {
+                screenTitles(file, titleNumbers, log);
+            }
+            log.tentative(String.format("starting scan of titles %s from %s", titleNumbers, itemName(file)));
+            for (final int titleNumber: titleNumbers) {
+                if (isExemptFromScan(file, titleNumber)) {
+                    log.tentative(String.format("skipping %s title %d", itemName(file), titleNumber));
+                    continue;
+                }
+                final WorkLeases.Lease lease = claim(file, titleNumber, log);
+                if (lease == null) { continue; }
+                final long estimate = outputSizeEstimator.estimateTitle(file);
+                try (OutputSpace.Reservation reservation = outputSpace.reserve(outputDir, estimate)) {
+                    if (reservation == null) {
+                        // not recorded as a failure; the title is tried again next cycle
+                        log.warn(String.format("deferring %s title %d: not enough free space in %s for about %d MB of output",
+                            itemName(file), titleNumber, outputDir, estimate >> 20));
+                        continue;
                     }
+                    log.tentative(String.format("scanning title %d from %s", titleNumber, itemName(file)));
+                    final Collection<File> genFilesThisTitle = demuxTitle(file, titleNumber, log);
+                    generatedFiles.addAll(genFilesThisTitle);
+                    log.info(String.format("Generated %d files from %s title %d: %s",
+                        genFilesThisTitle.size(), itemName(file), titleNumber, genFilesThisTitle));
+                    log.flush();
+                    scanned = true;
+                } finally {
+                    lease.close();
                 }
-
-                if (scannedAtLeastOneFile) {
-                    scanRecord.writeToFile();
-                    flushTentativeLogs.accept(tentativeLogs);
-                    logger.info(String.format("finished scanning; sleeping for %d minute(s)", sleepTimeMs / 1000 / 60));
+            }
+            // record the whole BD dir as settled so that later cycles don't have to scan it for titles again
+            if (titleNumbers.stream().allMatch((final Integer titleNumber) -> isExemptFromScan(file, titleNumber))) {
+                scanRecord.addSettled(itemName(file));
+            }
+        } else if (!linkToOriginal(file, Collections.singletonList(null), log)) {
+            log.flush();
+            return false;
+        } else if (!isExemptFromScan(file, null)) {
+            final WorkLeases.Lease lease = claim(file, null, log);
+            if (lease == null) { return false; }
+            final long estimate = outputSizeEstimator.estimateFile(file);
+            try (OutputSpace.Reservation reservation = outputSpace.reserve(outputDir, estimate)) {
+                if (reservation == null) {
+                    log.warn(String.format("deferring %s: not enough free space in %s for about %d MB of output",
+                        itemName(file), outputDir, estimate >> 20));
+                    log.flush();
+                    return false;
                 }
-
-                try {
-                    Thread.sleep(sleepTimeMs);
-                } catch (final InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                    logger.info("daemon sleep was interrupted");
-                    break;
+                log.tentative(String.format("scanning %s", itemName(file)));
+                generatedFiles.addAll(demuxFile(file, log));
+                if (!generatedFiles.isEmpty()) {
+                    log.info(String.format("Generated %d files from %s: %s",
+                        generatedFiles.size(), itemName(file), generatedFiles));
                 }
+                log.flush();
+                scanned = true;
+            } finally {
+                lease.close();
+            }
+        }
+        // titles and files are committed as they finish; this commits the BD dir itself
+        scanRecord.writeToFile();
+        if (!generatedFiles.isEmpty()) {
+            pluginEventBus.afterScan(pluginManager.getPlugins(), file, generatedFiles);
+        }
+        return scanned;
+    }
+
+    /**
+     * Tells what an entry is without running the demuxer, so that it's only run on BD dirs and files it can read
+     * @param file the entry
+     * @param log  where messages for this item go
+     * @return what the entry is; one that can't be read is left to the demuxer as if it were a BD dir or container file
+     */
+    private SourceClassifier.Kind classify(final File file, final ItemLog log) {
+        final SourceClassifier.Kind kind;
+        try {
+            kind = SourceClassifier.classify(file);
+        } catch (final IOException ioe) {
+            log.warn(String.format("couldn't read %s to tell what it is: %s", itemName(file), ioe.getMessage()));
+            return file.isDirectory() ? SourceClassifier.Kind.BLU_RAY : SourceClassifier.Kind.CONTAINER;
+        }
+        if (kind == SourceClassifier.Kind.INCOMPLETE) {
+            log.tentative(String.format("skipping %s until there's enough of it to tell what it is", itemName(file)));
+        } else if (kind == SourceClassifier.Kind.UNSUPPORTED && file.isDirectory()) {
+            log.info(String.format("skipping %s: not a BD dir, it has no BDMV/index.bdmv or BDMV/MovieObject.bdmv", itemName(file)));
+        } else if (kind == SourceClassifier.Kind.UNSUPPORTED) {
+            log.info(String.format("skipping %s: not a video or audio file the demuxer can read", itemName(file)));
+        }
+        return kind;
+    }
+
+    /**
+     * Claims a container file or BD title for this daemon when it shares dirToScan with others, and makes sure that
+     * none of them finished it in the meantime
+     * @param file        the BD dir or container file
+     * @param titleNumber the title, or null for a container file
+     * @param log         where messages for this item go
+     * @return the claim, to be closed once the demux is done, or null if the item is another daemon's or was finished
+     * by one
+     */
+    private WorkLeases.Lease claim(final File file, final Integer titleNumber, final ItemLog log) {
+        if (workLeases == null) { return () -> {}; }
+        final String item = titleNumber != null ? DemuxCheckpoints.titleItem(itemName(file), titleNumber) : itemName(file);
+        final WorkLeases.Lease lease = workLeases.acquire(item);
+        if (lease == null) {
+            log.tentative(String.format("skipping %s: another daemon is working on it", item));
+            return null;
+        }
+        try {
+            scanRecord.reloadPeers();
+        } catch (final IOException ioe) {
+            log.warn(String.format("failed to read the other daemons' scan records: %s", ioe.getMessage()));
+        }
+        if (isExemptFromScan(file, titleNumber)) {
+            lease.close();
+            log.tentative(String.format("skipping %s: another daemon finished it", item));
+            return null;
+        }
+        return lease;
+    }
+
+    /**
+     * Recognizes a source that was seen before under another name by its content fingerprint, so that renaming a source
+     * or copying it in again doesn't get it demuxed again. The first name a source is seen under is remembered; when it
+     * turns up under another name, that name takes over whatever the scan record says about the original, e.g. that
+     * it, and the files generated from it, were already demuxed. If the original is gone, the source is remembered by
+     * its new name from then on.
+     * @param file         the BD dir or container file
+     * @param titleNumbers the BD's titles, or just null for a container file
+     * @param log          where messages for this item go
+     * @return false if the item should wait for a later cycle because the original is still being worked on
+     */
+    private boolean linkToOriginal(final File file, final Collection<Integer> titleNumbers, final ItemLog log) {
+        final String name = itemName(file);
+        final String fingerprint;
+        try {
+            fingerprint = SourceFingerprints.fingerprint(file);
+        } catch (final IOException ioe) {
+            // it just gets treated as a new source
+            log.warn(String.format("couldn't fingerprint %s: %s", name, ioe.getMessage()));
+            return true;
+        }
+        if (fingerprint == null) { return true; }
+        final String original = sourceFingerprints.putIfAbsent(fingerprint, name);
+        if (original == null || original.equals(name)) { return true; }
+        final File originalFile = new File(dirToScan, original);
+        final boolean renamed = !originalFile.exists();
+        if (!renamed && !isSettled(originalFile)) {
+            log.info(String.format("deferring %s: it's the same source as %s, which isn't finished yet", name, original));
+            return false;
+        }
+        final long copied = titleNumbers.stream()
+            .filter((final Integer titleNumber) -> scanRecord.copyEntry(original, name, titleNumber))
+            .count();
+        if (copied > 0) {
+            log.info(String.format("%s is the same source as %s%s; taking over its %d scan record entries", name, original,
+                renamed ? ", which is gone" : "", copied));
+        }
+        if (renamed) { sourceFingerprints.put(fingerprint, name); }
+        return true;
+    }
+
+    /**
+     * Screens the titles of a BD before any of them is demuxed, using the demuxer's title list:
+     * <ul>
+     *     <li>every title that plays the same clips as another title of the BD is recorded as a duplicate, so that each
+     *     group of duplicates is only demuxed once: the title that was already demuxed is kept, otherwise the
+     *     lowest-numbered title that wasn't abandoned</li>
+     *     <li>titles that are too short or too small, or that aren't among the longest maxTitles, are recorded as
+     *     filtered</li>
+     * </ul>
+     * @param bluRayDir    the directory containing the BD
+     * @param titleNumbers the BD's titles
+     * @param log          where messages for this BD dir go
+     */
+    private void screenTitles(final File bluRayDir, final Set<Integer> titleNumbers, final ItemLog log) {
+        final String name = itemName(bluRayDir);
+        final Map<Integer, TitleListing.Title> titles;
+        try {
+            titles = titleListing.list(bluRayDir);
+        } catch (final DemuxerException | IOException e) {
+            // not worth failing the BD over; every title just gets demuxed
+            log.warn(String.format("couldn't list the titles of %s to screen them: %s", name, e.getMessage()));
+            return;
+        }
+        for (final List<Integer> group: TitleListing.findDuplicates(titles, titleNumbers)) {
+            final Integer kept = group.stream()
+                .filter((final Integer titleNumber) -> scanRecord.containsSuccess(name, titleNumber))
+                .findFirst()
+                .orElse(group.stream()
+                    .filter((final Integer titleNumber) -> !scanRecord.containsAbandoned(name, titleNumber) &&
+                        !scanRecord.containsDuplicate(name, titleNumber))
+                    .findFirst()
+                    .orElse(null));
+            if (kept == null) { continue; }
+            for (final int titleNumber: group) {
+                if (titleNumber == kept || isExemptFromScan(bluRayDir, titleNumber)) { continue; }
+                scanRecord.addDuplicate(name, titleNumber);
+                log.info(String.format("skipping %s title %d: it plays the same clips as title %d", name, titleNumber, kept));
             }
         }
+
+        if (minTitleSeconds <= 0 && minTitleBytes <= 0 && maxTitles <= 0) { return; }
+        // duplicates are left out so that maxTitles counts distinct titles
+        final List<Integer> distinct = titleNumbers.stream()
+            .filter((final Integer titleNumber) -> !scanRecord.containsDuplicate(name, titleNumber))
+            .collect(Collectors.toList());
+        for (final int titleNumber: TitleListing.filter(titles, distinct, minTitleSeconds, minTitleBytes, maxTitles)) {
+            if (isExemptFromScan(bluRayDir, titleNumber)) { continue; }
+            scanRecord.addFiltered(name, titleNumber);
+            final TitleListing.Title title = titles.get(titleNumber);
+            log.info(String.format("skipping %s title %d: filtered out (%s, %s)", name, titleNumber,
+                title.getSeconds() >= 0 ? title.getSeconds() + " second(s)" : "unknown duration",
+                title.getBytes() >= 0 ? (title.getBytes() >> 20) + " MB" : "unknown size"));
+        }
     }
 
-    private void loadProperties() throws IOException {
-        final Properties properties = new Properties();
+    private void loadProperties(final Properties properties) throws IOException {
         final Consumer<String> check = (final String propName) -> {
             final String prop = properties.getProperty(propName);
             if (prop == null || prop.isEmpty()) {
                 throw new IllegalArgumentException(String.format("invalid %s value in properties file", propName));
             }
         };
-        properties.load(new FileReader(new File(appDir + "/daemon.properties")));
 
         final String dirProp = properties.getProperty("dirToScan");
         check.accept("dirToScan");
         dirToScan = new File(dirProp);
 
+        // optional, defaults to writing demuxed tracks next to what they were demuxed from
+        final String outputDirProp = properties.getProperty("outputDir");
+        outputDir = outputDirProp == null || outputDirProp.isEmpty() ? dirToScan : new File(outputDirProp);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IllegalArgumentException("invalid outputDir value in properties file");
+        }
+        final String minFreeSpaceProp = properties.getProperty("minFreeSpaceMB");
+        final long minFreeSpaceMB = minFreeSpaceProp == null || minFreeSpaceProp.isEmpty() ? 1024 : Long.parseLong(minFreeSpaceProp);
+        if (minFreeSpaceMB < 0) {
+            throw new IllegalArgumentException("invalid minFreeSpaceMB value in properties file");
+        }
+        outputSpace = new OutputSpace(minFreeSpaceMB << 20);
+
         final String execProp = properties.getProperty("eac3toExecutable");
         check.accept("eac3toExecutable");
+        final FileScanner demuxer;
         if (execProp.equals("mock")) {
-            fileScanner = new MockEac3toScanner();
+            demuxer = new MockEac3toScanner();
         } else {
-            fileScanner = new Eac3toScanner(execProp, dirToScan);
+            demuxer = new Eac3toScanner(execProp, outputDir);
         }
+        // optional, defaults to giving each call half an hour plus a minute per 60MB read, and giving up on a demux
+        // after 15 minutes without output
+        final String timeoutProp = properties.getProperty("scannerTimeoutMinutes");
+        final int timeoutMinutes = timeoutProp == null || timeoutProp.isEmpty() ? 30 : Integer.parseInt(timeoutProp);
+        if (timeoutMinutes < 1) {
+            throw new IllegalArgumentException("invalid scannerTimeoutMinutes value in properties file");
+        }
+        final String minRateProp = properties.getProperty("scannerMinMBPerSecond");
+        final int minMBPerSecond = minRateProp == null || minRateProp.isEmpty() ? 1 : Integer.parseInt(minRateProp);
+        if (minMBPerSecond < 0) {
+            throw new IllegalArgumentException("invalid scannerMinMBPerSecond value in properties file");
+        }
+        final String stallProp = properties.getProperty("scannerStallMinutes");
+        final int stallMinutes = stallProp == null || stallProp.isEmpty() ? 15 : Integer.parseInt(stallProp);
+        if (stallMinutes < 0) {
+            throw new IllegalArgumentException("invalid scannerStallMinutes value in properties file");
+        }
+        supervisingScanner = new SupervisingFileScanner(demuxer, outputDir, outputSizeEstimator,
+            60_000L * timeoutMinutes, (long) minMBPerSecond << 20, 60_000L * stallMinutes, execProp.equals("mock") ? null : execProp);
+        scannerName = Jmx.register("Scanner", null, supervisingScanner, SupervisingFileScannerMBean.class);
+        fileScanner = new CachingFileScanner(supervisingScanner, new File(appDir + "/cache"));
+        titleListing = new TitleListing(fileScanner);
+        sourceFingerprints = new SourceFingerprints(new File(appDir + "/cache"));
 
         final String maxRetriesProp = properties.getProperty("maxRetries");
         check.accept("maxRetries");
         maxRetries = Integer.parseInt(maxRetriesProp);
 
-        scanRecordFile = new File(dirToScan.getPath() + File.separator + scanRecordName);
-        scanRecord = new ScanRecord(scanRecordFile, maxRetries);
+        // optional, defaults to forcing every commit of the scan record journal to disk
+        final String fsyncProp = properties.getProperty("scanRecordFsync");
+        final ScanRecordJournal.FsyncPolicy fsyncPolicy;
+        try {
+            fsyncPolicy = fsyncProp == null || fsyncProp.isEmpty() ? ScanRecordJournal.FsyncPolicy.ALWAYS :
+                ScanRecordJournal.FsyncPolicy.valueOf(fsyncProp.trim().toUpperCase());
+        } catch (final IllegalArgumentException iae) {
+            throw new IllegalArgumentException("invalid scanRecordFsync value in properties file");
+        }
+        final ScanRecord.Format format = scanRecordFormat(properties);
+        final String nodeId = clusterNodeId(properties, format);
+        final String leaseSecondsProp = properties.getProperty("leaseSeconds");
+        final int leaseSeconds = leaseSecondsProp == null || leaseSecondsProp.isEmpty() ? 300 : Integer.parseInt(leaseSecondsProp);
+        if (leaseSeconds < 1) {
+            throw new IllegalArgumentException("invalid leaseSeconds value in properties file");
+        }
+        scanRecord = new ScanRecord(scanRecordFile(dirToScan, nodeId, format), maxRetries, fsyncPolicy, format,
+            nodeId != null ? SCAN_RECORD_NAME + "." : null);
+        scanRecordShutdownHook = new Thread(scanRecord::close, "scan-record-shutdown");
+        Runtime.getRuntime().addShutdownHook(scanRecordShutdownHook);
+        if (nodeId != null) {
+            workLeases = new WorkLeases(new File(dirToScan, LEASE_DIR_NAME), nodeId, 1000L * leaseSeconds);
+            logger.info(String.format("sharing %s as cluster node %s", dirToScan, nodeId));
+        }
+        checkpoints = new DemuxCheckpoints(new File(appDir + "/cache/inProgress"), dirToScan, scanRecord);
+        // optional, defaults to only scanning the direct children of dirToScan
+        final String scanDepthProp = properties.getProperty("scanDepth");
+        scanDepth = scanDepthProp == null || scanDepthProp.isEmpty() ? 1 : Integer.parseInt(scanDepthProp);
+        if (scanDepth < 1) {
+            throw new IllegalArgumentException("invalid scanDepth value in properties file");
+        }
+        directorySnapshot = new DirectorySnapshot(dirToScan, new File(appDir + "/cache/directorySnapshot.txt"), scanDepth,
+            this::isExemptFile);
+        // the record might have been edited while the daemon wasn't running
+        directorySnapshot.revalidate(this::isSettled);
+
+
+        // optional, default to demuxing every title
+        final String minTitleSecondsProp = properties.getProperty("minTitleSeconds");
+        minTitleSeconds = minTitleSecondsProp == null || minTitleSecondsProp.isEmpty() ? 0 : Long.parseLong(minTitleSecondsProp);
+        if (minTitleSeconds < 0) {
+            throw new IllegalArgumentException("invalid minTitleSeconds value in properties file");
+        }
+        final String minTitleMBProp = properties.getProperty("minTitleMB");
+        final long minTitleMB = minTitleMBProp == null || minTitleMBProp.isEmpty() ? 0 : Long.parseLong(minTitleMBProp);
+        if (minTitleMB < 0) {
+            throw new IllegalArgumentException("invalid minTitleMB value in properties file");
+        }
+        minTitleBytes = minTitleMB << 20;
+        final String maxTitlesProp = properties.getProperty("maxTitles");
+        maxTitles = maxTitlesProp == null || maxTitlesProp.isEmpty() ? 0 : Integer.parseInt(maxTitlesProp);
+        if (maxTitles < 0) {
+            throw new IllegalArgumentException("invalid maxTitles value in properties file");
+        }
 
+        // optional, defaults to telling what each entry is before running the demuxer on it
+        final String classifySourcesProp = properties.getProperty("classifySources");
+        classifySources = classifySourcesProp == null || classifySourcesProp.isEmpty() || Boolean.parseBoolean(classifySourcesProp);
 
         final String languagesProp = properties.getProperty("languages");
         // todo: change this behavior to treat missing as "get all tracks"
@@ -219,30 +773,130 @@ public class Daemon {
         check.accept("sleepTimeMinutes");
         sleepTimeMs = 60 * 1000 * Integer.parseInt(sleepTimeMinutesProp); // m -> ms
 
-        pluginManager = new PluginManager(new PluginApi(scanRecord));
+        // optional, defaults to scanning one item at a time
+        final String demuxWorkersProp = properties.getProperty("demuxWorkers");
+        demuxWorkers = demuxWorkersProp == null || demuxWorkersProp.isEmpty() ? 1 : Integer.parseInt(demuxWorkersProp);
+        if (demuxWorkers < 1) {
+            throw new IllegalArgumentException("invalid demuxWorkers value in properties file");
+        }
+        // optional, defaults to only doing periodic scans
+        final String watchDirectoryProp = properties.getProperty("watchDirectory");
+        if (Boolean.parseBoolean(watchDirectoryProp)) {
+            final String settleSecondsProp = properties.getProperty("settleSeconds");
+            final int settleSeconds = settleSecondsProp == null || settleSecondsProp.isEmpty() ? 60 : Integer.parseInt(settleSecondsProp);
+            if (settleSeconds < 0) {
+                throw new IllegalArgumentException("invalid settleSeconds value in properties file");
+            }
+            directoryWatcher = new DirectoryWatcher(dirToScan, 1000L * settleSeconds, this::isExemptFile);
+        }
+
+        // optional, defaults to smallest first with nothing waiting more than a day
+        final String jobOrderProp = properties.getProperty("jobOrder");
+        final JobScheduler.Policy jobOrder;
+        try {
+            jobOrder = jobOrderProp == null || jobOrderProp.isEmpty() ? JobScheduler.Policy.SMALLEST :
+                JobScheduler.Policy.valueOf(jobOrderProp.trim().toUpperCase());
+        } catch (final IllegalArgumentException iae) {
+            throw new IllegalArgumentException("invalid jobOrder value in properties file");
+        }
+        final String jobMaxWaitProp = properties.getProperty("jobMaxWaitHours");
+        final int jobMaxWaitHours = jobMaxWaitProp == null || jobMaxWaitProp.isEmpty() ? 24 : Integer.parseInt(jobMaxWaitProp);
+        if (jobMaxWaitHours < 0) {
+            throw new IllegalArgumentException("invalid jobMaxWaitHours value in properties file");
+        }
+        // optional, defaults to one job per source drive at a time, with no limit on the output drive
+        final String maxPerSourceProp = properties.getProperty("maxJobsPerSourceDevice");
+        final int maxJobsPerSourceDevice = maxPerSourceProp == null || maxPerSourceProp.isEmpty() ? 1 : Integer.parseInt(maxPerSourceProp);
+        if (maxJobsPerSourceDevice < 0) {
+            throw new IllegalArgumentException("invalid maxJobsPerSourceDevice value in properties file");
+        }
+        final String maxPerOutputProp = properties.getProperty("maxJobsPerOutputDevice");
+        final int maxJobsPerOutputDevice = maxPerOutputProp == null || maxPerOutputProp.isEmpty() ? 0 : Integer.parseInt(maxPerOutputProp);
+        if (maxJobsPerOutputDevice < 0) {
+            throw new IllegalArgumentException("invalid maxJobsPerOutputDevice value in properties file");
+        }
+        jobScheduler = new JobScheduler(dirToScan, new File(appDir + "/cache/jobQueue.txt"), jobOrder, 3_600_000L * jobMaxWaitHours,
+            outputDir, maxJobsPerSourceDevice, maxJobsPerOutputDevice);
+        jobSchedulerName = Jmx.register("JobScheduler", null, jobScheduler, JobSchedulerMBean.class);
+
+        final AtomicInteger workerCount = new AtomicInteger();
+        demuxExecutor = Executors.newFixedThreadPool(demuxWorkers, (final Runnable runnable) -> {
+            return new Thread(runnable, "demux-worker-" + workerCount.incrementAndGet());
+        });
+
+        // optional, default to 100 queued events and 10 minutes per call
+        final String pluginQueueSizeProp = properties.getProperty("pluginQueueSize");
+        final int pluginQueueSize = pluginQueueSizeProp == null || pluginQueueSizeProp.isEmpty() ? 100 : Integer.parseInt(pluginQueueSizeProp);
+        if (pluginQueueSize < 1) {
+            throw new IllegalArgumentException("invalid pluginQueueSize value in properties file");
+        }
+        final String pluginTimeoutProp = properties.getProperty("pluginTimeoutSeconds");
+        final int pluginTimeoutSeconds = pluginTimeoutProp == null || pluginTimeoutProp.isEmpty() ? 600 : Integer.parseInt(pluginTimeoutProp);
+        if (pluginTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("invalid pluginTimeoutSeconds value in properties file");
+        }
+        pluginEventBus = new PluginEventBus(pluginQueueSize, 1000L * pluginTimeoutSeconds);
+        pluginManager = new PluginManager(new PluginApi(scanRecord), pluginEventBus, new File(appDir + "/cache"));
+
+        metrics = new DaemonMetrics(scanRecord);
+        metrics.register(pluginEventBus);
+
+        // optional, defaults to no recording; the JVM's own -XX:StartFlightRecording works too
+        if (Boolean.parseBoolean(properties.getProperty("flightRecording"))) {
+            final String maxAgeProp = properties.getProperty("flightRecordingMaxAgeHours");
+            final int maxAgeHours = maxAgeProp == null || maxAgeProp.isEmpty() ? 24 : Integer.parseInt(maxAgeProp);
+            if (maxAgeHours < 1) {
+                throw new IllegalArgumentException("invalid flightRecordingMaxAgeHours value in properties file");
+            }
+            final File destination = new File(String.format("%s/recordings/daemon-%tY%<tm%<td-%<tH%<tM%<tS.jfr", appDir, new Date()));
+            try {
+                flightRecording = FlightRecording.startContinuous(destination, Duration.ofHours(maxAgeHours));
+                logger.info(String.format("flight recording started, will be written to %s on exit", destination));
+            } catch (final IOException | ParseException e) {
+                logger.error(String.format("Failed to start flight recording: %s", e.getMessage()));
+            }
+        }
     }
 
     /**
      * Scans a BD dir to find the title numbers contained in the BD.
      * @param bluRayDir the directory containing the BD
+     * @param log       where messages for this BD dir go
      * @return a set of title numbers available on the BD. Returns null if anything went wrong in the scanning, e.g. if
      * the directory is not a BD dir or is corrupt.
      */
-    private Set<Integer> scanBluRayDir(final File bluRayDir) {
+    private Set<Integer> scanBluRayDir(final File bluRayDir, final ItemLog log) {
+        final BluRayScanEvent event = new BluRayScanEvent();
+        event.begin();
+        event.file = itemName(bluRayDir);
+        final long start = System.nanoTime();
+        boolean timedOut = false;
         try {
-            return fileScanner.scanBluRayDir(bluRayDir);
+            final Set<Integer> titleNumbers = fileScanner.scanBluRayDir(bluRayDir);
+            event.titles = titleNumbers.size();
+            event.outcome = Outcome.SUCCESS;
+            event.commit();
+            return titleNumbers;
         } catch (final NotBluRayDirectoryException nbde) {
             // might or might not be an error (corrupt BD dir or just any dir that shouldn't be scanned)
-            logger.warn(String.format("tried to scan %s as BD dir, demuxer doesn't recognize it as such", bluRayDir.getName()));
+            log.warn(String.format("tried to scan %s as BD dir, demuxer doesn't recognize it as such", itemName(bluRayDir)));
         } catch (final DemuxerException de) {
-            logger.error(String.format("failed to scan %s directory as BD dir, demuxer output=%s", bluRayDir.getName(), de.getDemuxerOutput()));
+            log.error(String.format("failed to scan %s directory as BD dir, demuxer output=%s", itemName(bluRayDir), demuxerOutput(de)));
+        } catch (final ScannerTimeoutException ste) {
+            log.error(String.format("gave up on scanning %s directory: %s", itemName(bluRayDir), ste.getMessage()));
+            timedOut = true;
         } catch (final IOException ioe) {
-            logger.error(String.format("failed to scan %s directory: IOException: %s", bluRayDir.getName(), ioe.getMessage()));
+            log.error(String.format("failed to scan %s directory: IOException: %s", itemName(bluRayDir), ioe.getMessage()));
+        } finally {
+            metrics.scanBluRayDir.record(System.nanoTime() - start, itemName(bluRayDir));
         }
-        scanRecord.addFailure(bluRayDir.getName());
-        if (scanRecord.containsAbandoned(bluRayDir.getName(), null)) {
-            logger.error(String.format("Failed to scan %s directory the max number of times", bluRayDir.getName()));
+        scanRecord.addFailure(itemName(bluRayDir));
+        event.outcome = timedOut ? Outcome.TIMEOUT : Outcome.FAILURE;
+        if (scanRecord.containsAbandoned(itemName(bluRayDir), null)) {
+            event.outcome = Outcome.ABANDONED;
+            log.error(String.format("Failed to scan %s directory the max number of times", itemName(bluRayDir)));
         }
+        event.commit();
         return null;
     }
 
@@ -250,99 +904,256 @@ public class Daemon {
      * Demuxes a specific title on a BD directory. Returns false if anything went wrong.
      * @param bluRayDir   the directory containing the BD
      * @param titleNumber which title to demux
+     * @param log         where messages for this BD dir go
      */
-    private Collection<File> demuxTitle(final File bluRayDir, final int titleNumber) {
+    private Collection<File> demuxTitle(final File bluRayDir, final int titleNumber, final ItemLog log) {
+        final TitleDemuxEvent event = new TitleDemuxEvent();
+        event.begin();
+        event.file = itemName(bluRayDir);
+        event.title = titleNumber;
+        final File checkpoint = checkpoints.beginTitle(bluRayDir, titleNumber, outputDir);
+        final long start = System.nanoTime();
+        boolean timedOut = false;
         try {
             final Collection<String> generatedFilenames =
                 fileScanner.demuxBluRayTitleByLanguages(bluRayDir, titleNumber, languages);
-            scanRecord.addSuccess(bluRayDir.getName(), titleNumber);
+            scanRecord.addSuccess(itemName(bluRayDir), titleNumber);
             generatedFilenames.forEach(scanRecord::addSuccess);
-            return generatedFilenames.stream().map((final String filename) -> {
-                return new File(dirToScan + File.separator + filename);
+            // checkpoint each title so that a crash doesn't lose the titles that were already done
+            scanRecord.writeToFile();
+            checkpoints.end(checkpoint);
+            final Collection<File> generatedFiles = generatedFilenames.stream().map((final String filename) -> {
+                return new File(outputDir, filename);
             }).collect(Collectors.toList());
+            final long bytes = totalSize(generatedFiles);
+            metrics.demuxed(bytes, System.nanoTime() - start);
+            event.filesGenerated = generatedFiles.size();
+            event.bytesGenerated = bytes;
+            event.outcome = Outcome.SUCCESS;
+            event.commit();
+            return generatedFiles;
         } catch (final CorruptBluRayStructureException cbse) {
-            logger.error(String.format("was able to scan %s dir, but unable to scan title %d: %s",
-                bluRayDir.getName(), titleNumber, cbse.getDemuxerOutput()));
+            log.error(String.format("was able to scan %s dir, but unable to scan title %d: %s",
+                itemName(bluRayDir), titleNumber, demuxerOutput(cbse)));
         } catch (final FormatConversionException fce) {
             // shouldn't happen unless there's a bug in MkvScannerDemuxer
-            logger.error(String.format("possible bug: demuxer attempted a bad format conversion or something else went wrong. arguments=%s\noutput=%s", fce.getArguments(), fce.getDemuxerOutput()));
+            log.error(String.format("possible bug: demuxer attempted a bad format conversion or something else went wrong. arguments=%s\noutput=%s", fce.getArguments(), demuxerOutput(fce)));
         } catch (final DemuxerException de) {
-            logger.error(String.format("failed to demux BD title, arguments=%s\noutput=%s", de.getArguments(), de.getDemuxerOutput()));
+            log.error(String.format("failed to demux BD title, arguments=%s\noutput=%s", de.getArguments(), demuxerOutput(de)));
+        } catch (final ScannerTimeoutException ste) {
+            log.error(String.format("gave up on demuxing BD title: %s", ste.getMessage()));
+            timedOut = true;
         } catch (final IOException ioe) {
-            logger.error(String.format("failed to demux BD title, dir=%s, title=%d: IOException: %s", bluRayDir.getName(), titleNumber, ioe.getMessage()));
+            log.error(String.format("failed to demux BD title, dir=%s, title=%d: IOException: %s", itemName(bluRayDir), titleNumber, ioe.getMessage()));
         } catch (final Exception e) {
-            logger.error(String.format("unhandled exception type %s, possible bug: %s", e.getClass().getSimpleName(), e.getMessage()));
+            log.error(String.format("unhandled exception type %s, possible bug: %s", e.getClass().getSimpleName(), e.getMessage()));
+        } finally {
+            metrics.demuxTitle.record(System.nanoTime() - start, String.format("%s title %d", itemName(bluRayDir), titleNumber));
         }
-        scanRecord.addFailure(bluRayDir.getName(), titleNumber);
-        if (scanRecord.containsAbandoned(bluRayDir.getName(), titleNumber)) {
-            logger.error(String.format("Failed to demux %s title %d the max number of times", bluRayDir.getName(), titleNumber));
+        scanRecord.addFailure(itemName(bluRayDir), titleNumber);
+        scanRecord.writeToFile();
+        checkpoints.abort(checkpoint);
+        event.outcome = timedOut ? Outcome.TIMEOUT : Outcome.FAILURE;
+        if (scanRecord.containsAbandoned(itemName(bluRayDir), titleNumber)) {
+            event.outcome = Outcome.ABANDONED;
+            log.error(String.format("Failed to demux %s title %d the max number of times", itemName(bluRayDir), titleNumber));
         }
+        event.commit();
         return new HashSet<>();
     }
 
     /**
      * Demuxes a file, such as an MKV. Returns false if anything went wrong.
      * @param containerFile the file to demux
+     * @param log           where messages for this file go
      */
-    private Collection<File> demuxFile(final File containerFile) {
+    private Collection<File> demuxFile(final File containerFile, final ItemLog log) {
+        final FileDemuxEvent event = new FileDemuxEvent();
+        event.begin();
+        event.file = itemName(containerFile);
+        event.bytesRead = containerFile.length();
+        final File checkpoint = checkpoints.beginFile(containerFile, outputDir);
+        final long start = System.nanoTime();
+        boolean timedOut = false;
         try {
             final Collection<String> generatedFilenames = fileScanner.demuxFileByLanguages(containerFile, languages);
-            scanRecord.addSuccess(containerFile.getName());
+            scanRecord.addSuccess(itemName(containerFile));
             generatedFilenames.forEach(scanRecord::addSuccess);
-            return generatedFilenames.stream().map((final String filename) -> {
-                return new File(dirToScan + File.separator + filename);
+            scanRecord.writeToFile();
+            checkpoints.end(checkpoint);
+            final Collection<File> generatedFiles = generatedFilenames.stream().map((final String filename) -> {
+                return new File(outputDir, filename);
             }).collect(Collectors.toList());
+            final long bytes = totalSize(generatedFiles);
+            metrics.demuxed(bytes, System.nanoTime() - start);
+            event.filesGenerated = generatedFiles.size();
+            event.bytesGenerated = bytes;
+            event.outcome = Outcome.SUCCESS;
+            event.commit();
+            return generatedFiles;
         } catch (final UnreadableFileException ufe) {
-            logger.warn(String.format("failed to scan %s as video container file\n\t%s", containerFile.getName(), ufe.getDemuxerOutput()));
+            log.warn(String.format("failed to scan %s as video container file\n\t%s", itemName(containerFile), demuxerOutput(ufe)));
         } catch (final FormatConversionException fce) {
             // shouldn't happen unless there's a bug in MkvScannerDemuxer
-            logger.error(String.format("possible bug: daemon attempted a bad format conversion or something else went wrong. arguments=%s\noutput=%s", fce.getArguments(), fce.getDemuxerOutput()));
+            log.error(String.format("possible bug: daemon attempted a bad format conversion or something else went wrong. arguments=%s\noutput=%s", fce.getArguments(), demuxerOutput(fce)));
         } catch (final DemuxerException de) {
-            logger.error(String.format("failed to demux file, file=%s, arguments=%s\noutput=%s",
-                containerFile.getName(), de.getArguments(), de.getDemuxerOutput()));
+            log.error(String.format("failed to demux file, file=%s, arguments=%s\noutput=%s",
+                itemName(containerFile), de.getArguments(), demuxerOutput(de)));
+        } catch (final ScannerTimeoutException ste) {
+            log.error(String.format("gave up on demuxing file: %s", ste.getMessage()));
+            timedOut = true;
         } catch (final IOException ioe) {
-            logger.error(String.format("failed to demux file, file=%s, IOException: %s", containerFile.getName(), ioe.getMessage()));
+            log.error(String.format("failed to demux file, file=%s, IOException: %s", itemName(containerFile), ioe.getMessage()));
+        } finally {
+            metrics.demuxFile.record(System.nanoTime() - start, itemName(containerFile));
         }
-        scanRecord.addFailure(containerFile.getName());
-        if (scanRecord.containsAbandoned(containerFile.getName(), null)) {
-            logger.error(String.format("Failed to demux %s the max number of times", containerFile.getName()));
+        scanRecord.addFailure(itemName(containerFile));
+        scanRecord.writeToFile();
+        checkpoints.abort(checkpoint);
+        event.outcome = timedOut ? Outcome.TIMEOUT : Outcome.FAILURE;
+        if (scanRecord.containsAbandoned(itemName(containerFile), null)) {
+            event.outcome = Outcome.ABANDONED;
+            log.error(String.format("Failed to demux %s the max number of times", itemName(containerFile)));
         }
+        event.commit();
         return new HashSet<>();
     }
 
     /**
-     * Tests if the file is one that shouldn't be scanned at all, such as the scan record file or a scan log from the
-     * demuxer
+     * @return the end of the demuxer's output, and how far it got, to keep error messages a reasonable size; the demuxer
+     * library has already collected the whole output into the exception by then, so this only bounds what gets logged
+     */
+    private static String demuxerOutput(final DemuxerException de) {
+        final LineStreamConsumer output = LineStreamConsumer.of(de.getDemuxerOutput(), DEMUXER_OUTPUT_LINES);
+        return output.getPercentComplete() >= 0 ?
+            String.format("[stopped at %d%%]\n%s", output.getPercentComplete(), output.getTail()) : output.getTail();
+    }
+
+    private static long totalSize(final Collection<File> files) {
+        return files.stream().mapToLong(File::length).sum();
+    }
+
+    /**
+     * Tests if the file is one that shouldn't be scanned at all, such as the scan record file and its journals, a scan
+     * log from the demuxer, the cluster's leases or the output dir if it's inside the directory being scanned
      * @param file the file to possibly be scanned
      * @return true if file shouldn't be scanned
      */
     private boolean isExemptFile(final File file) {
-        return file.equals(scanRecordFile) || file.getName().endsWith(" - Log.txt");
+        return scanRecord.isRecordFile(file) || file.getName().endsWith(" - Log.txt") || file.getName().equals(LEASE_DIR_NAME) ||
+            file.getAbsoluteFile().equals(outputDir.getAbsoluteFile());
     }
 
     /**
-     * Returns true for files/dirs/titles that are exempt from scanning because they've already been scanned or have
-     * failed too many times.
+     * Returns true for files/dirs/titles that are exempt from scanning because they've already been scanned, have
+     * failed too many times, are titles that were skipped as duplicates or filtered out, or aren't something the demuxer
+     * can read.
      * @param file        the file to possibly be scanned
      * @param titleNumber the title number if checking a BD title, null otherwise
      * @return true if the file should not be scanned: this happens if the file has been successfully scanned or if it
      * has failed to be scanned the max number of times
      */
     private boolean isExemptFromScan(final File file, final Integer titleNumber) {
-        return scanRecord.containsSuccess(file.getName(), titleNumber) || scanRecord.containsAbandoned(file.getName(), titleNumber);
+        final String name = itemName(file);
+        return scanRecord.containsSuccess(name, titleNumber) || scanRecord.containsAbandoned(name, titleNumber) ||
+            scanRecord.containsDuplicate(name, titleNumber) || scanRecord.containsFiltered(name, titleNumber) ||
+            scanRecord.containsUnsupported(name, titleNumber) || titleNumber == null && scanRecord.containsSettled(name);
+    }
+
+    /**
+     * @param file an entry of the directory being scanned
+     * @return how the entry is named in the scan record and log messages: its path relative to dirToScan, which is
+     * just its name unless scanDepth is over 1
+     */
+    private String itemName(final File file) {
+        return LibraryWalker.relativeName(dirToScan, file);
+    }
+
+    /**
+     * @param file an entry of the directory being scanned
+     * @return true if there's nothing left to do for the entry until it or the scan record changes
+     */
+    private boolean isSettled(final File file) {
+        return isExemptFile(file) || isExemptFromScan(file, null);
     }
 
-    private String findAppDir() {
+    /**
+     * optional, defaults to the text format
+     */
+    private static ScanRecord.Format scanRecordFormat(final Properties properties) {
+        final String formatProp = properties.getProperty("scanRecordFormat");
+        try {
+            return formatProp == null || formatProp.isEmpty() ? ScanRecord.Format.TEXT :
+                ScanRecord.Format.valueOf(formatProp.trim().toUpperCase());
+        } catch (final IllegalArgumentException iae) {
+            throw new IllegalArgumentException("invalid scanRecordFormat value in properties file");
+        }
+    }
+
+    /**
+     * optional, defaults to null for a daemon that has dirToScan to itself
+     */
+    private static String clusterNodeId(final Properties properties, final ScanRecord.Format format) {
+        final String nodeIdProp = properties.getProperty("clusterNodeId");
+        final String nodeId = nodeIdProp == null || nodeIdProp.trim().isEmpty() ? null : nodeIdProp.trim();
+        if (nodeId != null && !nodeId.matches("[\\w-]+")) {
+            throw new IllegalArgumentException("invalid clusterNodeId value in properties file");
+        }
+        // only text records can be merged with the other daemons' records
+        if (nodeId != null && format != ScanRecord.Format.TEXT) {
+            throw new IllegalArgumentException("invalid scanRecordFormat value in properties file");
+        }
+        return nodeId;
+    }
+
+    /**
+     * In a cluster, each daemon writes its own shard of the record and reads the others'
+     */
+    private static File scanRecordFile(final File dirToScan, final String nodeId, final ScanRecord.Format format) {
+        final String shardName = nodeId != null ? SCAN_RECORD_NAME + "." + nodeId : SCAN_RECORD_NAME;
+        return new File(dirToScan.getPath() + File.separator + shardName + "." + format.getExtension());
+    }
+
+    private static String findAppDir() {
         try {
             final String jarFile = Daemon.class.getProtectionDomain().getCodeSource().getLocation().toURI().getPath();
             return jarFile.substring(0, jarFile.lastIndexOf('/'));
         } catch (final URISyntaxException e) {
-            logger.error("couldn't find directory of currently running app", e);
+            Logger.getLogger(Daemon.class).error("couldn't find directory of currently running app", e);
             return ".";
         }
     }
 
+    /**
+     * Writes the scan record as text, e.g. to inspect a binary scan record, then exits. Only the record file and its
+     * journals are read, without creating a daemon, so this is safe to run while the daemon is running.
+     * @param target where to write
+     */
+    private static void exportScanRecord(final File target) {
+        final Logger logger = Logger.getLogger(Daemon.class);
+        try {
+            final Properties properties = new Properties();
+            try (FileReader reader = new FileReader(new File(findAppDir() + "/daemon.properties"))) {
+                properties.load(reader);
+            }
+            final String dirProp = properties.getProperty("dirToScan");
+            if (dirProp == null || dirProp.isEmpty()) {
+                throw new IllegalArgumentException("invalid dirToScan value in properties file");
+            }
+            final ScanRecord.Format format = scanRecordFormat(properties);
+            ScanRecord.exportText(scanRecordFile(new File(dirProp), clusterNodeId(properties, format), format), format, target);
+            logger.info(String.format("exported scan record to %s", target));
+        } catch (final IOException | IllegalArgumentException e) {
+            logger.fatal(String.format("failed to export scan record to %s: %s", target, e.getMessage()));
+            System.exit(-1);
+        }
+        System.exit(0);
+    }
+
     public static void main(final String[] args) throws URISyntaxException {
+        if (args.length == 2 && args[0].equals("--export-scan-record")) {
+            exportScanRecord(new File(args[1]));
+        }
         new Daemon().start();
     }
 }
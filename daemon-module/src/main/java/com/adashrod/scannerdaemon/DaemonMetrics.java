@@ -0,0 +1,120 @@
+package com.adashrod.scannerdaemon;
+
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings, throughput and counts for the daemon, published over JMX by {@link #register(PluginEventBus)} as:
+ * <ul>
+ *     <li>com.adashrod.scannerdaemon:type=Daemon, a {@link DaemonMetricsMBean}</li>
+ *     <li>com.adashrod.scannerdaemon:type=Latency,name=&lt;stage&gt; for the stages cycle, scanBluRayDir, demuxTitle,
+ *     demuxFile and afterScan, each a {@link LatencyHistogramMBean}</li>
+ * </ul>
+ */
+class DaemonMetrics implements DaemonMetricsMBean {
+    final LatencyHistogram cycle = new LatencyHistogram();
+    final LatencyHistogram scanBluRayDir = new LatencyHistogram();
+    final LatencyHistogram demuxTitle = new LatencyHistogram();
+    final LatencyHistogram demuxFile = new LatencyHistogram();
+
+    private final ScanRecord scanRecord;
+    private final AtomicInteger inFlightItems = new AtomicInteger();
+    private final AtomicLong bytesDemuxed = new AtomicLong();
+    private final AtomicLong demuxNanos = new AtomicLong();
+    private volatile double lastCycleBytesPerSecond;
+    private final List<ObjectName> objectNames = new ArrayList<>();
+
+    /**
+     * @param scanRecord where the record counts come from
+     */
+    DaemonMetrics(final ScanRecord scanRecord) {
+        this.scanRecord = scanRecord;
+    }
+
+    /**
+     * Registers the MBeans, replacing any registered by another daemon in the same JVM
+     * @param pluginEventBus where the afterScan latencies come from
+     */
+    void register(final PluginEventBus pluginEventBus) {
+        objectNames.add(Jmx.register("Daemon", null, this, DaemonMetricsMBean.class));
+        objectNames.add(Jmx.register("Latency", "cycle", cycle, LatencyHistogramMBean.class));
+        objectNames.add(Jmx.register("Latency", "scanBluRayDir", scanBluRayDir, LatencyHistogramMBean.class));
+        objectNames.add(Jmx.register("Latency", "demuxTitle", demuxTitle, LatencyHistogramMBean.class));
+        objectNames.add(Jmx.register("Latency", "demuxFile", demuxFile, LatencyHistogramMBean.class));
+        objectNames.add(Jmx.register("Latency", "afterScan", pluginEventBus.getAfterScanLatency(), LatencyHistogramMBean.class));
+    }
+
+    void unregister() {
+        objectNames.forEach(Jmx::unregister);
+        objectNames.clear();
+    }
+
+    void itemStarted() {
+        inFlightItems.incrementAndGet();
+    }
+
+    void itemFinished() {
+        inFlightItems.decrementAndGet();
+    }
+
+    /**
+     * @param bytes total size of the files generated by one demux
+     * @param nanos how long the demux took
+     */
+    void demuxed(final long bytes, final long nanos) {
+        bytesDemuxed.addAndGet(bytes);
+        demuxNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @param bytes total size of the files generated during the cycle
+     * @param nanos how long the cycle took
+     */
+    void cycleFinished(final long bytes, final long nanos) {
+        if (bytes > 0) { lastCycleBytesPerSecond = bytes / (nanos / 1e9); }
+    }
+
+    @Override
+    public int getInFlightItems() {
+        return inFlightItems.get();
+    }
+
+    @Override
+    public long getBytesDemuxed() {
+        return bytesDemuxed.get();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        final long nanos = demuxNanos.get();
+        return nanos == 0 ? 0 : bytesDemuxed.get() / (nanos / 1e9);
+    }
+
+    @Override
+    public double getLastCycleBytesPerSecond() {
+        return lastCycleBytesPerSecond;
+    }
+
+    @Override
+    public long getRecordSuccesses() {
+        return scanRecord.getSuccessCount();
+    }
+
+    @Override
+    public long getRecordFailures() {
+        return scanRecord.getFailureCount();
+    }
+
+    @Override
+    public long getRecordAbandoned() {
+        return scanRecord.getAbandonedCount();
+    }
+
+    @Override
+    public long getRecordSkipped() {
+        return scanRecord.getSkippedCount();
+    }
+}
@@ -0,0 +1,48 @@
+package com.adashrod.scannerdaemon;
+
+/**
+ * JMX view of what the daemon is doing. Latencies of each stage are registered separately, as
+ * {@link LatencyHistogramMBean}s, and each plugin's as a {@link PluginCountersMBean}.
+ */
+public interface DaemonMetricsMBean {
+    /**
+     * @return how many BD dirs and files are being scanned right now
+     */
+    int getInFlightItems();
+
+    /**
+     * @return the total size of all files generated by demuxing since the daemon started
+     */
+    long getBytesDemuxed();
+
+    /**
+     * @return bytes generated per second spent demuxing, i.e. per demux worker
+     */
+    double getBytesPerSecond();
+
+    /**
+     * @return bytes generated per second of the last cycle that demuxed anything, i.e. for all demux workers together
+     */
+    double getLastCycleBytesPerSecond();
+
+    /**
+     * @return how many entries the scan record has as successfully scanned, generated files included
+     */
+    long getRecordSuccesses();
+
+    /**
+     * @return how many entries the scan record has as failed but to be tried again
+     */
+    long getRecordFailures();
+
+    /**
+     * @return how many entries the scan record has as failed the max number of times
+     */
+    long getRecordAbandoned();
+
+    /**
+     * @return how many entries the scan record has as skipped without being demuxed, i.e. duplicate or filtered
+     * titles and unsupported files and directories
+     */
+    long getRecordSkipped();
+}
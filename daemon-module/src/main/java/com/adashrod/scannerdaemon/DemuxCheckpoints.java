@@ -0,0 +1,188 @@
+package com.adashrod.scannerdaemon;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps a marker file in cache/inProgress for each title or file being demuxed, from just before the demuxer starts
+ * until its result is committed to the scan record. Completed titles are committed one at a time, so a crash only
+ * loses the titles that were in progress. A marker that's still there at startup means the daemon died during that
+ * demux and might have left partial output files behind; {@link #recover()} deletes those, and the title is demuxed
+ * again from scratch since it isn't in the scan record. The partial outputs of a demux that fails are deleted right
+ * away by {@link #abort(File)}.
+ *
+ * Partial outputs are recognized by the demuxer's naming scheme, e.g. "DISC_ti3_tr2_eng.dts" for title 3 of DISC or
+ * "movie_tr1_und.mkv" for movie.mkv, and by having been modified after the demux started. Files recorded as successes
+ * in the scan record are never deleted.
+ */
+class DemuxCheckpoints {
+    /**
+     * allowance for file systems with coarse modification times, e.g. 2 seconds on FAT
+     */
+    private static final long MODIFIED_SLACK_MS = 2000;
+
+    private final Logger logger = Logger.getLogger(DemuxCheckpoints.class);
+
+    private final File markerDir;
+    private final File dirToScan;
+    private final ScanRecord scanRecord;
+    private final AtomicLong nextMarker = new AtomicLong();
+
+    /**
+     * @param markerDir  where the markers are kept
+     * @param dirToScan  what items are named relative to
+     * @param scanRecord consulted so that completed outputs are never deleted
+     */
+    DemuxCheckpoints(final File markerDir, final File dirToScan, final ScanRecord scanRecord) {
+        this.markerDir = markerDir;
+        this.dirToScan = dirToScan;
+        this.scanRecord = scanRecord;
+    }
+
+    /**
+     * Marks a BD title as being demuxed
+     * @param bluRayDir   the BD dir
+     * @param titleNumber the title
+     * @param outputDir   where the demuxer writes its output
+     * @return the marker, to be passed to {@link #end(File)}, or null if it couldn't be written
+     */
+    File beginTitle(final File bluRayDir, final int titleNumber, final File outputDir) {
+        return begin(titleItem(LibraryWalker.relativeName(dirToScan, bluRayDir), titleNumber), outputDir,
+            titleOutputPattern(bluRayDir, titleNumber));
+    }
+
+    /**
+     * @param name the BD dir's name in the scan record, i.e. relative to dirToScan
+     * @return how a BD title is named in markers and log messages, e.g. "DISC title 3"
+     */
+    static String titleItem(final String name, final int titleNumber) {
+        return String.format("%s title %d", name, titleNumber);
+    }
+
+    /**
+     * Marks a container file as being demuxed
+     * @param containerFile the file
+     * @param outputDir     where the demuxer writes its output
+     * @return the marker, to be passed to {@link #end(File)}, or null if it couldn't be written
+     */
+    File beginFile(final File containerFile, final File outputDir) {
+        return begin(LibraryWalker.relativeName(dirToScan, containerFile), outputDir, fileOutputPattern(containerFile));
+    }
+
+    /**
+     * @return a regex matching the names of the files the demuxer writes for a BD title
+     */
+    static String titleOutputPattern(final File bluRayDir, final int titleNumber) {
+        return Pattern.quote(bluRayDir.getName() + "_ti" + titleNumber + "_tr") + "\\d+.*";
+    }
+
+    /**
+     * @return a regex matching the names of the files the demuxer writes for a container file
+     */
+    static String fileOutputPattern(final File containerFile) {
+        final String name = containerFile.getName();
+        final String baseName = name.contains(".") ? name.substring(0, name.lastIndexOf('.')) : name;
+        return Pattern.quote(baseName + "_tr") + "\\d+.*";
+    }
+
+    /**
+     * Removes a marker once the demux's result has been committed to the scan record
+     * @param marker a marker from one of the begin methods, or null
+     */
+    void end(final File marker) {
+        if (marker != null && !marker.delete() && marker.exists()) {
+            logger.warn(String.format("Failed to delete demux checkpoint %s", marker));
+        }
+    }
+
+    /**
+     * Deletes the partial outputs of a demux that failed, then its marker, once the failure has been committed to the
+     * scan record
+     * @param marker a marker from one of the begin methods, or null
+     */
+    void abort(final File marker) {
+        if (marker == null) { return; }
+        cleanUp(marker, "failed", (final String item) -> false);
+        end(marker);
+    }
+
+    /**
+     * Deletes the partial outputs of every demux that was still in progress when the daemon last stopped, then the
+     * markers
+     */
+    void recover() {
+        recover((final String item) -> false);
+    }
+
+    /**
+     * Like {@link #recover()}, but leaves the outputs of items that another daemon has taken over since alone
+     * @param takenOver tells if an item, e.g. "DISC title 3" or "movie.mkv", is being demuxed by another daemon
+     */
+    void recover(final Predicate<String> takenOver) {
+        final File[] markers = markerDir.listFiles();
+        if (markers == null) { return; }
+        for (final File marker: markers) {
+            cleanUp(marker, "was interrupted", takenOver);
+            marker.delete();
+        }
+    }
+
+    private File begin(final String item, final File outputDir, final String outputPattern) {
+        markerDir.mkdirs();
+        final File marker = new File(markerDir, String.format("demux-%d-%d.txt", System.currentTimeMillis(), nextMarker.incrementAndGet()));
+        try (FileOutputStream out = new FileOutputStream(marker); Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            writer.write(String.format("%s\t%d\t%s\t%s\n", item, System.currentTimeMillis(), outputDir.getAbsolutePath(), outputPattern));
+            writer.flush();
+            // has to be on disk before the demuxer writes anything
+            out.getFD().sync();
+            return marker;
+        } catch (final IOException ioe) {
+            logger.warn(String.format("Failed to write demux checkpoint for %s: %s", item, ioe.getMessage()));
+            marker.delete();
+            return null;
+        }
+    }
+
+    private void cleanUp(final File marker, final String reason, final Predicate<String> takenOver) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(marker), StandardCharsets.UTF_8))) {
+            final String[] parts = reader.readLine().split("\t", -1);
+            if (takenOver.test(parts[0])) {
+                logger.info(String.format("demux of %s %s; leaving its outputs to the daemon that took it over", parts[0], reason));
+                return;
+            }
+            cleanUp(parts[0], Long.parseLong(parts[1]), new File(parts[2]), Pattern.compile(parts[3]), reason);
+        } catch (final IOException | RuntimeException e) {
+            logger.warn(String.format("Ignoring unreadable demux checkpoint %s: %s", marker, e));
+        }
+    }
+
+    private void cleanUp(final String item, final long startedAt, final File outputDir, final Pattern outputPattern,
+            final String reason) {
+        final File[] outputs = outputDir.listFiles((final File file) -> {
+            return file.isFile() && outputPattern.matcher(file.getName()).matches() &&
+                file.lastModified() >= startedAt - MODIFIED_SLACK_MS && !scanRecord.containsSuccess(file.getName(), null);
+        });
+        if (outputs == null || outputs.length == 0) { return; }
+        int deleted = 0;
+        for (final File output: outputs) {
+            if (output.delete()) {
+                deleted++;
+            } else {
+                logger.warn(String.format("Failed to delete partial output %s", output));
+            }
+        }
+        logger.info(String.format("demux of %s %s; deleted %d partial output file(s)", item, reason, deleted));
+    }
+}
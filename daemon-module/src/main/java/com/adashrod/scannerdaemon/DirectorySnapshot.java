@@ -0,0 +1,213 @@
+package com.adashrod.scannerdaemon;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * A persisted snapshot of the directory being scanned: the name, size, modification time and file key (the inode where
+ * the file system has one) of each entry, and whether the entry is settled, i.e. was found exempt from scanning the last
+ * time it was checked. A cycle only needs to look at entries that are new, changed or unsettled.
+ *
+ * The directory is only re-listed when its own modification time changes, which happens whenever an entry is added,
+ * removed or renamed. A listing taken within {@link #RACY_WINDOW_MS} of the directory's modification time isn't
+ * trusted, since another change could land in the same timestamp tick.
+ *
+ * With a scan depth over 1, entries are found by a {@link LibraryWalker} and named by their path relative to the
+ * directory, e.g. "Studio/2001/DISC". Since changes deeper down don't show in the directory's modification time, the
+ * whole tree is walked again every time.
+ */
+class DirectorySnapshot {
+    private static final long RACY_WINDOW_MS = 2000;
+    private static final String HEADER = "v1";
+
+    private final Logger logger = Logger.getLogger(DirectorySnapshot.class);
+
+    private final File dir;
+    private final File snapshotFile;
+    private final int depth;
+    private final LibraryWalker walker;
+    private final Map<String, Entry> entries = new HashMap<>();
+    /**
+     * names of the entries that aren't settled, so that an idle cycle doesn't have to go through every entry
+     */
+    private final Set<String> unsettled = new HashSet<>();
+    private long dirModified = -1;
+    private long listedAt;
+    private boolean dirty;
+
+    /**
+     * @param dir          the directory to snapshot
+     * @param snapshotFile where the snapshot is persisted between runs
+     */
+    DirectorySnapshot(final File dir, final File snapshotFile) {
+        this(dir, snapshotFile, 1, (final File file) -> false);
+    }
+
+    /**
+     * @param dir          the directory to snapshot
+     * @param snapshotFile where the snapshot is persisted between runs
+     * @param depth        how deep entries can be, 1 for only the direct children of dir
+     * @param skip         directories that aren't walked into, e.g. the output dir
+     */
+    DirectorySnapshot(final File dir, final File snapshotFile, final int depth, final Predicate<File> skip) {
+        this.dir = dir;
+        this.snapshotFile = snapshotFile;
+        this.depth = depth;
+        walker = new LibraryWalker(dir, depth, skip);
+        load();
+    }
+
+    /**
+     * Re-lists the directory if it might have changed and returns every entry that is new, changed or not settled
+     * @return the entries that need to be looked at this cycle
+     * @throws IOException if the directory can't be listed
+     */
+    List<File> refresh() throws IOException {
+        final long modified = Files.getLastModifiedTime(dir.toPath()).toMillis();
+        if (depth > 1 || modified != dirModified || listedAt - modified < RACY_WINDOW_MS) {
+            relist(modified);
+        }
+        final List<File> files = new ArrayList<>();
+        unsettled.forEach((final String name) -> files.add(new File(dir, name)));
+        return files;
+    }
+
+    /**
+     * Records whether an entry was found exempt from scanning. A settled entry isn't returned by {@link #refresh()}
+     * again until it changes.
+     */
+    void setSettled(final File file, final boolean settled) {
+        final String name = LibraryWalker.relativeName(dir, file);
+        final Entry entry = entries.get(name);
+        if (entry != null && entry.settled != settled) {
+            entry.settled = settled;
+            if (settled) {
+                unsettled.remove(name);
+            } else {
+                unsettled.add(name);
+            }
+            dirty = true;
+        }
+    }
+
+    /**
+     * Re-checks every settled entry, e.g. after the scan record was replaced, since an entry that was exempt before
+     * might not be anymore
+     * @param isSettled tells if an entry is exempt from scanning
+     */
+    void revalidate(final Predicate<File> isSettled) {
+        entries.forEach((final String name, final Entry entry) -> {
+            if (entry.settled && !isSettled.test(new File(dir, name))) {
+                entry.settled = false;
+                unsettled.add(name);
+                dirty = true;
+            }
+        });
+    }
+
+    /**
+     * Writes the snapshot if anything changed since it was last written
+     */
+    void save() {
+        if (!dirty) { return; }
+        final File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        snapshotFile.getAbsoluteFile().getParentFile().mkdirs();
+        try {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile, false), "UTF-8"))) {
+                writer.write(String.format("%s\t%d\t%d\t%s\n", HEADER, dirModified, listedAt, dir.getAbsolutePath()));
+                for (final Map.Entry<String, Entry> entry: entries.entrySet()) {
+                    final Entry e = entry.getValue();
+                    writer.write(String.format("%s\t%d\t%d\t%s\t%d\n", entry.getKey(), e.size, e.lastModified, e.fileKey,
+                        e.settled ? 1 : 0));
+                }
+            }
+            Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (final IOException ioe) {
+            logger.warn(String.format("Failed to write directory snapshot %s: %s", snapshotFile, ioe.getMessage()));
+        }
+    }
+
+    private void relist(final long modified) throws IOException {
+        final long now = System.currentTimeMillis();
+        final Map<String, BasicFileAttributes> listing = walker.walk();
+        listing.forEach((final String name, final BasicFileAttributes attrs) -> {
+            final Entry current = new Entry(attrs.isDirectory() ? 0 : attrs.size(), attrs.lastModifiedTime().toMillis(),
+                attrs.fileKey() != null ? attrs.fileKey().toString() : "", false);
+            final Entry previous = entries.get(name);
+            if (previous == null || !previous.sameFileAs(current)) {
+                entries.put(name, current);
+                unsettled.add(name);
+                dirty = true;
+            }
+        });
+        final Set<String> seen = listing.keySet();
+        entries.keySet().retainAll(seen);
+        unsettled.retainAll(seen);
+        dirModified = modified;
+        listedAt = now;
+        dirty = true;
+    }
+
+    private void load() {
+        if (!snapshotFile.exists()) { return; }
+        try (BufferedReader reader = new BufferedReader(new FileReader(snapshotFile))) {
+            final String[] header = reader.readLine().split("\t", 4);
+            // a snapshot of another version or of a different directory is useless
+            if (!header[0].equals(HEADER) || !header[3].equals(dir.getAbsolutePath())) { return; }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split("\t", -1);
+                if (parts.length != 5) { continue; }
+                final boolean settled = parts[4].equals("1");
+                entries.put(parts[0], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3], settled));
+                if (!settled) { unsettled.add(parts[0]); }
+            }
+            dirModified = Long.parseLong(header[1]);
+            listedAt = Long.parseLong(header[2]);
+        } catch (final IOException | RuntimeException e) {
+            // start over with a full listing
+            logger.warn(String.format("Ignoring unreadable directory snapshot %s: %s", snapshotFile, e));
+            entries.clear();
+            unsettled.clear();
+            dirModified = -1;
+        }
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final String fileKey;
+        private boolean settled;
+
+        Entry(final long size, final long lastModified, final String fileKey, final boolean settled) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+            this.settled = settled;
+        }
+
+        boolean sameFileAs(final Entry other) {
+            return size == other.size && lastModified == other.lastModified && Objects.equals(fileKey, other.fileKey);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.adashrod.scannerdaemon;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Watches the directory being scanned for new or modified entries and hands them to the daemon once they've settled,
+ * i.e. once an entry's total size and latest modification time have stopped changing for the settle period. This keeps
+ * files and BD dirs that are still being copied from being demuxed and then counted as failures.
+ */
+class DirectoryWatcher {
+    private final Logger logger = Logger.getLogger(DirectoryWatcher.class);
+
+    private final File dir;
+    private final long settleMs;
+    private final Predicate<File> ignore;
+    /**
+     * entries that have changed recently and haven't settled yet. Only touched by the watcher thread, except for
+     * {@link #isSettling(File)}
+     */
+    private final Map<Path, Observation> pending = new HashMap<>();
+    private final BlockingQueue<File> settled = new LinkedBlockingQueue<>();
+    private WatchService watchService;
+    private Thread thread;
+
+    /**
+     * @param dir      the directory to watch; only its direct children are reported
+     * @param settleMs how long an entry has to go unchanged before it's reported
+     * @param ignore   entries matching this are never reported, e.g. the scan record file
+     */
+    DirectoryWatcher(final File dir, final long settleMs, final Predicate<File> ignore) {
+        this.dir = dir;
+        this.settleMs = settleMs;
+        this.ignore = ignore;
+    }
+
+    /**
+     * Registers with the file system's watch service and starts watching on a background thread
+     * @throws IOException if the directory can't be watched
+     */
+    void start() throws IOException {
+        final WatchService watchService = FileSystems.getDefault().newWatchService();
+        try {
+            dir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (final IOException | RuntimeException e) {
+            try {
+                watchService.close();
+            } catch (final IOException closeException) {
+                e.addSuppressed(closeException);
+            }
+            throw e;
+        }
+        this.watchService = watchService;
+        thread = new Thread(() -> watch(watchService), "directory-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info(String.format("watching %s, settle time is %d second(s)", dir, settleMs / 1000));
+    }
+
+    /**
+     * Stops watching; does nothing if it was never started
+     */
+    void close() {
+        if (thread == null) { return; }
+        thread.interrupt();
+        try {
+            watchService.close();
+        } catch (final IOException ioe) {
+            logger.warn(String.format("Failed to stop watching %s", dir), ioe);
+        }
+    }
+
+    /**
+     * @param file a direct child of the watched directory
+     * @return true if the file has changed recently and hasn't settled yet
+     */
+    boolean isSettling(final File file) {
+        synchronized (pending) {
+            return pending.containsKey(file.toPath());
+        }
+    }
+
+    /**
+     * Waits for at least one entry to settle, then returns it along with any others that settled in the meantime.
+     * @param timeoutMs the longest to wait
+     * @return the settled entries, empty if none settled before the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    List<File> awaitSettled(final long timeoutMs) throws InterruptedException {
+        final List<File> files = new ArrayList<>();
+        final File first = settled.poll(Math.max(timeoutMs, 0), TimeUnit.MILLISECONDS);
+        if (first != null) {
+            files.add(first);
+            settled.drainTo(files);
+        }
+        return files;
+    }
+
+    private void watch(final WatchService watchService) {
+        // check often enough that an entry is reported soon after it settles, but don't busy-wait on short settle times
+        final long checkIntervalMs = Math.max(settleMs / 4, 250);
+        try {
+            while (true) {
+                final WatchKey key = watchService.poll(checkIntervalMs, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (final WatchEvent<?> event: key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            logger.warn(String.format("missed events while watching %s, rechecking all entries", dir));
+                            final File[] files = dir.listFiles();
+                            if (files != null) {
+                                for (final File file: files) { observe(file.toPath()); }
+                            }
+                        } else {
+                            observe(dir.toPath().resolve((Path) event.context()));
+                        }
+                    }
+                    if (!key.reset()) {
+                        logger.error(String.format("%s can no longer be watched", dir));
+                        return;
+                    }
+                }
+                checkPending();
+            }
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (final ClosedWatchServiceException ignored) {
+            // close() was called
+        }
+    }
+
+    private void observe(final Path path) {
+        if (ignore.test(path.toFile())) { return; }
+        synchronized (pending) {
+            // the measurement happens in checkPending; a fresh observation always counts as a change
+            pending.put(path, new Observation(-1, -1, System.currentTimeMillis()));
+        }
+    }
+
+    private void checkPending() {
+        final Collection<Path> paths;
+        synchronized (pending) {
+            paths = new ArrayList<>(pending.keySet());
+        }
+        final long now = System.currentTimeMillis();
+        for (final Path path: paths) {
+            final Observation current = measure(path, now);
+            synchronized (pending) {
+                final Observation previous = pending.get(path);
+                if (current == null) {
+                    // deleted before it settled
+                    pending.remove(path);
+                } else if (current.size != previous.size || current.lastModified != previous.lastModified) {
+                    pending.put(path, current);
+                } else if (now - previous.since >= settleMs) {
+                    pending.remove(path);
+                    settled.add(path.toFile());
+                }
+            }
+        }
+    }
+
+    /**
+     * Measures the total size and latest modification time of a file, or of everything under a directory
+     * @return the measurement, or null if the path no longer exists
+     */
+    private Observation measure(final Path path, final long now) {
+        final long[] sizeAndModified = new long[2];
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                    sizeAndModified[0] += attrs.size();
+                    sizeAndModified[1] = Math.max(sizeAndModified[1], attrs.lastModifiedTime().toMillis());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult preVisitDirectory(final Path subDir, final BasicFileAttributes attrs) {
+                    sizeAndModified[1] = Math.max(sizeAndModified[1], attrs.lastModifiedTime().toMillis());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (final IOException ioe) {
+            if (!Files.exists(path)) { return null; }
+            // e.g. a file that's locked while being copied; treat it as still changing
+            return new Observation(-1, now, now);
+        }
+        return new Observation(sizeAndModified[0], sizeAndModified[1], now);
+    }
+
+    private static class Observation {
+        private final long size;
+        private final long lastModified;
+        /**
+         * when this size and modification time were first seen
+         */
+        private final long since;
+
+        Observation(final long size, final long lastModified, final long since) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.since = since;
+        }
+    }
+}
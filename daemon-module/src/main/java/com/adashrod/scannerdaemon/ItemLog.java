@@ -0,0 +1,89 @@
+package com.adashrod.scannerdaemon;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Buffers the log messages for one scanned item (a BD dir or a container file) so that they can be written as one
+ * contiguous block. When more than one demux worker is running, messages written straight to the logger by different
+ * items would otherwise interleave.
+ */
+class ItemLog {
+    /**
+     * shared by all item logs so that two blocks never get written at the same time
+     */
+    private static final Object flushLock = new Object();
+
+    private final Logger logger;
+    private final List<Message> messages = new ArrayList<>();
+    private final List<String> tentativeMessages = new ArrayList<>();
+
+    ItemLog(final Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Adds a message that should only be written if scanning actually happens, e.g. "skipping" or "scanning" messages.
+     * Tentative messages are written by {@link #flush()} and dropped by {@link #flushDefinite()}.
+     * @param message info-level message
+     */
+    void tentative(final String message) {
+        tentativeMessages.add(message);
+    }
+
+    void info(final String message) {
+        add(Level.INFO, message);
+    }
+
+    void warn(final String message) {
+        add(Level.WARN, message);
+    }
+
+    void error(final String message) {
+        add(Level.ERROR, message);
+    }
+
+    /**
+     * Writes all buffered messages, tentative ones first, as one block and clears the buffer
+     */
+    void flush() {
+        synchronized (flushLock) {
+            tentativeMessages.forEach(logger::info);
+            writeDefinite();
+        }
+        tentativeMessages.clear();
+    }
+
+    /**
+     * Writes all buffered messages that aren't tentative as one block and clears the buffer. Tentative messages are
+     * discarded.
+     */
+    void flushDefinite() {
+        synchronized (flushLock) {
+            writeDefinite();
+        }
+        tentativeMessages.clear();
+    }
+
+    private void add(final Level level, final String message) {
+        messages.add(new Message(level, message));
+    }
+
+    private void writeDefinite() {
+        messages.forEach((final Message message) -> logger.log(message.level, message.text));
+        messages.clear();
+    }
+
+    private static class Message {
+        private final Level level;
+        private final String text;
+
+        Message(final Level level, final String text) {
+            this.level = level;
+            this.text = text;
+        }
+    }
+}
@@ -1,44 +1,113 @@
 package com.adashrod.scannerdaemon;
 
+import org.apache.log4j.Logger;
+
 import java.io.File;
-import java.net.MalformedURLException;
+import java.io.IOException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.util.Collection;
-import java.util.HashSet;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Creates the class loaders for plugin jars. Each plugin jar gets its own class loader so that it can be replaced or
+ * removed at runtime, and so that its classes can be garbage collected once the loader is closed. Jars without plugins
+ * are treated as dependencies and share one class loader, which is the parent of every plugin jar's loader.
+ *
+ * Jars are loaded from shadow copies in cache/plugin-jars rather than from the plugins directory, so that a jar can be
+ * overwritten while the old version is still loaded.
+ */
 public class JarLoader {
-    private static final Collection<URL> addedJars = new HashSet<>();
-    private static PluginClassLoader pluginClassLoader;
+    private final Logger logger = Logger.getLogger(JarLoader.class);
+
+    private final File shadowDir;
+    private final AtomicLong loads = new AtomicLong();
+    private PluginClassLoader dependencyClassLoader;
+
+    /**
+     * @param shadowDir where the copies of loaded jars are kept; anything left there from a previous run is deleted
+     */
+    public JarLoader(final File shadowDir) {
+        this.shadowDir = shadowDir;
+        final File[] stale = shadowDir.listFiles();
+        if (stale != null) {
+            for (final File file: stale) { file.delete(); }
+        }
+        dependencyClassLoader = new PluginClassLoader(new URL[0], ClassLoader.getSystemClassLoader());
+    }
+
+    /**
+     * Creates a class loader for a plugin jar whose parent is the shared dependency loader
+     * @param jar      the plugin jar
+     * @param checksum the jar's checksum, used to name its shadow copy
+     * @return the new class loader; close it with {@link #unload(URLClassLoader)}
+     * @throws IOException if the jar can't be copied
+     */
+    public URLClassLoader loadPluginJar(final File jar, final String checksum) throws IOException {
+        return new PluginClassLoader(new URL[]{shadowCopy(jar, checksum).toURI().toURL()}, dependencyClassLoader);
+    }
 
     /**
-     * Loads the jar into the runtime, making its classes available for use
-     * @param file jar file to load
-     * @return true if the jar was loaded; false if it had been loaded previously
+     * Makes the classes in a dependency jar available to every plugin jar loaded afterward
+     * @param jar      the dependency jar
+     * @param checksum the jar's checksum, used to name its shadow copy
+     * @throws IOException if the jar can't be copied
      */
-    public static boolean addJarFile(final File file) throws MalformedURLException {
-        return addJarUrl(file.toURI().toURL());
+    public void addDependencyJar(final File jar, final String checksum) throws IOException {
+        dependencyClassLoader.addURL(shadowCopy(jar, checksum).toURI().toURL());
     }
 
     /**
-     * Loads the jar into the runtime, making its classes available for use
-     * @param url url of jar file to load
-     * @return true if the jar was loaded; false if it had been loaded previously
+     * Starts a new, empty shared dependency loader for the plugin jars loaded from now on
+     * @return the old one, to be closed with {@link #unload(URLClassLoader)} once every plugin jar loader that has it as
+     * their parent has been unloaded
      */
-    public static boolean addJarUrl(final URL url) {
-        if (addedJars.contains(url)) { return false; }
-
-        if (pluginClassLoader == null) {
-            pluginClassLoader = new PluginClassLoader(new URL[]{url}, ClassLoader.getSystemClassLoader());
-            Thread.currentThread().setContextClassLoader(pluginClassLoader);
-        } else {
-            pluginClassLoader.addURL(url);
+    public URLClassLoader resetDependencies() {
+        final URLClassLoader old = dependencyClassLoader;
+        dependencyClassLoader = new PluginClassLoader(new URL[0], ClassLoader.getSystemClassLoader());
+        return old;
+    }
+
+    /**
+     * Closes a class loader created by this and deletes the shadow copies of its jars. Its classes can be collected once
+     * nothing refers to them anymore.
+     * @param classLoader a class loader from {@link #loadPluginJar(File, String)}
+     */
+    public void unload(final URLClassLoader classLoader) {
+        final URL[] urls = classLoader.getURLs();
+        try {
+            classLoader.close();
+        } catch (final IOException ioe) {
+            logger.warn(String.format("Failed to close class loader for %s: %s", Arrays.toString(urls), ioe.getMessage()));
+        }
+        for (final URL url: urls) {
+            try {
+                new File(url.toURI()).delete();
+            } catch (final URISyntaxException ignored) {
+                // only ever holds file URLs made by shadowCopy
+            }
         }
-        addedJars.add(url);
-        return true;
+    }
+
+    /**
+     * Each load gets its own copy, since a loader that's being unloaded can still have the copy of an earlier load of
+     * the same jar open, and deletes it once it's closed
+     */
+    private File shadowCopy(final File jar, final String checksum) throws IOException {
+        shadowDir.mkdirs();
+        final File shadow = new File(shadowDir, String.format("%s-%d-%s", checksum, loads.incrementAndGet(), jar.getName()));
+        Files.copy(jar.toPath(), shadow.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return shadow;
     }
 
     private static class PluginClassLoader extends URLClassLoader {
+        static {
+            ClassLoader.registerAsParallelCapable();
+        }
+
         PluginClassLoader(final URL[] urls, final ClassLoader parent) {
             super(urls, parent);
         }
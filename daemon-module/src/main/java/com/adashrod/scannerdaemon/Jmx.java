@@ -0,0 +1,60 @@
+package com.adashrod.scannerdaemon;
+
+import org.apache.log4j.Logger;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Registers the daemon's MBeans with the platform MBean server, under the com.adashrod.scannerdaemon domain. Failing to
+ * register only costs visibility, so failures are logged rather than thrown.
+ */
+final class Jmx {
+    static final String DOMAIN = "com.adashrod.scannerdaemon";
+
+    private static final Logger logger = Logger.getLogger(Jmx.class);
+
+    private Jmx() {}
+
+    /**
+     * Registers a bean, replacing any bean already registered under the same name, e.g. by an earlier version of a
+     * reloaded plugin
+     * @param type           the "type" key of the object name
+     * @param name           the "name" key of the object name, or null for beans that there's only one of
+     * @param bean           the bean
+     * @param mbeanInterface the management interface that bean implements
+     * @return the name the bean was registered under, or null if registering failed
+     */
+    static <T> ObjectName register(final String type, final String name, final T bean, final Class<T> mbeanInterface) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            // plain names read better in jconsole, so only quote ones with characters that aren't allowed as they are
+            final String nameKey = name == null ? "" : ",name=" + (name.matches("[\\w.$-]+") ? name : ObjectName.quote(name));
+            final ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + nameKey);
+            if (server.isRegistered(objectName)) { server.unregisterMBean(objectName); }
+            server.registerMBean(new StandardMBean(bean, mbeanInterface), objectName);
+            return objectName;
+        } catch (final JMException jme) {
+            logger.warn(String.format("Failed to register MBean %s %s: %s", type, name, jme.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * @param objectName a name returned by {@link #register(String, String, Object, Class)}, or null
+     */
+    static void unregister(final ObjectName objectName) {
+        if (objectName == null) { return; }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (final InstanceNotFoundException ignored) {
+            // replaced by another bean and unregistered with it
+        } catch (final JMException jme) {
+            logger.warn(String.format("Failed to unregister MBean %s: %s", objectName, jme.getMessage()));
+        }
+    }
+}
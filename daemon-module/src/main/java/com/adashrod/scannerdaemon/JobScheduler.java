@@ -0,0 +1,385 @@
+package com.adashrod.scannerdaemon;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides the order in which BD dirs and files are demuxed. Each cycle, the entries that need scanning are handed to
+ * {@link #startRound(Collection)}, and the demux workers take them one at a time from {@link #next()}, which always
+ * returns the entry that should go first at that moment:
+ * <ol>
+ *     <li>entries with a higher manual priority (see {@link #bump(String, int)}) go first</li>
+ *     <li>then entries that have been waiting longer than the max wait, oldest first, so that a big disc isn't put off
+ *     forever by a steady stream of small files</li>
+ *     <li>then the rest, in the order of the {@link Policy}</li>
+ * </ol>
+ * Every entry that isn't done yet is kept in a queue persisted in cache/jobQueue.txt, so when an entry was first seen,
+ * its size and its priority survive a restart. An entry leaves the queue once it's been demuxed or abandoned.
+ *
+ * Entries are also limited by device: an entry is only started if fewer than the configured number of entries are
+ * running with their source on the same FileStore, and likewise for the output dir's FileStore. Entries on busy devices
+ * are passed over for the next one in order that isn't, so discs on different drives are demuxed in parallel without
+ * any one drive seeking between several of them.
+ */
+class JobScheduler implements JobSchedulerMBean {
+    private static final String HEADER = "v1";
+
+    /**
+     * Orders entries that have the same priority and haven't waited too long
+     */
+    enum Policy {
+        /**
+         * smallest on disk first, so that many small files aren't held up by one big disc
+         */
+        SMALLEST,
+        /**
+         * first seen first
+         */
+        OLDEST
+    }
+
+    private final Logger logger = Logger.getLogger(JobScheduler.class);
+
+    private final File dir;
+    private final File queueFile;
+    private final Policy policy;
+    private final long maxWaitMs;
+    private final File outputDir;
+    private final int maxPerSourceDevice;
+    private final int maxPerOutputDevice;
+    /**
+     * every entry that isn't done yet, by name
+     */
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+    /**
+     * the entries handed to the current round that haven't been taken yet
+     */
+    private final Map<Job, File> round = new HashMap<>();
+    /**
+     * FileStore -> how many running entries use it
+     */
+    private final Map<FileStore, Integer> busy = new HashMap<>();
+    /**
+     * running entries by name -> the FileStores each one counts against
+     */
+    private final Map<String, Map<FileStore, Integer>> running = new HashMap<>();
+    private boolean dirty;
+
+    /**
+     * @param dir                the directory being scanned
+     * @param queueFile          where the queue is persisted between runs
+     * @param policy             the order of entries with the same priority that haven't waited too long
+     * @param maxWaitMs          how long an entry can wait before it goes ahead of the policy order, 0 for no limit
+     * @param outputDir          where demuxed tracks are written
+     * @param maxPerSourceDevice how many entries can run at once with their source on the same FileStore, 0 for no limit
+     * @param maxPerOutputDevice how many entries can run at once while the output dir's FileStore is in use, 0 for no limit
+     */
+    JobScheduler(final File dir, final File queueFile, final Policy policy, final long maxWaitMs, final File outputDir,
+            final int maxPerSourceDevice, final int maxPerOutputDevice) {
+        this.dir = dir;
+        this.queueFile = queueFile;
+        this.policy = policy;
+        this.maxWaitMs = maxWaitMs;
+        this.outputDir = outputDir;
+        this.maxPerSourceDevice = maxPerSourceDevice;
+        this.maxPerOutputDevice = maxPerOutputDevice;
+        load();
+    }
+
+    /**
+     * Starts a round with the given entries, replacing any entries of the previous round that weren't taken. Entries not
+     * queued yet are added; the size of an entry that changed since it was queued is measured again. Entries that were
+     * deleted are dropped from the queue. Sizes are measured without holding the scheduler's lock, so workers still
+     * finishing the previous round aren't held up by a walk of a large BD dir.
+     * @param files BD dirs and files that need scanning
+     */
+    void startRound(final Collection<File> files) {
+        final Map<String, Job> known = new HashMap<>();
+        final List<String> queued;
+        synchronized (this) {
+            round.clear();
+            queued = new ArrayList<>(jobs.keySet());
+            for (final Job job: jobs.values()) {
+                known.put(job.name, new Job(job.name, job.size, job.lastModified, job.firstSeen, job.priority));
+            }
+        }
+        final List<String> deleted = new ArrayList<>();
+        for (final String name: queued) {
+            if (!new File(dir, name).exists()) { deleted.add(name); }
+        }
+        final FileStore outputStore = fileStoreOf(outputDir);
+        final List<Measurement> measurements = new ArrayList<>();
+        for (final File file: files) {
+            final String name = LibraryWalker.relativeName(dir, file);
+            final long lastModified = file.lastModified();
+            final Job job = known.get(name);
+            final long size = job == null || job.size < 0 || job.lastModified != lastModified ? sizeOf(file) : job.size;
+            measurements.add(new Measurement(file, name, size, lastModified, fileStoreOf(file)));
+        }
+
+        synchronized (this) {
+            round.clear();
+            jobs.keySet().removeAll(deleted);
+            final long now = System.currentTimeMillis();
+            for (final Measurement measurement: measurements) {
+                final Job job = jobs.computeIfAbsent(measurement.name, (final String name) -> new Job(name, -1, -1, now, 0));
+                job.size = measurement.size;
+                job.lastModified = measurement.lastModified;
+                // a device that's both the source and the output gets the lower of the two limits
+                job.devices.clear();
+                if (measurement.sourceStore != null && maxPerSourceDevice > 0) {
+                    job.devices.put(measurement.sourceStore, maxPerSourceDevice);
+                }
+                if (outputStore != null && maxPerOutputDevice > 0) {
+                    job.devices.merge(outputStore, maxPerOutputDevice, Math::min);
+                }
+                round.put(job, measurement.file);
+            }
+            dirty = true;
+        }
+    }
+
+    /**
+     * Takes the entry that should be scanned next from the current round, skipping entries whose devices are busy. If
+     * every entry left is waiting for a busy device, waits for a running entry to be released.
+     * @return the entry, to be passed to {@link #release(File)} once it's been scanned, or null if every entry of the
+     * round has been taken
+     * @throws InterruptedException if interrupted while waiting for a device
+     */
+    synchronized File next() throws InterruptedException {
+        while (!round.isEmpty()) {
+            final long now = System.currentTimeMillis();
+            Job best = null;
+            for (final Job job: round.keySet()) {
+                if (isStartable(job) && (best == null || compare(job, best, now) < 0)) { best = job; }
+            }
+            if (best != null) {
+                final Map<FileStore, Integer> devices = new HashMap<>(best.devices);
+                devices.keySet().forEach((final FileStore store) -> busy.merge(store, 1, Integer::sum));
+                running.put(best.name, devices);
+                return round.remove(best);
+            }
+            wait();
+        }
+        return null;
+    }
+
+    /**
+     * Frees the devices of an entry that was taken from {@link #next()} and is done being scanned for now
+     * @param file the entry
+     */
+    synchronized void release(final File file) {
+        final Map<FileStore, Integer> devices = running.remove(LibraryWalker.relativeName(dir, file));
+        if (devices == null) { return; }
+        devices.keySet().forEach((final FileStore store) -> busy.computeIfPresent(store, (final FileStore key, final Integer count) -> {
+            return count > 1 ? count - 1 : null;
+        }));
+        notifyAll();
+    }
+
+    /**
+     * Removes an entry from the queue once there's nothing left to do for it
+     * @param file an entry that was scanned
+     * @param done true if the entry was demuxed or abandoned
+     */
+    synchronized void finished(final File file, final boolean done) {
+        if (done && jobs.remove(LibraryWalker.relativeName(dir, file)) != null) { dirty = true; }
+    }
+
+    /**
+     * Writes the queue if anything changed since it was last written
+     */
+    synchronized void save() {
+        if (!dirty) { return; }
+        final File tempFile = new File(queueFile.getPath() + ".tmp");
+        queueFile.getAbsoluteFile().getParentFile().mkdirs();
+        try {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile, false), StandardCharsets.UTF_8))) {
+                writer.write(HEADER + "\n");
+                for (final Job job: jobs.values()) {
+                    writer.write(String.format("%s\t%d\t%d\t%d\t%d\n", job.name, job.size, job.lastModified, job.firstSeen,
+                        job.priority));
+                }
+            }
+            Files.move(tempFile.toPath(), queueFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (final IOException ioe) {
+            logger.warn(String.format("Failed to write job queue %s: %s", queueFile, ioe.getMessage()));
+        }
+    }
+
+    @Override
+    public String getPolicy() {
+        return policy.name().toLowerCase();
+    }
+
+    @Override
+    public synchronized String[] getQueue() {
+        final long now = System.currentTimeMillis();
+        final List<Job> ordered = new ArrayList<>(jobs.values());
+        ordered.sort((final Job a, final Job b) -> compare(a, b, now));
+        return ordered.stream().map((final Job job) -> String.format("%s: priority=%d, size=%dMB, waiting=%dh%s", job.name,
+            job.priority, job.size >> 20, (now - job.firstSeen) / 3_600_000, isStarved(job, now) ? " (overdue)" : ""))
+            .toArray(String[]::new);
+    }
+
+    @Override
+    public synchronized String[] getBusyDevices() {
+        return busy.entrySet().stream()
+            .map((final Map.Entry<FileStore, Integer> entry) -> String.format("%s: %d running", entry.getKey(), entry.getValue()))
+            .toArray(String[]::new);
+    }
+
+    @Override
+    public synchronized void bump(final String name, final int priority) {
+        if (!new File(dir, name).exists()) { throw new IllegalArgumentException(String.format("%s isn't in %s", name, dir)); }
+        jobs.computeIfAbsent(name, (final String n) -> new Job(n, -1, -1, System.currentTimeMillis(), 0)).priority = priority;
+        logger.info(String.format("priority of %s set to %d", name, priority));
+        dirty = true;
+        save();
+    }
+
+    private int compare(final Job a, final Job b, final long now) {
+        if (a.priority != b.priority) { return Integer.compare(b.priority, a.priority); }
+        final boolean aStarved = isStarved(a, now), bStarved = isStarved(b, now);
+        if (aStarved != bStarved) { return aStarved ? -1 : 1; }
+        if (aStarved || policy == Policy.OLDEST) {
+            final int byAge = Long.compare(a.firstSeen, b.firstSeen);
+            if (byAge != 0) { return byAge; }
+        } else {
+            final int bySize = Long.compare(a.size, b.size);
+            if (bySize != 0) { return bySize; }
+        }
+        return a.name.compareTo(b.name);
+    }
+
+    private boolean isStartable(final Job job) {
+        return job.devices.entrySet().stream().allMatch((final Map.Entry<FileStore, Integer> device) -> {
+            return busy.getOrDefault(device.getKey(), 0) < device.getValue();
+        });
+    }
+
+    /**
+     * @return the FileStore of a file, or null if it can't be determined, in which case the file isn't limited by device
+     */
+    private FileStore fileStoreOf(final File file) {
+        try {
+            return Files.getFileStore(file.toPath());
+        } catch (final IOException ioe) {
+            logger.debug(String.format("couldn't find the device of %s: %s", file, ioe.getMessage()));
+            return null;
+        }
+    }
+
+    private boolean isStarved(final Job job, final long now) {
+        return maxWaitMs > 0 && now - job.firstSeen >= maxWaitMs;
+    }
+
+    /**
+     * @return the size of a file, or the total size of the files in a BD dir
+     */
+    private long sizeOf(final File file) {
+        if (!file.isDirectory()) { return file.length(); }
+        final long[] size = new long[1];
+        try {
+            Files.walkFileTree(file.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(final Path path, final BasicFileAttributes attrs) {
+                    size[0] += attrs.size();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path path, final IOException ioe) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (final IOException ioe) {
+            logger.debug(String.format("couldn't measure %s: %s", file.getName(), ioe.getMessage()));
+        }
+        return size[0];
+    }
+
+    private void load() {
+        if (!queueFile.exists()) { return; }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(queueFile), StandardCharsets.UTF_8))) {
+            if (!HEADER.equals(reader.readLine())) { return; }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split("\t", -1);
+                if (parts.length != 5) { continue; }
+                jobs.put(parts[0], new Job(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+                    Integer.parseInt(parts[4])));
+            }
+        } catch (final IOException | RuntimeException e) {
+            // entries get queued again as they're found, only losing how long they've waited
+            logger.warn(String.format("Ignoring unreadable job queue %s: %s", queueFile, e));
+            jobs.clear();
+        }
+    }
+
+    private static class Job {
+        private final String name;
+        /**
+         * -1 until measured
+         */
+        private long size;
+        private long lastModified;
+        private final long firstSeen;
+        private int priority;
+        /**
+         * FileStore -> how many entries can use it at once, for the FileStores this entry would use; not persisted
+         */
+        private final Map<FileStore, Integer> devices = new HashMap<>();
+
+        Job(final String name, final long size, final long lastModified, final long firstSeen, final int priority) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.firstSeen = firstSeen;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * what startRound found out about an entry before taking the lock
+     */
+    private static class Measurement {
+        private final File file;
+        private final String name;
+        private final long size;
+        private final long lastModified;
+        private final FileStore sourceStore;
+
+        Measurement(final File file, final String name, final long size, final long lastModified, final FileStore sourceStore) {
+            this.file = file;
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.sourceStore = sourceStore;
+        }
+    }
+}
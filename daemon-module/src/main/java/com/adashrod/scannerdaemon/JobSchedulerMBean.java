@@ -0,0 +1,29 @@
+package com.adashrod.scannerdaemon;
+
+/**
+ * JMX view and controls of the {@link JobScheduler}
+ */
+public interface JobSchedulerMBean {
+    /**
+     * @return "smallest" or "oldest"
+     */
+    String getPolicy();
+
+    /**
+     * @return every queued BD dir and file in the order they'd be started now, one description per entry
+     */
+    String[] getQueue();
+
+    /**
+     * @return each FileStore that entries being scanned right now are using, with how many are using it
+     */
+    String[] getBusyDevices();
+
+    /**
+     * Moves an entry ahead of every entry with a lower priority, regardless of size or age. Entries start at priority 0.
+     * The entry doesn't have to be queued yet; the priority is kept until the entry is done or deleted.
+     * @param name     name of the BD dir or file in the directory being scanned
+     * @param priority higher goes first
+     */
+    void bump(String name, int priority);
+}
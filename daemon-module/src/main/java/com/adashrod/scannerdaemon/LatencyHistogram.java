@@ -0,0 +1,121 @@
+package com.adashrod.scannerdaemon;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram with logarithmic buckets: values are recorded in microseconds, and each power of two is split into
+ * {@link #SUB_BUCKETS} buckets, so percentiles are off by at most 1/16 of the value while the whole histogram is a fixed
+ * array of under a thousand counters. Recording is lock-free except when a new maximum is set, so it can be shared by
+ * all demux workers.
+ */
+class LatencyHistogram implements LatencyHistogramMBean {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private volatile long maxMicros;
+    private volatile String slowestItem;
+
+    /**
+     * @param nanos how long something took
+     * @param item  what took that long, e.g. a file name, or null
+     */
+    void record(final long nanos, final String item) {
+        final long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        buckets.incrementAndGet(bucketOf(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        if (micros > maxMicros) {
+            synchronized (this) {
+                if (micros > maxMicros) {
+                    maxMicros = micros;
+                    slowestItem = item;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency that percentile of recorded latencies are at or below, in ms
+     */
+    double getPercentileMs(final double percentile) {
+        final long n = count.get();
+        if (n == 0) { return 0; }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += buckets.get(bucket);
+            if (seen >= rank) { return Math.min(midpointOf(bucket), maxMicros) / 1000.0; }
+        }
+        return maxMicros / 1000.0;
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public double getMeanMs() {
+        final long n = count.get();
+        return n == 0 ? 0 : totalMicros.get() / 1000.0 / n;
+    }
+
+    @Override
+    public double getP50Ms() {
+        return getPercentileMs(50);
+    }
+
+    @Override
+    public double getP99Ms() {
+        return getPercentileMs(99);
+    }
+
+    @Override
+    public double getMaxMs() {
+        return maxMicros / 1000.0;
+    }
+
+    @Override
+    public String getSlowestItem() {
+        return slowestItem;
+    }
+
+    @Override
+    public synchronized void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) { buckets.set(bucket, 0); }
+        count.set(0);
+        totalMicros.set(0);
+        maxMicros = 0;
+        slowestItem = null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d, p50=%.1fms, p99=%.1fms, max=%.1fms", getCount(), getP50Ms(), getP99Ms(), getMaxMs());
+    }
+
+    /**
+     * values below {@link #SUB_BUCKETS} get a bucket each; above that, the top {@link #SUB_BUCKET_BITS} bits after the
+     * highest one pick the bucket within the value's power of two
+     */
+    private static int bucketOf(final long micros) {
+        if (micros < SUB_BUCKETS) { return (int) micros; }
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        final int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long midpointOf(final int bucket) {
+        if (bucket < SUB_BUCKETS) { return bucket; }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowerBound + (1L << shift) / 2;
+    }
+}
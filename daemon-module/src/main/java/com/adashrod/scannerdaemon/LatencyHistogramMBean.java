@@ -0,0 +1,29 @@
+package com.adashrod.scannerdaemon;
+
+/**
+ * JMX view of a {@link LatencyHistogram}. Percentiles are accurate to within about 6%.
+ */
+public interface LatencyHistogramMBean {
+    /**
+     * @return how many latencies were recorded
+     */
+    long getCount();
+
+    double getMeanMs();
+
+    double getP50Ms();
+
+    double getP99Ms();
+
+    double getMaxMs();
+
+    /**
+     * @return the item that took {@link #getMaxMs()}, e.g. a file name, or null if nothing was recorded
+     */
+    String getSlowestItem();
+
+    /**
+     * Forgets everything recorded so far
+     */
+    void reset();
+}
@@ -0,0 +1,117 @@
+package com.adashrod.scannerdaemon;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Predicate;
+
+/**
+ * Finds the entries to scan in a library that's organized in nested directories, e.g. Studio/Year/Disc. Every file is
+ * an entry, and so is every directory that looks like a disc, i.e. has a BDMV directory, which isn't walked into.
+ * Other directories are walked into until the max depth, where the directories that are left become entries
+ * themselves, the same as the direct children of the directory being scanned when the depth is 1.
+ *
+ * Each directory is listed by its own fork/join task, so subtrees are walked in parallel; listing a directory and
+ * reading the attributes of its entries is mostly waiting on the file system, so the pool has more threads than cores.
+ */
+class LibraryWalker {
+    private static final ForkJoinPool POOL = new ForkJoinPool(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+    private final Logger logger = Logger.getLogger(LibraryWalker.class);
+
+    private final File root;
+    private final int maxDepth;
+    private final Predicate<File> skip;
+
+    /**
+     * @param root     the directory being scanned
+     * @param maxDepth how deep entries can be, 1 for only the direct children of root
+     * @param skip     directories that aren't walked into even above the max depth, e.g. the output dir
+     */
+    LibraryWalker(final File root, final int maxDepth, final Predicate<File> skip) {
+        this.root = root;
+        this.maxDepth = maxDepth;
+        this.skip = skip;
+    }
+
+    /**
+     * @return the entries, by their path relative to root with '/' separators, e.g. "Studio/2001/DISC", and their
+     * attributes. An unreadable subdirectory is left out, with a warning.
+     * @throws IOException if root itself can't be listed
+     */
+    Map<String, BasicFileAttributes> walk() throws IOException {
+        final Map<String, BasicFileAttributes> entries = new ConcurrentHashMap<>();
+        final WalkTask rootTask = new WalkTask(root.toPath(), "", maxDepth, entries);
+        POOL.invoke(rootTask);
+        if (rootTask.failure != null) { throw rootTask.failure; }
+        return entries;
+    }
+
+    /**
+     * @param root the directory being scanned
+     * @param file root or anything under it
+     * @return file's path relative to root with '/' separators, which is just the name for a direct child of root
+     */
+    static String relativeName(final File root, final File file) {
+        final Path relative = root.getAbsoluteFile().toPath().relativize(file.getAbsoluteFile().toPath());
+        return relative.getNameCount() == 1 ? relative.toString() : relative.toString().replace(File.separatorChar, '/');
+    }
+
+    private class WalkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final String prefix;
+        private final int depthLeft;
+        private final Map<String, BasicFileAttributes> entries;
+        private IOException failure;
+
+        WalkTask(final Path dir, final String prefix, final int depthLeft, final Map<String, BasicFileAttributes> entries) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.depthLeft = depthLeft;
+            this.entries = entries;
+        }
+
+        @Override
+        protected void compute() {
+            final List<WalkTask> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (final Path path: stream) {
+                    final String name = prefix + path.getFileName();
+                    final BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                    } catch (final IOException ioe) {
+                        // deleted since it was listed
+                        continue;
+                    }
+                    if (attrs.isDirectory() && depthLeft > 1 && !Files.isDirectory(path.resolve("BDMV")) && !skip.test(path.toFile())) {
+                        subtasks.add(new WalkTask(path, name + "/", depthLeft - 1, entries));
+                    } else {
+                        entries.put(name, attrs);
+                    }
+                }
+            } catch (final IOException ioe) {
+                if (prefix.isEmpty()) {
+                    failure = ioe;
+                } else {
+                    logger.warn(String.format("Failed to list %s: %s", dir, ioe.getMessage()));
+                }
+                return;
+            }
+            invokeAll(subtasks);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.adashrod.scannerdaemon;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads a process's output a line at a time as it arrives, instead of collecting all of it into one string like
+ * {@link com.adashrod.mkvscanner.util.StreamConsumer}. Only the last few lines are kept, for error reports; anything
+ * else has to be picked out by a line listener as the lines go by. Output that's passed to {@link #of(String, int)} has
+ * already been collected in full by whoever collected it, so all that bounds is what's kept from it afterwards, e.g.
+ * what gets logged.
+ *
+ * Progress output such as eac3to's, which rewrites a percentage in place with backspaces or carriage returns, is
+ * tracked as it's written, so {@link #getPercentComplete()} is current while the process runs, and doesn't pile up
+ * into one huge line. Lines longer than {@link #MAX_LINE_CHARS} are cut short.
+ */
+public class LineStreamConsumer extends Thread {
+    public static final int MAX_LINE_CHARS = 1000;
+
+    private final Reader reader;
+    private final int maxLines;
+    private final Consumer<String> lineListener;
+    private final Deque<String> lastLines = new ArrayDeque<>();
+    private long lineCount;
+    private volatile int percentComplete = -1;
+
+    /**
+     * @param in       the stream to read, e.g. {@link Process#getInputStream()}
+     * @param maxLines how many of the last lines to keep
+     */
+    public LineStreamConsumer(final InputStream in, final int maxLines) {
+        this(in, maxLines, null);
+    }
+
+    /**
+     * @param in           the stream to read, e.g. {@link Process#getInputStream()}
+     * @param maxLines     how many of the last lines to keep
+     * @param lineListener called with each line on this thread as it's read, or null
+     */
+    public LineStreamConsumer(final InputStream in, final int maxLines, final Consumer<String> lineListener) {
+        this(new InputStreamReader(in, Charset.defaultCharset()), maxLines, lineListener);
+    }
+
+    private LineStreamConsumer(final Reader reader, final int maxLines, final Consumer<String> lineListener) {
+        this.reader = reader;
+        this.maxLines = maxLines;
+        this.lineListener = lineListener;
+        setDaemon(true);
+    }
+
+    /**
+     * Reads output that was already collected into a string, e.g. {@link com.adashrod.mkvscanner.DemuxerException#getDemuxerOutput()},
+     * on the calling thread
+     * @param output   the output, or null
+     * @param maxLines how many of the last lines to keep
+     * @return a consumer that has read all of output
+     */
+    public static LineStreamConsumer of(final String output, final int maxLines) {
+        return of(output, maxLines, null);
+    }
+
+    /**
+     * Reads output that was already collected into a string on the calling thread
+     * @param output       the output, or null
+     * @param maxLines     how many of the last lines to keep
+     * @param lineListener called with each line as it's read, or null
+     * @return a consumer that has read all of output
+     */
+    public static LineStreamConsumer of(final String output, final int maxLines, final Consumer<String> lineListener) {
+        final LineStreamConsumer consumer = new LineStreamConsumer(new InputStreamReader(new ByteArrayInputStream(
+            (output != null ? output : "").getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8), maxLines, lineListener);
+        consumer.run();
+        return consumer;
+    }
+
+    @Override
+    public void run() {
+        final StringBuilder line = new StringBuilder();
+        boolean truncated = false;
+        // a carriage return is either the end of a Windows line ending or the start of a rewrite of the line
+        boolean carriageReturn = false;
+        try (Reader in = reader) {
+            int c;
+            while ((c = in.read()) != -1) {
+                // only something other than a line ending after it makes it a rewrite; WMIC, for one, ends its lines
+                // with \r\r\n
+                if (carriageReturn && c != '\n' && c != '\r') { line.setLength(0); }
+                switch (c) {
+                    case '\n':
+                        endLine(line, truncated);
+                        line.setLength(0);
+                        truncated = false;
+                        carriageReturn = false;
+                        break;
+                    case '\r':
+                        carriageReturn = true;
+                        break;
+                    case '\b':
+                        carriageReturn = false;
+                        if (line.length() > 0) { line.setLength(line.length() - 1); }
+                        break;
+                    default:
+                        carriageReturn = false;
+                        if (line.length() < MAX_LINE_CHARS) {
+                            line.append((char) c);
+                            if (c == '%') { parsePercent(line); }
+                        } else {
+                            truncated = true;
+                        }
+                }
+            }
+        } catch (final IOException ignored) {
+            // the process went away; whatever was read so far is kept
+        }
+        if (line.length() > 0) { endLine(line, truncated); }
+    }
+
+    /**
+     * @return the last percentage the output reported, e.g. from "process: 42%", or -1 if it hasn't reported one
+     */
+    public int getPercentComplete() {
+        return percentComplete;
+    }
+
+    /**
+     * @return how many lines have been read
+     */
+    public synchronized long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * @return the last lines read, oldest first, at most the number passed to the constructor
+     */
+    public synchronized List<String> getLastLines() {
+        return new ArrayList<>(lastLines);
+    }
+
+    /**
+     * @return the last lines read, for logging, noting how many lines before them were dropped
+     */
+    public synchronized String getTail() {
+        final StringBuilder tail = new StringBuilder();
+        if (lineCount > lastLines.size()) {
+            tail.append(String.format("[%d earlier line(s) omitted]\n", lineCount - lastLines.size()));
+        }
+        tail.append(String.join("\n", lastLines));
+        return tail.toString();
+    }
+
+    private void endLine(final StringBuilder line, final boolean truncated) {
+        final String text = truncated ? line + "..." : line.toString();
+        synchronized (this) {
+            lineCount++;
+            if (maxLines > 0) {
+                if (lastLines.size() == maxLines) { lastLines.removeFirst(); }
+                lastLines.addLast(text);
+            }
+        }
+        if (lineListener != null) { lineListener.accept(text); }
+    }
+
+    /**
+     * Reads the number right before the '%' that was just appended to line
+     */
+    private void parsePercent(final StringBuilder line) {
+        int start = line.length() - 1;
+        while (start > 0 && Character.isDigit(line.charAt(start - 1)) && line.length() - start <= 3) { start--; }
+        if (start == line.length() - 1) { return; }
+        final int percent = Integer.parseInt(line.substring(start, line.length() - 1));
+        if (percent <= 100) { percentComplete = percent; }
+    }
+}
@@ -22,7 +22,11 @@ public class MockEac3toScanner implements FileScanner {
 
     @Override
     public String exec(final File file, final String... strings) throws DemuxerException, IOException {
-        throw new IllegalArgumentException("not implemented");
+        if (!file.isDirectory() || strings.length > 0) { throw new IllegalArgumentException("not implemented"); }
+        return "1) 00001.mpls, 00001.m2ts, 1:50:00\n" +
+            "2) 00002.mpls, 00002.m2ts, 0:05:00\n" +
+            "3) 00003.mpls, 0:45:00\n" +
+            "   [3+4].m2ts\n";
     }
 
     @Override
@@ -0,0 +1,98 @@
+package com.adashrod.scannerdaemon;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimates how much a demux will write before it runs, so that {@link OutputSpace} can reserve room for it. Demuxing
+ * only copies streams out of their container, so the input's size is an upper bound on the output's: a container file
+ * is estimated by its own size, and a BD title by the size of the clips in BDMV/STREAM that its playlist plays.
+ *
+ * The demuxer's title numbers don't say which playlist in BDMV/PLAYLIST they are, so every title of a BD is estimated
+ * as the playlist that plays the most bytes, capped at the size of all the clips. Estimates for BDs are cached by the
+ * same fingerprint as {@link CachingFileScanner}'s titles.
+ */
+class OutputSizeEstimator {
+    private final Logger logger = Logger.getLogger(OutputSizeEstimator.class);
+
+    /**
+     * fingerprint -> bytes
+     */
+    private final Map<String, Long> titleEstimates = new ConcurrentHashMap<>();
+
+    /**
+     * @param bluRayDir the directory containing the BD
+     * @return an upper bound on the output of demuxing any one title of the BD, or 0 if it can't be estimated
+     */
+    long estimateTitle(final File bluRayDir) {
+        final String fingerprint = CachingFileScanner.fingerprint(bluRayDir);
+        if (fingerprint == null) { return 0; }
+        return titleEstimates.computeIfAbsent(fingerprint, (final String key) -> largestPlaylistBytes(bluRayDir));
+    }
+
+    /**
+     * @param containerFile a file such as an MKV
+     * @return an upper bound on the output of demuxing the file
+     */
+    long estimateFile(final File containerFile) {
+        return containerFile.length();
+    }
+
+    private long largestPlaylistBytes(final File bluRayDir) {
+        final File[] clips = new File(bluRayDir, "BDMV" + File.separator + "STREAM").listFiles(File::isFile);
+        if (clips == null) { return 0; }
+        // clip name without extension, e.g. 00001 for 00001.m2ts -> size
+        final Map<String, Long> clipSizes = new HashMap<>();
+        long allClips = 0;
+        for (final File clip: clips) {
+            final int dot = clip.getName().indexOf('.');
+            clipSizes.put(dot == -1 ? clip.getName() : clip.getName().substring(0, dot), clip.length());
+            allClips += clip.length();
+        }
+        final File[] playlists = new File(bluRayDir, "BDMV" + File.separator + "PLAYLIST").listFiles(File::isFile);
+        long largest = 0;
+        if (playlists != null) {
+            for (final File playlist: playlists) {
+                try {
+                    largest = Math.max(largest, playlistBytes(playlist, clipSizes));
+                } catch (final IOException | RuntimeException e) {
+                    logger.debug(String.format("couldn't read playlist %s: %s", playlist, e));
+                }
+            }
+        }
+        // a playlist that plays part of a clip more than once would count it twice
+        return largest > 0 ? Math.min(largest, allClips) : allClips;
+    }
+
+    /**
+     * Reads the play items of an MPLS playlist
+     * @return the total size of the clips the playlist plays, counting a clip once per play item that refers to it
+     */
+    private static long playlistBytes(final File playlist, final Map<String, Long> clipSizes) throws IOException {
+        final byte[] data = Files.readAllBytes(playlist.toPath());
+        if (data.length < 12 || !new String(data, 0, 4, StandardCharsets.US_ASCII).equals("MPLS")) {
+            throw new IOException("not an MPLS playlist");
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        // PlayList(): length, reserved, number_of_PlayItems, number_of_SubPaths, then the PlayItems
+        int position = buffer.getInt(8);
+        final int playItems = buffer.getShort(position + 6) & 0xffff;
+        position += 10;
+        long bytes = 0;
+        for (int i = 0; i < playItems; i++) {
+            // PlayItem(): length, Clip_Information_file_name, ...
+            final int length = buffer.getShort(position) & 0xffff;
+            bytes += clipSizes.getOrDefault(new String(data, position + 2, 5, StandardCharsets.US_ASCII), 0L);
+            position += 2 + length;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,92 @@
+package com.adashrod.scannerdaemon;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of how much space the demuxes that are running will need on each FileStore, so that a demux only starts
+ * if its estimated output fits in the usable space that the running demuxes haven't claimed yet, with some space left
+ * over. Output that running demuxes have already written counts against both the usable space and their reservations,
+ * so the check errs on the side of waiting.
+ */
+class OutputSpace {
+    private final Logger logger = Logger.getLogger(OutputSpace.class);
+
+    private final long minFreeBytes;
+    /**
+     * FileStore -> bytes reserved by running demuxes
+     */
+    private final Map<FileStore, Long> reserved = new HashMap<>();
+
+    /**
+     * @param minFreeBytes how much space to leave free on top of the reservations
+     */
+    OutputSpace(final long minFreeBytes) {
+        this.minFreeBytes = minFreeBytes;
+    }
+
+    /**
+     * Reserves space for a demux's output
+     * @param outputDir where the output will be written
+     * @param bytes     the estimated size of the output
+     * @return the reservation, to be closed when the demux is done, or null if the output doesn't fit right now. If the
+     * FileStore can't be determined, the demux is let through with an empty reservation, since it's just as likely to
+     * fail without one.
+     */
+    Reservation reserve(final File outputDir, final long bytes) {
+        final FileStore store;
+        final long usable;
+        try {
+            store = Files.getFileStore(outputDir.toPath());
+            usable = store.getUsableSpace();
+        } catch (final IOException ioe) {
+            logger.warn(String.format("couldn't check free space in %s: %s", outputDir, ioe.getMessage()));
+            return new Reservation(null, 0);
+        }
+        synchronized (reserved) {
+            final long alreadyReserved = reserved.getOrDefault(store, 0L);
+            if (usable - alreadyReserved - bytes < minFreeBytes) {
+                logger.debug(String.format("%s: %d MB usable, %d MB reserved, %d MB needed", store, usable >> 20,
+                    alreadyReserved >> 20, bytes >> 20));
+                return null;
+            }
+            reserved.put(store, alreadyReserved + bytes);
+        }
+        return new Reservation(store, bytes);
+    }
+
+    /**
+     * Space reserved for one demux; released by {@link #close()}
+     */
+    class Reservation implements AutoCloseable {
+        private final FileStore store;
+        private final long bytes;
+        private boolean closed;
+
+        private Reservation(final FileStore store, final long bytes) {
+            this.store = store;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (store == null) { return; }
+            synchronized (reserved) {
+                if (closed) { return; }
+                closed = true;
+                final long remaining = reserved.getOrDefault(store, 0L) - bytes;
+                if (remaining > 0) {
+                    reserved.put(store, remaining);
+                } else {
+                    reserved.remove(store);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.adashrod.scannerdaemon;
+
+class Pair<K, V> {
+    private final K key;
+    private final V value;
+
+    public Pair(final K key, final V value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    public V getValue() {
+        return value;
+    }
+
+    public K getKey() {
+        return key;
+    }
+}
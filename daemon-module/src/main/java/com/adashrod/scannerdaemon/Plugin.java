@@ -28,8 +28,20 @@ public abstract class Plugin {
     /**
      * Gets called after a successful scan of a BD dir/mkv file. I.e. it gets called once for an mkv file, and once for
      * a BD dir, no matter how many titles the BD dir has.
+     *
+     * Events are delivered on a thread dedicated to this plugin, one at a time and in the order the scans finished, so
+     * implementations don't need to be thread-safe. For any one scan, plugins with a lower priority value are done
+     * before this is called on plugins with a higher one. A call that takes longer than pluginTimeoutSeconds is
+     * interrupted and abandoned; if it keeps running anyway, this plugin's later events are dropped until it returns.
      * @param scannedFile    the file that was scanned (the mkv file or BD directory)
      * @param generatedFiles all video/audio/chapter/subtitle files generated by the demux
      */
     public abstract void afterScan(File scannedFile, Collection<File> generatedFiles);
+
+    /**
+     * Gets called before the plugin is unloaded, e.g. because its jar was replaced or removed from the plugins directory.
+     * Afterward, the plugin won't get any more events and its classes are unloaded, so implementations should stop any
+     * threads they started and release any resources they hold. Does nothing if not overridden.
+     */
+    public void onUnload() {}
 }
@@ -0,0 +1,37 @@
+package com.adashrod.scannerdaemon;
+
+/**
+ * JMX view of one plugin's event delivery. Latencies only count time spent in the plugin, not time waiting in its queue.
+ */
+public interface PluginCountersMBean {
+    String getPluginName();
+
+    /**
+     * @return how many events are waiting for the plugin
+     */
+    int getQueueDepth();
+
+    long getCalls();
+
+    long getFailures();
+
+    long getTimeouts();
+
+    /**
+     * @return how many events were skipped because a call that timed out still hadn't returned
+     */
+    long getDropped();
+
+    double getMeanLatencyMs();
+
+    double getP50LatencyMs();
+
+    double getP99LatencyMs();
+
+    double getMaxLatencyMs();
+
+    /**
+     * @return the event that took {@link #getMaxLatencyMs()}, e.g. "afterScan movie.mkv"
+     */
+    String getSlowestEvent();
+}
@@ -0,0 +1,368 @@
+package com.adashrod.scannerdaemon;
+
+import com.adashrod.scannerdaemon.jfr.Outcome;
+import com.adashrod.scannerdaemon.jfr.PluginDispatchEvent;
+import org.apache.log4j.Logger;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Delivers plugin events off of the demux workers. Each plugin gets its own thread and a bounded queue, so a slow
+ * plugin only holds up its own events, and each call gets a timeout, so a hung plugin can't hold up anything forever.
+ * A call that times out is interrupted, but it might keep running; since plugins aren't expected to be thread-safe, the
+ * plugin's events are dropped until it returns rather than being delivered alongside it.
+ *
+ * Ordering guarantees:
+ * <ul>
+ *     <li>each plugin receives events one at a time, in the order they were dispatched</li>
+ *     <li>for a given event, plugins with a lower priority value finish (or time out) before plugins with a higher one
+ *     are called; plugins with the same priority are called concurrently</li>
+ * </ul>
+ * When a plugin's queue is full, dispatching blocks until there's room, which slows demuxing down to what the plugins can
+ * keep up with rather than queueing without bound.
+ *
+ * Each plugin's {@link Counters} are registered as an MBean named com.adashrod.scannerdaemon:type=Plugin,name=&lt;plugin&gt;
+ * for as long as the plugin is loaded.
+ */
+class PluginEventBus {
+    /**
+     * how often an idle worker checks if its plugin was retired
+     */
+    private static final long RETIRE_CHECK_MS = 250;
+
+    private final Logger logger = Logger.getLogger(PluginEventBus.class);
+
+    private final int queueSize;
+    private final long timeoutMs;
+    private final Map<Plugin, PluginWorker> workers = new IdentityHashMap<>();
+    /**
+     * afterScan latencies of all plugins together
+     */
+    private final LatencyHistogram afterScanLatency = new LatencyHistogram();
+    /**
+     * held while an event is queued for every plugin, so that every plugin's queue gets events in the same order
+     */
+    private final Object dispatchLock = new Object();
+
+    /**
+     * @param queueSize how many events can wait for each plugin before dispatching blocks
+     * @param timeoutMs how long one call to a plugin may take, 0 for no limit
+     */
+    PluginEventBus(final int queueSize, final long timeoutMs) {
+        this.queueSize = queueSize;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Queues {@link Plugin#afterScan(File, Collection)} for each plugin
+     * @param plugins        the plugins to notify
+     * @param scannedFile    the file that was scanned
+     * @param generatedFiles the files generated by the demux
+     * @throws InterruptedException if interrupted while waiting for room in a plugin's queue
+     */
+    void afterScan(final List<Plugin> plugins, final File scannedFile, final Collection<File> generatedFiles)
+            throws InterruptedException {
+        final Collection<File> files = Collections.unmodifiableCollection(new ArrayList<>(generatedFiles));
+        dispatch(plugins, "afterScan", scannedFile.getName(), (final Plugin plugin) -> plugin.afterScan(scannedFile, files));
+    }
+
+    /**
+     * Stops delivering events to a plugin that's being unloaded. Events already queued for it are still delivered, then
+     * {@link Plugin#onUnload()} is called on its thread and the thread exits. The plugin must no longer be passed to any
+     * dispatch method.
+     * @param plugin the plugin being unloaded
+     * @return completes after onUnload returns, fails or times out
+     */
+    CompletableFuture<Void> retire(final Plugin plugin) {
+        final PluginWorker worker;
+        synchronized (this) {
+            worker = workers.remove(plugin);
+        }
+        if (worker != null) { Jmx.unregister(worker.objectName); }
+        final Event event = new Event("onUnload", null, Plugin::onUnload, CompletableFuture.completedFuture(null));
+        if (worker == null) {
+            // never got any events, so there's no thread to do it on
+            try {
+                plugin.onUnload();
+            } catch (final Exception e) {
+                logger.warn("Failed to fire onUnload event for plugin " + plugin.getClass().getSimpleName(), e);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+        worker.lastEvent = event;
+        return event.finished;
+    }
+
+    /**
+     * Stops every plugin's thread without delivering the events still queued for it, or calling
+     * {@link Plugin#onUnload()}; for daemons that are being thrown away, e.g. in benchmarks
+     */
+    void close() {
+        final List<PluginWorker> closing;
+        synchronized (this) {
+            closing = new ArrayList<>(workers.values());
+            workers.clear();
+        }
+        for (final PluginWorker worker: closing) {
+            Jmx.unregister(worker.objectName);
+            worker.thread.interrupt();
+            worker.caller.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the time each plugin spent in afterScan, for all plugins together
+     */
+    LatencyHistogram getAfterScanLatency() {
+        return afterScanLatency;
+    }
+
+    /**
+     * @return a snapshot of each plugin's counters
+     */
+    synchronized List<Counters> getCounters() {
+        final List<Counters> counters = new ArrayList<>();
+        workers.values().forEach((final PluginWorker worker) -> counters.add(worker.counters));
+        return counters;
+    }
+
+    private void dispatch(final List<Plugin> plugins, final String eventName, final String item, final Consumer<Plugin> call)
+            throws InterruptedException {
+        final TreeMap<Integer, List<PluginWorker>> groups = new TreeMap<>();
+        synchronized (this) {
+            for (final Plugin plugin: plugins) {
+                final PluginWorker worker = workers.computeIfAbsent(plugin, PluginWorker::new);
+                groups.computeIfAbsent(plugin.getPriority(), (final Integer priority) -> new ArrayList<>()).add(worker);
+            }
+        }
+        // each group waits for the previous group to finish this event; queues are FIFO, so events stay in order
+        synchronized (dispatchLock) {
+            CompletableFuture<Void> previous = CompletableFuture.completedFuture(null);
+            for (final List<PluginWorker> group: groups.values()) {
+                final List<CompletableFuture<Void>> finished = new ArrayList<>();
+                for (final PluginWorker worker: group) {
+                    finished.add(worker.enqueue(new Event(eventName, item, call, previous)));
+                }
+                previous = CompletableFuture.allOf(finished.toArray(new CompletableFuture<?>[0]));
+            }
+        }
+    }
+
+    private static class Event {
+        private final String name;
+        /**
+         * what the event is about, e.g. the scanned file's name, or null
+         */
+        private final String item;
+        private final Consumer<Plugin> call;
+        private final CompletableFuture<Void> previousGroup;
+        private final CompletableFuture<Void> finished = new CompletableFuture<>();
+
+        Event(final String name, final String item, final Consumer<Plugin> call, final CompletableFuture<Void> previousGroup) {
+            this.name = name;
+            this.item = item;
+            this.call = call;
+            this.previousGroup = previousGroup;
+        }
+
+        String describe() {
+            return item != null ? name + " " + item : name;
+        }
+    }
+
+    /**
+     * Counters for one plugin; latencies only count time spent in the plugin, not time waiting in the queue
+     */
+    static class Counters implements PluginCountersMBean {
+        private final String pluginName;
+        private final BlockingQueue<Event> queue;
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private Counters(final String pluginName, final BlockingQueue<Event> queue) {
+            this.pluginName = pluginName;
+            this.queue = queue;
+        }
+
+        @Override
+        public String getPluginName() { return pluginName; }
+
+        @Override
+        public int getQueueDepth() { return queue.size(); }
+
+        @Override
+        public long getCalls() { return latency.getCount(); }
+
+        @Override
+        public long getFailures() { return failures.get(); }
+
+        @Override
+        public long getTimeouts() { return timeouts.get(); }
+
+        @Override
+        public long getDropped() { return dropped.get(); }
+
+        @Override
+        public double getMeanLatencyMs() { return latency.getMeanMs(); }
+
+        @Override
+        public double getP50LatencyMs() { return latency.getP50Ms(); }
+
+        @Override
+        public double getP99LatencyMs() { return latency.getP99Ms(); }
+
+        @Override
+        public double getMaxLatencyMs() { return latency.getMaxMs(); }
+
+        @Override
+        public String getSlowestEvent() { return latency.getSlowestItem(); }
+
+        @Override
+        public String toString() {
+            return String.format("%s: queued=%d, calls=%d, failures=%d, timeouts=%d, dropped=%d, mean=%.1fms, p50=%.1fms, " +
+                "p99=%.1fms, max=%.1fms", pluginName, getQueueDepth(), getCalls(), getFailures(), getTimeouts(), getDropped(),
+                getMeanLatencyMs(), getP50LatencyMs(), getP99LatencyMs(), getMaxLatencyMs());
+        }
+    }
+
+    private class PluginWorker {
+        private final Plugin plugin;
+        private final String pluginName;
+        private final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(queueSize);
+        private final Counters counters;
+        private final ObjectName objectName;
+        private final Thread thread;
+        /**
+         * runs the actual plugin calls so that this worker can give up on one that takes too long
+         */
+        private final ExecutorService caller;
+        /**
+         * completes when the last call that timed out returns; until then, events are dropped
+         */
+        private CompletableFuture<Void> abandoned;
+        /**
+         * delivered once the queue is empty, after which the worker stops; set when the plugin is retired
+         */
+        private volatile Event lastEvent;
+
+        PluginWorker(final Plugin plugin) {
+            this.plugin = plugin;
+            pluginName = plugin.getClass().getSimpleName();
+            counters = new Counters(pluginName, queue);
+            objectName = Jmx.register("Plugin", pluginName, counters, PluginCountersMBean.class);
+            caller = newCaller();
+            thread = new Thread(this::run, "plugin-" + pluginName);
+            thread.setDaemon(true);
+            thread.setContextClassLoader(plugin.getClass().getClassLoader());
+            thread.start();
+        }
+
+        CompletableFuture<Void> enqueue(final Event event) throws InterruptedException {
+            queue.put(event);
+            return event.finished;
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    final Event event = queue.poll(RETIRE_CHECK_MS, TimeUnit.MILLISECONDS);
+                    if (event == null) {
+                        final Event last = lastEvent;
+                        if (last == null) { continue; }
+                        call(last);
+                        last.finished.complete(null);
+                        caller.shutdown();
+                        return;
+                    }
+                    try {
+                        event.previousGroup.get();
+                    } catch (final ExecutionException ignored) {
+                        // events are only ever completed normally
+                    }
+                    call(event);
+                    event.finished.complete(null);
+                }
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void call(final Event event) throws InterruptedException {
+            if (abandoned != null && !abandoned.isDone()) {
+                counters.dropped.incrementAndGet();
+                logger.warn(String.format("dropped %s event for plugin %s: its call that timed out still hasn't returned",
+                    event.describe(), pluginName));
+                return;
+            }
+            abandoned = null;
+            final PluginDispatchEvent dispatchEvent = new PluginDispatchEvent();
+            dispatchEvent.begin();
+            dispatchEvent.plugin = pluginName;
+            dispatchEvent.event = event.name;
+            dispatchEvent.file = event.item;
+            final long start = System.nanoTime();
+            final CompletableFuture<Void> returned = new CompletableFuture<>();
+            final Future<?> future = caller.submit(() -> {
+                try {
+                    event.call.accept(plugin);
+                } finally {
+                    returned.complete(null);
+                }
+            });
+            try {
+                if (timeoutMs > 0) {
+                    future.get(timeoutMs, TimeUnit.MILLISECONDS);
+                } else {
+                    future.get();
+                }
+                dispatchEvent.outcome = Outcome.SUCCESS;
+            } catch (final ExecutionException ee) {
+                dispatchEvent.outcome = Outcome.FAILURE;
+                counters.failures.incrementAndGet();
+                logger.warn(String.format("Failed to fire %s event for plugin %s", event.name, pluginName), ee.getCause());
+            } catch (final TimeoutException te) {
+                dispatchEvent.outcome = Outcome.TIMEOUT;
+                counters.timeouts.incrementAndGet();
+                logger.warn(String.format("%s event for plugin %s timed out after %d second(s)", event.name, pluginName,
+                    timeoutMs / 1000));
+                // a cancelled future is done right away, even if the call is still running, hence returned
+                future.cancel(true);
+                abandoned = returned;
+            }
+            final long nanos = System.nanoTime() - start;
+            counters.latency.record(nanos, event.describe());
+            if (event.name.equals("afterScan")) { afterScanLatency.record(nanos, pluginName + ": " + event.item); }
+            dispatchEvent.commit();
+        }
+
+        private ExecutorService newCaller() {
+            return Executors.newSingleThreadExecutor((final Runnable runnable) -> {
+                final Thread thread = new Thread(runnable, "plugin-" + pluginName + "-call");
+                thread.setDaemon(true);
+                thread.setContextClassLoader(plugin.getClass().getClassLoader());
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.adashrod.scannerdaemon;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Finds the plugin classes in a jar without loading any of its classes. A jar can declare its plugins either in a
+ * META-INF/services/com.adashrod.scannerdaemon.Plugin file, one class name per line as for
+ * {@link java.util.ServiceLoader}, or in a Plugin-Classes manifest attribute, separated by commas or spaces.
+ *
+ * For jars that declare neither, every class file's header is read to find the classes that directly extend
+ * {@link Plugin}. The result is cached in cache/pluginIndex.txt by the jar's checksum, so each version of a jar is only
+ * read this way once. Dependency jars end up in the cache with no plugin classes.
+ */
+class PluginIndex {
+    private static final String MANIFEST_ATTRIBUTE = "Plugin-Classes";
+    private static final String SERVICE_FILE = "META-INF/services/" + Plugin.class.getName();
+    private static final String PLUGIN_INTERNAL_NAME = Plugin.class.getName().replace('.', '/');
+
+    private final Logger logger = Logger.getLogger(PluginIndex.class);
+
+    private final File indexFile;
+    /**
+     * jar checksum -> plugin class names
+     */
+    private final Map<String, List<String>> index = new HashMap<>();
+    private boolean dirty;
+
+    /**
+     * @param cacheDir where the index is persisted
+     */
+    PluginIndex(final File cacheDir) {
+        indexFile = new File(cacheDir, "pluginIndex.txt");
+        load();
+    }
+
+    /**
+     * @param jar      a jar file
+     * @param checksum the jar's checksum from {@link #checksum(File)}
+     * @return the names of the plugin classes in the jar, empty if it has none
+     * @throws IOException if the jar can't be read
+     */
+    Collection<String> findPluginClassNames(final File jar, final String checksum) throws IOException {
+        try (JarFile jarFile = new JarFile(jar)) {
+            final List<String> declared = findDeclared(jarFile);
+            if (declared != null) { return declared; }
+        }
+        synchronized (index) {
+            final List<String> cached = index.get(checksum);
+            if (cached != null) { return cached; }
+        }
+        final List<String> classNames;
+        try (JarFile jarFile = new JarFile(jar)) {
+            classNames = scanClassFiles(jarFile);
+        }
+        synchronized (index) {
+            index.put(checksum, classNames);
+            dirty = true;
+        }
+        logger.debug(String.format("indexed %s, found plugin classes %s", jar.getName(), classNames));
+        return classNames;
+    }
+
+    /**
+     * Writes the index if any jars were indexed since it was last written
+     */
+    void save() {
+        synchronized (index) {
+            if (!dirty) { return; }
+            final File tempFile = new File(indexFile.getPath() + ".tmp");
+            indexFile.getAbsoluteFile().getParentFile().mkdirs();
+            try {
+                try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile, false), StandardCharsets.UTF_8))) {
+                    for (final Map.Entry<String, List<String>> entry: index.entrySet()) {
+                        writer.write(String.format("%s\t%s\n", entry.getKey(), String.join(",", entry.getValue())));
+                    }
+                }
+                Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                dirty = false;
+            } catch (final IOException ioe) {
+                logger.warn(String.format("Failed to write plugin index %s: %s", indexFile, ioe.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * @param file any file
+     * @return a hex SHA-1 digest of the file's contents
+     * @throws IOException if the file can't be read
+     */
+    static String checksum(final File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException nsae) {
+            // every Java platform is required to support SHA-1
+            throw new IllegalStateException(nsae);
+        }
+        try (InputStream in = new DigestInputStream(new FileInputStream(file), digest)) {
+            final byte[] buffer = new byte[1 << 16];
+            while (in.read(buffer) != -1) {}
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b: digest.digest()) { hex.append(String.format("%02x", b)); }
+        return hex.toString();
+    }
+
+    /**
+     * @return the declared plugin class names, or null if the jar doesn't declare any
+     */
+    private List<String> findDeclared(final JarFile jarFile) throws IOException {
+        final JarEntry serviceEntry = jarFile.getJarEntry(SERVICE_FILE);
+        if (serviceEntry != null) {
+            final List<String> classNames = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(jarFile.getInputStream(serviceEntry), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final int comment = line.indexOf('#');
+                    final String className = (comment == -1 ? line : line.substring(0, comment)).trim();
+                    if (!className.isEmpty()) { classNames.add(className); }
+                }
+            }
+            return classNames;
+        }
+        final Manifest manifest = jarFile.getManifest();
+        final String attribute = manifest != null ? manifest.getMainAttributes().getValue(new Attributes.Name(MANIFEST_ATTRIBUTE)) : null;
+        if (attribute != null) {
+            final List<String> classNames = new ArrayList<>();
+            for (final String className: attribute.trim().split("[,\\s]+")) {
+                if (!className.isEmpty()) { classNames.add(className); }
+            }
+            return classNames;
+        }
+        return null;
+    }
+
+    private List<String> scanClassFiles(final JarFile jarFile) throws IOException {
+        final List<String> classNames = new ArrayList<>();
+        final Enumeration<JarEntry> jarEntries = jarFile.entries();
+        while (jarEntries.hasMoreElements()) {
+            final JarEntry jarEntry = jarEntries.nextElement();
+            final String entryName = jarEntry.getName();
+            if (!entryName.endsWith(".class") || entryName.endsWith("module-info.class")) { continue; }
+            try (DataInputStream in = new DataInputStream(jarFile.getInputStream(jarEntry))) {
+                if (PLUGIN_INTERNAL_NAME.equals(readSuperclassName(in))) {
+                    classNames.add(entryName.substring(0, entryName.length() - 6).replace("/", "."));
+                }
+            } catch (final IOException | RuntimeException e) {
+                logger.debug(String.format("couldn't read class file %s in %s: %s", entryName, jarFile.getName(), e));
+            }
+        }
+        Collections.sort(classNames);
+        return classNames;
+    }
+
+    /**
+     * Reads a class file up to its super_class item
+     * @return the internal name of the direct superclass, e.g. java/lang/Object, or null if there is none
+     */
+    private static String readSuperclassName(final DataInputStream in) throws IOException {
+        if (in.readInt() != 0xCAFEBABE) { throw new IOException("not a class file"); }
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+        final int constantPoolCount = in.readUnsignedShort();
+        final String[] utf8s = new String[constantPoolCount];
+        final int[] classNameIndexes = new int[constantPoolCount];
+        for (int i = 1; i < constantPoolCount; i++) {
+            final int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1: // Utf8
+                    utf8s[i] = in.readUTF();
+                    break;
+                case 7: // Class
+                    classNameIndexes[i] = in.readUnsignedShort();
+                    break;
+                case 8: case 16: case 19: case 20: // String, MethodType, Module, Package
+                    in.skipBytes(2);
+                    break;
+                case 15: // MethodHandle
+                    in.skipBytes(3);
+                    break;
+                case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                    // Integer, Float, Fieldref, Methodref, InterfaceMethodref, NameAndType, Dynamic, InvokeDynamic
+                    in.skipBytes(4);
+                    break;
+                case 5: case 6: // Long, Double take two entries
+                    in.skipBytes(8);
+                    i++;
+                    break;
+                default:
+                    throw new IOException("unknown constant pool tag " + tag);
+            }
+        }
+        in.readUnsignedShort(); // access flags
+        in.readUnsignedShort(); // this_class
+        final int superClass = in.readUnsignedShort();
+        return superClass == 0 ? null : utf8s[classNameIndexes[superClass]];
+    }
+
+    private void load() {
+        if (!indexFile.exists()) { return; }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split("\t", -1);
+                if (parts.length != 2) { continue; }
+                index.put(parts[0], parts[1].isEmpty() ? Collections.emptyList() : Arrays.asList(parts[1].split(",")));
+            }
+        } catch (final IOException ioe) {
+            logger.warn(String.format("Ignoring unreadable plugin index %s: %s", indexFile, ioe.getMessage()));
+            index.clear();
+        }
+    }
+}
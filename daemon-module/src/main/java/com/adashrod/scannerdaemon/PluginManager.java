@@ -1,105 +1,269 @@
 package com.adashrod.scannerdaemon;
 
+import com.adashrod.scannerdaemon.jfr.Outcome;
+import com.adashrod.scannerdaemon.jfr.PluginInstantiateEvent;
+import com.adashrod.scannerdaemon.jfr.PluginJarLoadEvent;
 import org.apache.log4j.Logger;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.net.URLClassLoader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
-import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 /**
- * Responsible for loading jars at runtime to load plugins and their dependencies.
+ * Responsible for loading jars at runtime to load plugins and their dependencies. Each plugin jar gets its own class
+ * loader (see {@link JarLoader}), so a plugin jar that is replaced or removed is unloaded and, if replaced, loaded again
+ * without restarting the daemon. Jars that don't contain plugins are loaded as dependencies shared by all plugin jars;
+ * if one of those changes, every plugin jar is reloaded.
  */
 public class PluginManager {
     private final Logger logger = Logger.getLogger(PluginManager.class);
     private final PluginApi pluginApi;
-    private final Collection<String> jarClassNames = new HashSet<>();
-    private final List<Plugin> plugins = new ArrayList<>();
+    private final PluginIndex pluginIndex;
+    private final JarLoader jarLoader;
+    private final PluginEventBus pluginEventBus;
+    /**
+     * every jar that's currently loaded, by its path in the plugins directory
+     */
+    private final Map<File, LoadedJar> loadedJars = new HashMap<>();
 
-    public PluginManager(final PluginApi pluginApi) {
+    /**
+     * @param pluginApi      the API handed to each plugin
+     * @param pluginEventBus delivers plugin events; unloaded plugins are retired from it
+     * @param cacheDir       where the index of plugin classes in each jar and the copies of loaded jars are kept
+     */
+    public PluginManager(final PluginApi pluginApi, final PluginEventBus pluginEventBus, final File cacheDir) {
         this.pluginApi = pluginApi;
+        this.pluginEventBus = pluginEventBus;
+        pluginIndex = new PluginIndex(cacheDir);
+        jarLoader = new JarLoader(new File(cacheDir, "plugin-jars"));
     }
 
     /**
-     * Loads the jars into the runtime, then searches for classes implementing {@link com.adashrod.scannerdaemon.Plugin},
-     * instantiates each of them and calls {@link com.adashrod.scannerdaemon.Plugin#onLoad(PluginApi)}
+     * Brings the loaded plugins up to date with the jars: new jars are loaded, jars whose contents changed are unloaded
+     * and loaded again, and jars that are no longer in the list are unloaded. The plugin classes each jar declares (see
+     * {@link PluginIndex}) are instantiated and get {@link com.adashrod.scannerdaemon.Plugin#onLoad(PluginApi)}; unloaded
+     * plugins get {@link Plugin#onUnload()}. Does little more than stat each jar if nothing changed.
      * @param jars Files that refer to jar files to be loaded
-     * @return a map of class name to exception for any class that couldn't be instantiated for any reason
-     * @throws IOException problem loading jar file
+     * @return a map of class or jar name to exception for anything that couldn't be loaded for any reason
      */
-    public Map<String, Throwable> addPluginsFromJars(final File... jars) throws IOException {
-        final Map<String, Throwable> errors = new HashMap<>();
+    public synchronized Map<String, Throwable> addPluginsFromJars(final File... jars) {
+        final Map<String, Throwable> errors = new ConcurrentHashMap<>();
 
-        for (final File file: jars) {
-            if (!JarLoader.addJarFile(file)) { continue; }
-            final JarFile jarFile = new JarFile(file);
-            for (final String className: findClassNames(jarFile)) { jarClassNames.add(className); }
-        }
-        // separate loop because all jars must be loaded before we can try to instantiate a class in case one a class in
-        // one jar depends on one in another
-        for (final String className: jarClassNames) {
+        final Collection<File> current = new HashSet<>(Arrays.asList(jars));
+        final List<File> removed = loadedJars.keySet().stream()
+            .filter((final File jar) -> !current.contains(jar))
+            .collect(Collectors.toList());
+        final List<File> candidates = Arrays.stream(jars)
+            .filter((final File jar) -> {
+                final LoadedJar loaded = loadedJars.get(jar);
+                return loaded == null || loaded.size != jar.length() || loaded.lastModified != jar.lastModified();
+            })
+            .collect(Collectors.toList());
+        if (removed.isEmpty() && candidates.isEmpty()) { return errors; }
+
+        // reading jars is mostly I/O, so checksum and index them in parallel
+        final Map<File, LoadedJar> scanned = new ConcurrentHashMap<>();
+        candidates.parallelStream().forEach((final File jar) -> {
             try {
-                instantiate(className);
-            } catch (final ClassNotFoundException | IllegalAccessException | InstantiationException | NoClassDefFoundError e) {
-                // NCDFE happens if any class in one of the runtime-loaded jars references a class in a jar that wasn't loaded,
-                // e.g. user didn't include a 3rd-party jar needed by their plugin
-                errors.put(className, e);
+                final long size = jar.length(), lastModified = jar.lastModified();
+                final String checksum = PluginIndex.checksum(jar);
+                final LoadedJar loaded = loadedJars.get(jar);
+                final Collection<String> classNames = loaded != null && loaded.checksum.equals(checksum) ?
+                    loaded.classNames : pluginIndex.findPluginClassNames(jar, checksum);
+                scanned.put(jar, new LoadedJar(checksum, size, lastModified, classNames));
+            } catch (final IOException ioe) {
+                // e.g. still being copied; it's tried again next time
+                errors.put(jar.getName(), ioe);
+            }
+        });
+        pluginIndex.save();
+        // only touching the modification time doesn't need a reload
+        scanned.entrySet().removeIf((final Map.Entry<File, LoadedJar> entry) -> {
+            final LoadedJar loaded = loadedJars.get(entry.getKey());
+            if (loaded == null || !loaded.checksum.equals(entry.getValue().checksum)) { return false; }
+            loaded.size = entry.getValue().size;
+            loaded.lastModified = entry.getValue().lastModified;
+            return true;
+        });
+        if (removed.isEmpty() && scanned.isEmpty()) { return errors; }
+
+        final List<File> changed = new ArrayList<>(removed);
+        changed.addAll(scanned.keySet());
+        final boolean dependenciesChanged = changed.stream().anyMatch((final File jar) -> {
+            final LoadedJar before = loadedJars.get(jar), after = scanned.get(jar);
+            return before != null && before.isDependency() || after != null && after.isDependency();
+        });
+        if (dependenciesChanged) {
+            // every plugin jar's loader has the dependency loader as its parent, so they all have to go
+            for (final File jar: current) {
+                if (!scanned.containsKey(jar) && loadedJars.containsKey(jar)) { scanned.put(jar, loadedJars.get(jar).copy()); }
             }
+            final List<CompletableFuture<Void>> unloaded = new ArrayList<>();
+            new ArrayList<>(loadedJars.keySet()).forEach((final File jar) -> unloaded.add(unloadJar(jar)));
+            // the old dependency loader has to stay open until the retiring plugins are done with it
+            final URLClassLoader oldDependencies = jarLoader.resetDependencies();
+            CompletableFuture.allOf(unloaded.toArray(new CompletableFuture<?>[0])).thenRun(() -> jarLoader.unload(oldDependencies));
+        } else {
+            changed.forEach(this::unloadJar);
         }
 
+        // dependencies first, since plugin jars' loaders can only see dependencies that were added before they were made
+        scanned.forEach((final File jar, final LoadedJar loadedJar) -> {
+            if (!loadedJar.isDependency()) { return; }
+            final PluginJarLoadEvent event = newJarLoadEvent(jar, loadedJar);
+            try {
+                jarLoader.addDependencyJar(jar, loadedJar.checksum);
+                loadedJars.put(jar, loadedJar);
+                event.outcome = Outcome.SUCCESS;
+            } catch (final IOException ioe) {
+                errors.put(jar.getName(), ioe);
+            } finally {
+                event.commit();
+            }
+        });
+        scanned.forEach((final File jar, final LoadedJar loadedJar) -> {
+            if (loadedJar.isDependency()) { return; }
+            final PluginJarLoadEvent event = newJarLoadEvent(jar, loadedJar);
+            try {
+                loadedJar.classLoader = jarLoader.loadPluginJar(jar, loadedJar.checksum);
+                event.outcome = Outcome.SUCCESS;
+            } catch (final IOException ioe) {
+                errors.put(jar.getName(), ioe);
+                return;
+            } finally {
+                event.commit();
+            }
+            loadedJars.put(jar, loadedJar);
+            for (final String className: loadedJar.classNames) {
+                final PluginInstantiateEvent instantiateEvent = new PluginInstantiateEvent();
+                instantiateEvent.begin();
+                instantiateEvent.jar = jar.getName();
+                instantiateEvent.className = className;
+                instantiateEvent.outcome = Outcome.FAILURE;
+                try {
+                    instantiate(className, loadedJar);
+                    instantiateEvent.outcome = Outcome.SUCCESS;
+                } catch (final ClassNotFoundException | IllegalAccessException | InstantiationException | NoClassDefFoundError e) {
+                    // NCDFE happens if any class in one of the runtime-loaded jars references a class in a jar that wasn't loaded,
+                    // e.g. user didn't include a 3rd-party jar needed by their plugin. Adding that jar reloads this one
+                    errors.put(className, e);
+                } finally {
+                    instantiateEvent.commit();
+                }
+            }
+        });
+
         return errors;
     }
 
-    public List<Plugin> getPlugins() {
-        plugins.sort(Comparator.comparingInt(Plugin::getPriority));
-        return plugins;
+    private static PluginJarLoadEvent newJarLoadEvent(final File jar, final LoadedJar loadedJar) {
+        final PluginJarLoadEvent event = new PluginJarLoadEvent();
+        event.begin();
+        event.jar = jar.getName();
+        event.bytes = loadedJar.size;
+        event.dependency = loadedJar.isDependency();
+        event.outcome = Outcome.FAILURE;
+        return event;
     }
 
-    private Iterable<String> findClassNames(final JarFile jarFile) {
-        final Enumeration<JarEntry> jarEntries = jarFile.entries();
-        final Collection<String> classNames = new HashSet<>();
-        while (jarEntries.hasMoreElements()) {
-            final JarEntry jarEntry = jarEntries.nextElement();
-            final String entryName = jarEntry.getName();
-            if (entryName.endsWith(".class")) {
-                classNames.add(entryName.substring(0, entryName.length() - 6).replace("/", "."));
-            }
-        }
-        return classNames;
+    /**
+     * @return a copy of the loaded plugins, sorted by priority
+     */
+    public synchronized List<Plugin> getPlugins() {
+        final List<Plugin> sorted = new ArrayList<>();
+        loadedJars.values().forEach((final LoadedJar loadedJar) -> sorted.addAll(loadedJar.plugins));
+        sorted.sort(Comparator.comparingInt(Plugin::getPriority));
+        return sorted;
     }
 
     /**
-     * Instantiates className iff it is a class that implements {@link com.adashrod.scannerdaemon.Plugin}, adds it to the
-     * list of plugins, and calls {@link com.adashrod.scannerdaemon.Plugin#onLoad(PluginApi)}
+     * Instantiates className iff it is a concrete class that extends {@link com.adashrod.scannerdaemon.Plugin}, adds it to the
+     * jar's list of plugins, and calls {@link com.adashrod.scannerdaemon.Plugin#onLoad(PluginApi)}
      * @param className FQ class name
-     * @throws ClassNotFoundException shouldn't happen
+     * @param loadedJar the jar declaring the class
+     * @throws ClassNotFoundException if the jar declares a class it doesn't contain
      * @throws InstantiationException if there's anything wrong with the Plugin implementation
      * @throws IllegalAccessException if the Plugin's default constructor is private
      */
-    private void instantiate(final String className) throws ClassNotFoundException, InstantiationException, IllegalAccessException {
-        final Class<?> potentialPluginClass;
-        // specifying the class loader to ensure we get the same one that was used to load the jars
-        potentialPluginClass = Class.forName(className, true, Thread.currentThread().getContextClassLoader());
-        if (potentialPluginClass.getSuperclass().equals(Plugin.class)) {
-            final Plugin plugin = (Plugin) potentialPluginClass.newInstance();
-            for (final Plugin addedPlugin: plugins) {
-                if (addedPlugin.getClass().isAssignableFrom(potentialPluginClass)) { return; }
+    private void instantiate(final String className, final LoadedJar loadedJar) throws ClassNotFoundException,
+            InstantiationException, IllegalAccessException {
+        final Class<?> potentialPluginClass = Class.forName(className, true, loadedJar.classLoader);
+        if (Plugin.class.isAssignableFrom(potentialPluginClass) && !Modifier.isAbstract(potentialPluginClass.getModifiers())) {
+            // the same plugin in two jars would be two different classes, so compare names
+            for (final Plugin addedPlugin: getPlugins()) {
+                if (addedPlugin.getClass().getName().equals(className)) { return; }
             }
-            plugins.add(plugin);
+            final Plugin plugin = (Plugin) potentialPluginClass.newInstance();
+            loadedJar.plugins.add(plugin);
+            final ClassLoader previous = Thread.currentThread().getContextClassLoader();
+            Thread.currentThread().setContextClassLoader(loadedJar.classLoader);
             try {
                 plugin.onLoad(pluginApi);
                 logger.info("loaded plugin: " + plugin.getClass().getName());
             } catch (final Exception e) {
                 logger.warn("Failed to fire onLoad event for plugin " + plugin.getClass().getSimpleName(), e);
+            } finally {
+                Thread.currentThread().setContextClassLoader(previous);
             }
         }
     }
+
+    /**
+     * Retires the jar's plugins from the event bus, which calls {@link Plugin#onUnload()} once their queued events are
+     * delivered, then closes the jar's class loader
+     * @return completes once the class loader is closed
+     */
+    private CompletableFuture<Void> unloadJar(final File jar) {
+        final LoadedJar loadedJar = loadedJars.remove(jar);
+        if (loadedJar == null || loadedJar.isDependency()) { return CompletableFuture.completedFuture(null); }
+        final List<CompletableFuture<Void>> retired = new ArrayList<>();
+        for (final Plugin plugin: loadedJar.plugins) {
+            retired.add(pluginEventBus.retire(plugin));
+            logger.info("unloading plugin: " + plugin.getClass().getName());
+        }
+        final URLClassLoader classLoader = loadedJar.classLoader;
+        return CompletableFuture.allOf(retired.toArray(new CompletableFuture<?>[0])).thenRun(() -> jarLoader.unload(classLoader));
+    }
+
+    private static class LoadedJar {
+        private final String checksum;
+        private long size;
+        private long lastModified;
+        private final Collection<String> classNames;
+        /**
+         * null for dependency jars
+         */
+        private URLClassLoader classLoader;
+        private final List<Plugin> plugins = new ArrayList<>();
+
+        LoadedJar(final String checksum, final long size, final long lastModified, final Collection<String> classNames) {
+            this.checksum = checksum;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.classNames = classNames;
+        }
+
+        boolean isDependency() {
+            return classNames.isEmpty();
+        }
+
+        /**
+         * @return a copy without a class loader or plugins, for loading the same jar again
+         */
+        LoadedJar copy() {
+            return new LoadedJar(checksum, size, lastModified, classNames);
+        }
+    }
 }
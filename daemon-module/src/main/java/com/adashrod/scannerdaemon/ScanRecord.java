@@ -1,39 +1,59 @@
 package com.adashrod.scannerdaemon;
 
+import com.adashrod.scannerdaemon.jfr.Outcome;
+import com.adashrod.scannerdaemon.jfr.ScanRecordReloadEvent;
+import com.adashrod.scannerdaemon.jfr.ScanRecordWriteEvent;
 import org.apache.log4j.Logger;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.TreeMap;
-
-class Pair<K, V> {
-    private final K key;
-    private final V value;
-
-    public Pair(final K key, final V value) {
-        this.key = key;
-        this.value = value;
-    }
-
-    public V getValue() {
-        return value;
-    }
-
-    public K getKey() {
-        return key;
-    }
-}
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 /**
  * A class that represents the scan record text file. Each line in the file is formatted "filename|titleNumber|attempts".
  * The filename is the name of the file or directory that was scanned. The titleNumber is the title that was scanned in
  * the case of a blu-ray directory (will be null or empty for mkv files). The attempts is the number of times that the
- * daemon tried (and failed) to scan the file; a special value of -1 means that the file was successfully scanned.
+ * daemon tried (and failed) to scan the file; a special value of -1 means that the file was successfully scanned, -2
+ * that it failed the max number of times, -3 that it was skipped as a duplicate of another title on the same BD, -4
+ * that it was filtered out as not worth demuxing, e.g. a menu loop, and -5 that it isn't a BD dir or a file the demuxer
+ * can read.
+ * All access is synchronized since the record is shared by the demux workers and plugins.
+ *
+ * The record file is only read at startup. Changes are appended to a {@link ScanRecordJournal} and become durable when
+ * {@link #writeToFile()} commits them; once the journal has grown large enough it gets compacted into a new record file
+ * in the background. If the record file is edited while the daemon is running, the edited file replaces the record on
+ * the next {@link #reload()}.
+ *
+ * The record file can also be kept in the binary format of {@link BinaryScanRecordFile}, which is mapped instead of
+ * parsed; in that case only the changes since the last compaction are held in memory. A record in one format is
+ * converted the first time the daemon starts with the other format configured.
+ *
+ * When several daemons share the directory being scanned, each one writes its own record, a shard named e.g.
+ * scanRecord.node1.txt, and reads the others' shards and journals, read-only, into a merged view: a success in any
+ * shard counts, then any other final state, then the most failures. Only the text format can be shared this way. The
+ * entry counts only cover this daemon's own shard.
  */
 public class ScanRecord {
     /**
@@ -45,30 +65,322 @@ public class ScanRecord {
      * should be further ignored
      */
     private static final int ABANDONED_VALUE = -2;
+    /**
+     * In the log file, this value in the "tries" column represents a BD title that plays the same clips as another
+     * title of the same BD, and isn't demuxed
+     */
+    private static final int DUPLICATE_VALUE = -3;
+    /**
+     * In the log file, this value in the "tries" column represents a BD title that was filtered out before demuxing,
+     * e.g. for being too short, and isn't demuxed
+     */
+    private static final int FILTERED_VALUE = -4;
+    /**
+     * In the log file, this value in the "tries" column represents a file or directory that was found not to be
+     * something the demuxer can read, e.g. a folder of photos, and isn't scanned
+     */
+    private static final int UNSUPPORTED_VALUE = -5;
+    /**
+     * In the log file, this value in the "tries" column represents a BD dir whose every title is recorded as demuxed,
+     * given up on or skipped, so that it isn't scanned for titles again. It doesn't count as a success of its own.
+     */
+    private static final int SETTLED_VALUE = -6;
+    /**
+     * In the log file, this value in the "tries" column represents a BD dir that was settled until one of its titles'
+     * entries was removed or reset, e.g. to have it tried again, and has to be scanned again
+     */
+    private static final int UNSETTLED_VALUE = 0;
+    /**
+     * The journal is compacted when it has at least this many entries and at least half as many as the record, which
+     * keeps the cost of compaction proportional to the number of changes
+     */
+    private static final int MIN_COMPACTION_ENTRIES = 1000;
+
+    /**
+     * The format of the record file
+     */
+    public enum Format {
+        TEXT("txt"), BINARY("bin");
+
+        private final String extension;
+
+        Format(final String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
 
     private final Logger logger = Logger.getLogger(ScanRecord.class);
 
     private final File file;
     private final int maxRetries;
-    private final Map<LogLine, Integer> logs = new TreeMap<>();
+    private final Format format;
+    /**
+     * for {@link Format#TEXT}, the whole record; for {@link Format#BINARY}, changes since the binary file was written
+     */
+    private ScanRecordIndex logs = new ScanRecordIndex();
+    /**
+     * for {@link Format#BINARY}, changes that are being written to a new binary file by a compaction in progress
+     */
+    private ScanRecordIndex compactingLogs;
+    private BinaryScanRecordFile binaryFile;
+    private final ScanRecordJournal journal;
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor((final Runnable runnable) -> {
+        final Thread thread = new Thread(runnable, "scan-record-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    /**
+     * lastModified and length of the record file the last time it was read or written by this class, used to detect
+     * outside edits
+     */
+    private long fileModified, fileLength;
+    /**
+     * counts reloads, so that a compaction that was writing the record from before a reload doesn't replace the
+     * reloaded file
+     */
+    private long reloads;
+    /**
+     * how many entries are successes, failures that haven't been abandoned yet, and abandoned, in that order. Counted on
+     * first use, since that takes a pass over the whole record, then kept up to date as entries change; null until then
+     * and after a reload.
+     */
+    private long[] entryCounts;
+    /**
+     * matches the record files of the other shards, or null if the record isn't shared
+     */
+    private final Pattern peerFilePattern;
+    /**
+     * the merged entries of the other shards
+     */
+    private ScanRecordIndex peerLogs = new ScanRecordIndex();
+    /**
+     * names, lastModified and lengths of the other shards' files the last time they were read
+     */
+    private String peerSignature = "";
 
     public ScanRecord(final File file, final int maxRetries) throws IOException {
+        this(file, maxRetries, ScanRecordJournal.FsyncPolicy.ALWAYS, Format.TEXT);
+    }
+
+    /**
+     * @param file        the record file, which should have the extension of its format
+     * @param maxRetries  how many failures it takes for a file or title to be abandoned
+     * @param fsyncPolicy when commits are forced to disk
+     * @param format      the format of the record file
+     * @throws IOException if the record file or its journals can't be read
+     */
+    public ScanRecord(final File file, final int maxRetries, final ScanRecordJournal.FsyncPolicy fsyncPolicy,
+            final Format format) throws IOException {
+        this(file, maxRetries, fsyncPolicy, format, null);
+    }
+
+    /**
+     * @param file        the record file, which should have the extension of its format
+     * @param maxRetries  how many failures it takes for a file or title to be abandoned
+     * @param fsyncPolicy when commits are forced to disk
+     * @param format      the format of the record file
+     * @param peerPrefix  for a shard of a shared record, what the names of all the shards start with, e.g. "scanRecord.";
+     *                    null if the record isn't shared
+     * @throws IOException if the record file or its journals can't be read
+     */
+    public ScanRecord(final File file, final int maxRetries, final ScanRecordJournal.FsyncPolicy fsyncPolicy,
+            final Format format, final String peerPrefix) throws IOException {
+        if (peerPrefix != null && format != Format.TEXT) {
+            throw new IllegalArgumentException("only text scan records can be shared");
+        }
         this.file = file;
+        peerFilePattern = peerPrefix == null ? null :
+            Pattern.compile(Pattern.quote(peerPrefix) + "([\\w-]+\\.)?" + Pattern.quote(format.getExtension()));
         this.maxRetries = maxRetries;
-        reload();
+        this.format = format;
+        journal = new ScanRecordJournal(file, fsyncPolicy);
+        synchronized (this) {
+            convertFromOtherFormat();
+            readFile();
+            journal.open((final LogLine logLine, final Integer attempts) -> {
+                logs.put(logLine.filename, logLine.titleNumber, attempts);
+            });
+            reloadPeers();
+        }
+        if (fsyncPolicy == ScanRecordJournal.FsyncPolicy.PERIODIC) {
+            background.scheduleWithFixedDelay(() -> {
+                try {
+                    journal.force();
+                } catch (final IOException e) {
+                    logger.warn(String.format("Failed to sync scan record journal: %s", e.getMessage()), e);
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * If there's no record file in this format but there is one in the other format, e.g. scanRecord.txt when the
+     * format was just switched to binary, writes its contents, journals included, as this record's file. The old file
+     * is kept with a ".migrated" suffix and its journals are deleted.
+     */
+    private void convertFromOtherFormat() throws IOException {
+        final Format otherFormat = format == Format.TEXT ? Format.BINARY : Format.TEXT;
+        final String baseName = file.getName().substring(0, file.getName().length() - format.getExtension().length());
+        final File otherFile = new File(file.getAbsoluteFile().getParentFile(), baseName + otherFormat.getExtension());
+        if (file.exists() || !otherFile.exists()) { return; }
+
+        logger.info(String.format("converting %s to %s", otherFile.getName(), file.getName()));
+        final ScanRecord other = new ScanRecord(otherFile, maxRetries, ScanRecordJournal.FsyncPolicy.NEVER, otherFormat);
+        synchronized (other) {
+            final File tempFile = new File(file.getPath() + ".tmp");
+            writeRecordFile(tempFile, format, other.binaryFile, other.logs);
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            other.binaryFile = null;
+        }
+        other.background.shutdownNow();
+        other.journal.delete();
+        Files.move(otherFile.toPath(), new File(otherFile.getPath() + ".migrated").toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reloads the record file if it was changed by something other than this class since it was last read or written,
+     * e.g. by hand. In that case the file replaces the whole record and anything journaled since the last compaction
+     * is discarded.
+     * @return true if the file was reloaded
+     * @throws IOException if the file can't be read
+     */
+    public synchronized boolean reload() throws IOException {
+        if (file.lastModified() == fileModified && file.length() == fileLength) { return false; }
+        logger.warn(String.format("%s was changed outside of the daemon, reloading it", file.getName()));
+        final ScanRecordReloadEvent event = new ScanRecordReloadEvent();
+        event.begin();
+        event.file = file.getName();
+        event.outcome = Outcome.FAILURE;
+        try {
+            final Map<String, List<Integer>> settledTitles = settledTitles();
+            reloads++;
+            // the edit replaces whatever was being compacted as well
+            compactingLogs = null;
+            journal.reset();
+            readFile();
+            unsettle(settledTitles);
+            event.bytesRead = fileLength;
+            event.outcome = Outcome.SUCCESS;
+        } finally {
+            event.commit();
+        }
+        return true;
     }
 
-    public void reload() throws IOException {
-        file.createNewFile();
+    /**
+     * @return the titles recorded for each BD dir that's settled
+     */
+    private Map<String, List<Integer>> settledTitles() {
+        final Map<String, List<Integer>> settledTitles = new HashMap<>();
+        forEachMerged(binaryFile, currentChanges(), (final String filename, final Integer titleNumber, final int attempts) -> {
+            if (titleNumber != null && getOwn(filename, null) == SETTLED_VALUE) {
+                settledTitles.computeIfAbsent(filename, (final String dir) -> new ArrayList<>()).add(titleNumber);
+            }
+        });
+        return settledTitles;
+    }
+
+    /**
+     * Marks BD dirs that are still settled after a reload as unsettled if any of their titles no longer has a final
+     * state, e.g. because its line was deleted to have it demuxed again
+     * @param settledTitles the titles of each settled BD dir from before the reload
+     * @throws IOException if the changes can't be journaled
+     */
+    private void unsettle(final Map<String, List<Integer>> settledTitles) throws IOException {
+        boolean changed = false;
+        for (final Map.Entry<String, List<Integer>> entry: settledTitles.entrySet()) {
+            final String dir = entry.getKey();
+            if (getOwn(dir, null) != SETTLED_VALUE) { continue; }
+            final boolean reopened = entry.getValue().stream().anyMatch((final Integer titleNumber) -> {
+                final int attempts = getOwn(dir, titleNumber);
+                return attempts == ScanRecordIndex.ABSENT || attempts >= 0;
+            });
+            if (reopened) {
+                logger.info(String.format("%s has a title to scan again", dir));
+                put(dir, null, UNSETTLED_VALUE);
+                changed = true;
+            }
+        }
+        if (changed) { journal.commit(); }
+    }
+
+    /**
+     * Reads the other shards of a shared record again if any of their files changed since they were last read
+     * @return true if they were read again
+     * @throws IOException if a shard can't be read
+     */
+    public synchronized boolean reloadPeers() throws IOException {
+        if (peerFilePattern == null) { return false; }
+        final File dir = file.getAbsoluteFile().getParentFile();
+        final File[] peerFiles = dir.listFiles((final File parent, final String name) -> {
+            return !name.equals(file.getName()) && peerFilePattern.matcher(name).matches();
+        });
+        if (peerFiles == null) { return false; }
+        Arrays.sort(peerFiles, Comparator.comparing(File::getName));
+        final List<List<File>> shards = new ArrayList<>();
+        final StringBuilder signature = new StringBuilder();
+        for (final File peerFile: peerFiles) {
+            final List<File> shard = new ArrayList<>();
+            shard.add(peerFile);
+            shard.addAll(ScanRecordJournal.findJournalFiles(peerFile));
+            for (final File shardFile: shard) {
+                signature.append(String.format("%s|%d|%d\n", shardFile.getName(), shardFile.lastModified(), shardFile.length()));
+            }
+            shards.add(shard);
+        }
+        if (signature.toString().equals(peerSignature)) { return false; }
+
+        final ScanRecordIndex merged = new ScanRecordIndex();
+        for (final List<File> shard: shards) {
+            // within a shard, later entries replace earlier ones; across shards, entries are merged
+            final ScanRecordIndex shardLogs = new ScanRecordIndex();
+            try {
+                readTextFile(shard.get(0), shardLogs);
+                for (final File journalFile: shard.subList(1, shard.size())) {
+                    ScanRecordJournal.replay(journalFile, (final LogLine logLine, final Integer attempts) -> {
+                        shardLogs.put(logLine.filename, logLine.titleNumber, attempts);
+                    });
+                }
+            } catch (final FileNotFoundException | NoSuchFileException e) {
+                // compacted while being read; the next reload picks up the new files
+            }
+            shardLogs.forEachSorted((final String filename, final Integer titleNumber, final int attempts) -> {
+                merged.put(filename, titleNumber, merge(merged.get(filename, titleNumber), attempts));
+            });
+        }
+        peerLogs = merged;
+        peerSignature = signature.toString();
+        return true;
+    }
+
+    private void readFile() throws IOException {
         logs.clear();
-        final BufferedReader bufferedReader;
-        try (FileReader fileReader = new FileReader(file)) {
-            bufferedReader = new BufferedReader(fileReader);
+        entryCounts = null;
+        if (format == Format.BINARY) {
+            if (!file.exists()) { new BinaryScanRecordFile.Writer().writeTo(file); }
+            binaryFile = BinaryScanRecordFile.open(file);
+        } else {
+            file.createNewFile();
+            readTextFile(file, logs);
+        }
+        fileModified = file.lastModified();
+        fileLength = file.length();
+    }
+
+    private static void readTextFile(final File textFile, final ScanRecordIndex index) throws IOException {
+        try (FileReader fileReader = new FileReader(textFile)) {
+            final BufferedReader bufferedReader = new BufferedReader(fileReader);
             String line;
             while ((line = bufferedReader.readLine()) != null) {
                 try {
                     final Pair<LogLine, Integer> pair = LogLine.parseLine(line.trim());
-                    logs.put(pair.getKey(), pair.getValue());
+                    index.put(pair.getKey().filename, pair.getKey().titleNumber, pair.getValue());
                 } catch (final IllegalArgumentException ignored) {}
             }
         }
@@ -80,9 +392,8 @@ public class ScanRecord {
      * @param titleNumber title number, if any, to check status of. null for BD dirs or MKV files
      * @return true if success has been recorded
      */
-    public boolean containsSuccess(final String filename, final Integer titleNumber) {
-        final Integer attempts = logs.get(new LogLine(filename, titleNumber));
-        return attempts != null && attempts == SUCCESS_VALUE;
+    public synchronized boolean containsSuccess(final String filename, final Integer titleNumber) {
+        return get(filename, titleNumber) == SUCCESS_VALUE;
     }
 
     /**
@@ -91,44 +402,465 @@ public class ScanRecord {
      * @param titleNumber title number, if any, to check status of. null for BD dirs or MKV files
      * @return true if complete failure has been recorded
      */
-    public boolean containsAbandoned(final String filename, final Integer titleNumber) {
-        final Integer attempts = logs.get(new LogLine(filename, titleNumber));
-        return attempts != null && attempts == ABANDONED_VALUE;
+    public synchronized boolean containsAbandoned(final String filename, final Integer titleNumber) {
+        return get(filename, titleNumber) == ABANDONED_VALUE;
+    }
+
+    /**
+     * Returns true if the scan record contains a record of the BD title having been skipped as a duplicate
+     * @param filename    the BD dir
+     * @param titleNumber title number
+     * @return true if the title was recorded as a duplicate
+     */
+    public synchronized boolean containsDuplicate(final String filename, final Integer titleNumber) {
+        return get(filename, titleNumber) == DUPLICATE_VALUE;
+    }
+
+    /**
+     * Returns true if the scan record contains a record of the BD title having been filtered out
+     * @param filename    the BD dir
+     * @param titleNumber title number
+     * @return true if the title was recorded as filtered
+     */
+    public synchronized boolean containsFiltered(final String filename, final Integer titleNumber) {
+        return get(filename, titleNumber) == FILTERED_VALUE;
+    }
+
+    /**
+     * Returns true if the scan record contains a record of the file or directory having been found unsupported
+     * @param filename    the file or directory
+     * @param titleNumber null
+     * @return true if the file or directory was recorded as unsupported
+     */
+    public synchronized boolean containsUnsupported(final String filename, final Integer titleNumber) {
+        return get(filename, titleNumber) == UNSUPPORTED_VALUE;
+    }
+
+    /**
+     * @param dirName a BD dir
+     * @return true if every title of the BD dir was recorded as done, given up on or skipped
+     */
+    public synchronized boolean containsSettled(final String dirName) {
+        return get(dirName, null) == SETTLED_VALUE;
     }
 
     public void addSuccess(final String filename) {
-        logs.put(new LogLine(filename, null), SUCCESS_VALUE);
+        addSuccess(filename, null);
+    }
+
+    public synchronized void addSuccess(final String filename, final Integer titleNumber) {
+        put(filename, titleNumber, SUCCESS_VALUE);
+    }
+
+    public synchronized void addDuplicate(final String filename, final Integer titleNumber) {
+        put(filename, titleNumber, DUPLICATE_VALUE);
+    }
+
+    public synchronized void addFiltered(final String filename, final Integer titleNumber) {
+        put(filename, titleNumber, FILTERED_VALUE);
     }
 
-    public void addSuccess(final String filename, final Integer titleNumber) {
-        logs.put(new LogLine(filename, titleNumber), SUCCESS_VALUE);
+    public synchronized void addUnsupported(final String filename) {
+        put(filename, null, UNSUPPORTED_VALUE);
+    }
+
+    public synchronized void addSettled(final String dirName) {
+        put(dirName, null, SETTLED_VALUE);
+    }
+
+    /**
+     * Gives a file or title the state another one is recorded with, e.g. when a source turns up again under a new name.
+     * Nothing is copied if the target already has an entry.
+     * @param fromFilename the file or BD dir whose entry is copied
+     * @param toFilename   the file or BD dir the entry is copied to
+     * @param titleNumber  title number, if any. null for BD dirs or MKV files
+     * @return true if an entry was copied
+     */
+    public synchronized boolean copyEntry(final String fromFilename, final String toFilename, final Integer titleNumber) {
+        final int attempts = get(fromFilename, titleNumber);
+        if (attempts == ScanRecordIndex.ABSENT || get(toFilename, titleNumber) != ScanRecordIndex.ABSENT) { return false; }
+        put(toFilename, titleNumber, attempts);
+        return true;
     }
 
     public void addFailure(final String filename) {
         addFailure(filename, null);
     }
 
-    public void addFailure(final String filename, final Integer titleNumber) {
-        final LogLine logLine = new LogLine(filename, titleNumber);
-        if (logs.containsKey(logLine)) {
-            logs.put(logLine, logs.get(logLine) + 1);
-        } else {
-            logs.put(logLine, 1);
+    public synchronized void addFailure(final String filename, final Integer titleNumber) {
+        final int previous = get(filename, titleNumber);
+        final int attempts = previous != ScanRecordIndex.ABSENT ? previous + 1 : 1;
+        put(filename, titleNumber, attempts >= maxRetries ? ABANDONED_VALUE : attempts);
+    }
+
+    /**
+     * Looks up an entry in this record merged with the other shards, if it's shared
+     */
+    private int get(final String filename, final Integer titleNumber) {
+        final int attempts = getOwn(filename, titleNumber);
+        return peerFilePattern == null || attempts == SUCCESS_VALUE ? attempts : merge(attempts, peerLogs.get(filename, titleNumber));
+    }
+
+    /**
+     * Combines what two shards say about an entry: a success in either wins, then any other final state, then the
+     * most failures
+     */
+    private static int merge(final int attempts, final int otherAttempts) {
+        if (attempts == ScanRecordIndex.ABSENT) { return otherAttempts; }
+        if (otherAttempts == ScanRecordIndex.ABSENT) { return attempts; }
+        if (attempts == SUCCESS_VALUE || otherAttempts == SUCCESS_VALUE) { return SUCCESS_VALUE; }
+        if (attempts < 0) { return attempts; }
+        if (otherAttempts < 0) { return otherAttempts; }
+        return Math.max(attempts, otherAttempts);
+    }
+
+    /**
+     * Looks up an entry in the newest changes first, then in changes being compacted, then in the binary file
+     */
+    private int getOwn(final String filename, final Integer titleNumber) {
+        int attempts = logs.get(filename, titleNumber);
+        if (attempts == ScanRecordIndex.ABSENT && compactingLogs != null) {
+            attempts = compactingLogs.get(filename, titleNumber);
+        }
+        if (attempts == ScanRecordIndex.ABSENT && binaryFile != null) {
+            attempts = binaryFile.get(filename, titleNumber);
         }
-        final int attempts = logs.get(logLine);
-        if (attempts >= maxRetries) {
-            logs.put(logLine, ABANDONED_VALUE);
+        return attempts;
+    }
+
+    private void put(final String filename, final Integer titleNumber, final int attempts) {
+        if (entryCounts != null) {
+            countEntry(getOwn(filename, titleNumber), -1);
+            countEntry(attempts, 1);
         }
+        logs.put(filename, titleNumber, attempts);
+        journal.append(new LogLine(filename, titleNumber), attempts);
+    }
+
+    /**
+     * @return how many files and titles are recorded as successfully scanned, generated files included; settled BD
+     * dirs don't count
+     */
+    public synchronized long getSuccessCount() {
+        return entryCounts()[0];
+    }
+
+    /**
+     * @return how many files, titles and BD dirs have failed but will be tried again
+     */
+    public synchronized long getFailureCount() {
+        return entryCounts()[1];
+    }
+
+    /**
+     * @return how many files, titles and BD dirs have failed the max number of times
+     */
+    public synchronized long getAbandonedCount() {
+        return entryCounts()[2];
     }
 
+    /**
+     * @return how many titles, files and BD dirs were skipped without being demuxed, as duplicate or filtered titles or
+     * unsupported files and directories
+     */
+    public synchronized long getSkippedCount() {
+        return entryCounts()[3];
+    }
+
+    private long[] entryCounts() {
+        if (entryCounts == null) {
+            entryCounts = new long[4];
+            forEachMerged(binaryFile, currentChanges(), (final String filename, final Integer titleNumber, final int attempts) -> {
+                countEntry(attempts, 1);
+            });
+        }
+        return entryCounts;
+    }
+
+    private void countEntry(final int attempts, final int delta) {
+        // a BD dir's own entry says nothing its titles' entries don't
+        if (attempts == ScanRecordIndex.ABSENT || attempts == SETTLED_VALUE || attempts == UNSETTLED_VALUE) { return; }
+        entryCounts[attempts == SUCCESS_VALUE ? 0 : attempts == ABANDONED_VALUE ? 2 : attempts == DUPLICATE_VALUE ||
+            attempts == FILTERED_VALUE || attempts == UNSUPPORTED_VALUE ? 3 : 1] += delta;
+    }
+
+    /**
+     * Tests if a file belongs to the scan record: the record file in either format, its journals, or a record file
+     * left over from a format conversion
+     * @param candidate any file
+     * @return true if the file is part of the scan record
+     */
+    public boolean isRecordFile(final File candidate) {
+        final String baseName = file.getName().substring(0, file.getName().length() - format.getExtension().length());
+        if (!candidate.getAbsoluteFile().getParentFile().equals(file.getAbsoluteFile().getParentFile())) { return false; }
+        // the other shards and their journals
+        if (peerFilePattern != null && peerFilePattern.matcher(candidate.getName().replaceFirst("\\.journal\\.\\d+$", "")).matches()) {
+            return true;
+        }
+        return candidate.getName().startsWith(baseName);
+    }
+
+    /**
+     * Commits all changes made since the last call to the journal. Changes from concurrent callers are written
+     * together. Starts a compaction in the background if the journal has gotten big enough.
+     */
     public void writeToFile() {
-        try (FileWriter fileWriter = new FileWriter(file, false)) {
-            for (final Map.Entry<LogLine, Integer> entry: logs.entrySet()) {
-                fileWriter.write(LogLine.writeLine(entry.getKey(), entry.getValue()));
+        final ScanRecordWriteEvent event = new ScanRecordWriteEvent();
+        event.begin();
+        event.file = file.getName();
+        event.kind = "commit";
+        try {
+            event.bytesWritten = journal.commit();
+            event.outcome = Outcome.SUCCESS;
+        } catch (final IOException e) {
+            logger.warn(String.format("Failed to write scan record journal: %s", e.getMessage()), e);
+            event.outcome = Outcome.FAILURE;
+            return;
+        } finally {
+            event.commit();
+        }
+        final int threshold;
+        synchronized (this) {
+            final int recordSize = format == Format.BINARY ? binaryFile.size() + logs.size() : logs.size();
+            threshold = Math.max(MIN_COMPACTION_ENTRIES, recordSize / 2);
+        }
+        if (journal.size() >= threshold && compacting.compareAndSet(false, true)) {
+            background.execute(() -> {
+                try {
+                    compact();
+                } finally {
+                    compacting.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes a whole record, in text format, to a file outside of the record, e.g. so that a binary record can be
+     * inspected. The record file and its journals are only read, never compacted or appended to, so a daemon can be
+     * using the record at the same time; if it compacts the record in the meantime, the record is read again.
+     * @param file   the record file
+     * @param format the format of the record file
+     * @param target where to write
+     * @throws IOException if reading the record or writing the target fails
+     */
+    public static void exportText(final File file, final Format format, final File target) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            final long modified = file.lastModified();
+            final long length = file.length();
+            final ScanRecordIndex changes = new ScanRecordIndex();
+            BinaryScanRecordFile base = null;
+            try {
+                if (format == Format.BINARY) {
+                    if (file.exists()) { base = BinaryScanRecordFile.open(file); }
+                } else if (file.exists()) {
+                    readTextFile(file, changes);
+                }
+                for (final File journalFile: ScanRecordJournal.findJournalFiles(file)) {
+                    ScanRecordJournal.replay(journalFile, (final LogLine logLine, final Integer attempts) -> {
+                        changes.put(logLine.filename, logLine.titleNumber, attempts);
+                    });
+                }
+            } catch (final NoSuchFileException nsfe) {
+                // a journal was compacted away while it was being read
+                if (attempt < 3) { continue; }
+                throw nsfe;
             }
-            fileWriter.flush();
+            if ((file.lastModified() != modified || file.length() != length) && attempt < 3) { continue; }
+            writeRecordFile(target, Format.TEXT, base, changes);
+            return;
+        }
+    }
+
+    /**
+     * @return the changes since the binary file was written, including any that are being compacted; for
+     * {@link Format#TEXT}, the whole record
+     */
+    private ScanRecordIndex currentChanges() {
+        if (compactingLogs == null) { return logs; }
+        final ScanRecordIndex changes = logs.copy();
+        compactingLogs.forEachSorted((final String filename, final Integer titleNumber, final int attempts) -> {
+            if (changes.get(filename, titleNumber) == ScanRecordIndex.ABSENT) {
+                changes.put(filename, titleNumber, attempts);
+            }
+        });
+        return changes;
+    }
+
+    /**
+     * Writes the whole record to a new record file and deletes the journals it replaces. The record file is replaced
+     * atomically, so a crash leaves either the old record file and its journals or the new one.
+     */
+    private void compact() {
+        final ScanRecordIndex changes;
+        final BinaryScanRecordFile base;
+        final long rotatedSequence;
+        final long reloadsBefore;
+        final ScanRecordWriteEvent event = new ScanRecordWriteEvent();
+        event.begin();
+        event.file = file.getName();
+        event.kind = "compaction";
+        event.outcome = Outcome.FAILURE;
+        try {
+            synchronized (this) {
+                if (format == Format.BINARY) {
+                    // new changes go to a fresh index while these are written; lookups check both
+                    compactingLogs = logs;
+                    logs = new ScanRecordIndex();
+                    changes = compactingLogs;
+                } else {
+                    changes = logs.copy();
+                }
+                base = binaryFile;
+                rotatedSequence = journal.rotate();
+                reloadsBefore = reloads;
+            }
+            final File tempFile = new File(file.getPath() + ".tmp");
+            writeRecordFile(tempFile, format, base, changes);
+            synchronized (this) {
+                if (reloads != reloadsBefore) {
+                    // the file was edited and reloaded while this was being written; the edit wins
+                    Files.deleteIfExists(tempFile.toPath());
+                    logger.info(String.format("discarded a compaction of %s that was overtaken by a reload", file.getName()));
+                    event.commit();
+                    return;
+                }
+                replaceRecordFile(tempFile);
+                compactingLogs = null;
+                fileModified = file.lastModified();
+                fileLength = file.length();
+            }
+            journal.deleteThrough(rotatedSequence);
+            event.bytesWritten = fileLength;
+            event.outcome = Outcome.SUCCESS;
         } catch (final IOException e) {
             logger.warn(String.format("Failed to write scan record file: %s", e.getMessage()), e);
+            synchronized (this) {
+                if (compactingLogs != null) {
+                    // put the changes back; anything changed again since then is newer
+                    compactingLogs.forEachSorted((final String filename, final Integer titleNumber, final int attempts) -> {
+                        if (logs.get(filename, titleNumber) == ScanRecordIndex.ABSENT) {
+                            logs.put(filename, titleNumber, attempts);
+                        }
+                    });
+                    compactingLogs = null;
+                }
+            }
+        }
+        event.commit();
+    }
+
+    private void replaceRecordFile(final File tempFile) throws IOException {
+        if (format == Format.TEXT) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        }
+        // Windows won't replace a file that's mapped, and a mapping is only released once it's garbage collected
+        binaryFile = null;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                break;
+            } catch (final FileSystemException fse) {
+                if (attempt == 5) {
+                    binaryFile = BinaryScanRecordFile.open(file);
+                    throw fse;
+                }
+                System.gc();
+            }
+        }
+        binaryFile = BinaryScanRecordFile.open(file);
+    }
+
+    /**
+     * Writes a record file from a base binary file, if any, and the changes since it was written
+     */
+    private static void writeRecordFile(final File target, final Format targetFormat, final BinaryScanRecordFile base,
+            final ScanRecordIndex changes) throws IOException {
+        if (targetFormat == Format.BINARY) {
+            final BinaryScanRecordFile.Writer writer = new BinaryScanRecordFile.Writer();
+            forEachMerged(base, changes, writer);
+            writer.writeTo(target);
+            return;
+        }
+        try (FileOutputStream outputStream = new FileOutputStream(target, false);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream))) {
+            final IOException[] writeException = new IOException[1];
+            forEachMerged(base, changes, (final String filename, final Integer titleNumber, final int attempts) -> {
+                if (writeException[0] != null) { return; }
+                try {
+                    writer.write(LogLine.writeLine(new LogLine(filename, titleNumber), attempts));
+                } catch (final IOException e) {
+                    writeException[0] = e;
+                }
+            });
+            if (writeException[0] != null) { throw writeException[0]; }
+            writer.flush();
+            outputStream.getChannel().force(true);
+        }
+    }
+
+    /**
+     * Visits the entries of a base binary file overlaid with changes, in sorted order, with a change replacing a base
+     * entry that has the same filename and title number
+     */
+    private static void forEachMerged(final BinaryScanRecordFile base, final ScanRecordIndex changes,
+            final ScanRecordIndex.EntryConsumer consumer) {
+        if (base == null) {
+            changes.forEachSorted(consumer);
+            return;
+        }
+        // changes are few compared to the base, so it's fine to collect them
+        final List<LogLine> changedLines = new ArrayList<>();
+        final List<Integer> changedAttempts = new ArrayList<>();
+        changes.forEachSorted((final String filename, final Integer titleNumber, final int attempts) -> {
+            changedLines.add(new LogLine(filename, titleNumber));
+            changedAttempts.add(attempts);
+        });
+        final int[] next = {0};
+        base.forEachSorted((final String filename, final Integer titleNumber, final int attempts) -> {
+            final LogLine baseLine = new LogLine(filename, titleNumber);
+            while (next[0] < changedLines.size()) {
+                final LogLine changedLine = changedLines.get(next[0]);
+                final int order = changedLine.compareTo(baseLine);
+                if (order > 0) { break; }
+                consumer.accept(changedLine.filename, changedLine.titleNumber, changedAttempts.get(next[0]));
+                next[0]++;
+                if (order == 0) { return; }
+            }
+            consumer.accept(filename, titleNumber, attempts);
+        });
+        for (int i = next[0]; i < changedLines.size(); i++) {
+            consumer.accept(changedLines.get(i).filename, changedLines.get(i).titleNumber, changedAttempts.get(i));
+        }
+    }
+
+    /**
+     * Commits any remaining changes and compacts the journal into the record file, unless the record file already has
+     * everything. The record must not be used afterward. Calling this again does nothing.
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) { return; }
+        background.shutdown();
+        try {
+            background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        boolean changed;
+        try {
+            journal.commit();
+            changed = journal.size() > 0;
+        } catch (final IOException e) {
+            logger.warn(String.format("Failed to write scan record journal: %s", e.getMessage()), e);
+            // the changes that couldn't be journaled still make it into the record file
+            changed = true;
+        }
+        if (changed) { compact(); }
+        try {
+            journal.close();
+        } catch (final IOException e) {
+            logger.warn(String.format("Failed to close scan record journal: %s", e.getMessage()), e);
         }
     }
 
@@ -0,0 +1,202 @@
+package com.adashrod.scannerdaemon;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The in-memory contents of a {@link ScanRecord}: a map from (filename, titleNumber) to attempts. Filenames are interned
+ * to int ids in an open-addressing table, and each (filename id, title number) pair is packed into a long key in a
+ * second open-addressing table of primitive keys and values. Lookups don't allocate anything, and an entry costs about
+ * 12 bytes plus table slack, on top of one copy of each distinct filename.
+ *
+ * Not thread-safe; {@link ScanRecord} does the locking.
+ */
+class ScanRecordIndex {
+    /**
+     * returned by {@link #get(String, Integer)} when there is no entry
+     */
+    static final int ABSENT = Integer.MIN_VALUE;
+    /**
+     * stands in for a null title number in packed keys. Title numbers from the demuxer start at 1.
+     */
+    private static final int NO_TITLE = -1;
+    /**
+     * marks an unused slot in the entry table; packed keys never have the sign bit set since filename ids are positive
+     */
+    private static final long EMPTY_KEY = Long.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // filename table: ids are indices into names; nameSlots holds id + 1, 0 meaning empty
+    private String[] names;
+    private int[] nameSlots;
+    private int nameCount;
+
+    // entry table
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    ScanRecordIndex() {
+        clear();
+    }
+
+    private ScanRecordIndex(final ScanRecordIndex other) {
+        names = other.names.clone();
+        nameSlots = other.nameSlots.clone();
+        nameCount = other.nameCount;
+        keys = other.keys.clone();
+        values = other.values.clone();
+        size = other.size;
+    }
+
+    /**
+     * @return a copy that doesn't share any mutable state with this index; copies arrays rather than entries, so it's
+     * cheap enough to do while holding the record's lock
+     */
+    ScanRecordIndex copy() {
+        return new ScanRecordIndex(this);
+    }
+
+    void clear() {
+        names = new String[INITIAL_CAPACITY / 2];
+        nameSlots = new int[INITIAL_CAPACITY];
+        nameCount = 0;
+        keys = new long[INITIAL_CAPACITY];
+        Arrays.fill(keys, EMPTY_KEY);
+        values = new int[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param filename    name of the file or BD dir
+     * @param titleNumber title number, or null for BD dirs and files
+     * @return the recorded attempts, or {@link #ABSENT}
+     */
+    int get(final String filename, final Integer titleNumber) {
+        final int id = findName(filename);
+        if (id == -1) { return ABSENT; }
+        final long key = pack(id, titleNumber);
+        final int mask = keys.length - 1;
+        for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+            final long k = keys[slot];
+            if (k == key) { return values[slot]; }
+            if (k == EMPTY_KEY) { return ABSENT; }
+        }
+    }
+
+    void put(final String filename, final Integer titleNumber, final int attempts) {
+        final long key = pack(internName(filename), titleNumber);
+        final int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY_KEY) {
+            if (keys[slot] == key) {
+                values[slot] = attempts;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = attempts;
+        if (++size * 4 > keys.length * 3) { growEntries(); }
+    }
+
+    /**
+     * Receives entries from {@link #forEachSorted(EntryConsumer)}
+     */
+    interface EntryConsumer {
+        void accept(String filename, Integer titleNumber, int attempts);
+    }
+
+    /**
+     * Visits every entry ordered by filename, then title number with null first, the same order as
+     * {@link ScanRecord.LogLine#compareTo(ScanRecord.LogLine)}
+     */
+    void forEachSorted(final EntryConsumer consumer) {
+        final Integer[] idsByName = new Integer[nameCount];
+        for (int id = 0; id < nameCount; id++) { idsByName[id] = id; }
+        Arrays.sort(idsByName, Comparator.comparing((final Integer id) -> names[id]));
+        final int[] rankOfId = new int[nameCount];
+        for (int rank = 0; rank < nameCount; rank++) { rankOfId[idsByName[rank]] = rank; }
+
+        // re-key each entry by (name rank, title + 1) so a primitive sort puts them in order; title + 1 maps null to 0
+        final long[] sorted = new long[size];
+        int n = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] == EMPTY_KEY) { continue; }
+            final int id = (int) (keys[slot] >>> 32);
+            final int title = (int) keys[slot];
+            sorted[n++] = (long) rankOfId[id] << 32 | (title + 1) & 0xffffffffL;
+        }
+        Arrays.sort(sorted);
+        for (int i = 0; i < n; i++) {
+            final int id = idsByName[(int) (sorted[i] >>> 32)];
+            final int title = (int) sorted[i] - 1;
+            final Integer titleNumber = title == NO_TITLE ? null : title;
+            consumer.accept(names[id], titleNumber, get(names[id], titleNumber));
+        }
+    }
+
+    private int findName(final String filename) {
+        final int mask = nameSlots.length - 1;
+        for (int slot = mix(filename.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+            final int idPlusOne = nameSlots[slot];
+            if (idPlusOne == 0) { return -1; }
+            if (names[idPlusOne - 1].equals(filename)) { return idPlusOne - 1; }
+        }
+    }
+
+    private int internName(final String filename) {
+        final int existing = findName(filename);
+        if (existing != -1) { return existing; }
+        if (nameCount == names.length) { names = Arrays.copyOf(names, names.length * 2); }
+        final int id = nameCount++;
+        names[id] = filename;
+        insertNameSlot(nameSlots, id);
+        if (nameCount * 4 > nameSlots.length * 3) {
+            final int[] newSlots = new int[nameSlots.length * 2];
+            for (int i = 0; i < nameCount; i++) { insertNameSlot(newSlots, i); }
+            nameSlots = newSlots;
+        }
+        return id;
+    }
+
+    private void insertNameSlot(final int[] slots, final int id) {
+        final int mask = slots.length - 1;
+        int slot = mix(names[id].hashCode()) & mask;
+        while (slots[slot] != 0) { slot = (slot + 1) & mask; }
+        slots[slot] = id + 1;
+    }
+
+    private void growEntries() {
+        final long[] oldKeys = keys;
+        final int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY_KEY);
+        values = new int[oldValues.length * 2];
+        final int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY_KEY) { continue; }
+            int slot = mix(oldKeys[i]) & mask;
+            while (keys[slot] != EMPTY_KEY) { slot = (slot + 1) & mask; }
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    private static long pack(final int filenameId, final Integer titleNumber) {
+        return (long) filenameId << 32 | (titleNumber != null ? titleNumber : NO_TITLE) & 0xffffffffL;
+    }
+
+    /**
+     * spreads the bits of a hash so that sequential ids and title numbers don't cluster in linear probing
+     */
+    private static int mix(final long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return (int) (h ^ h >>> 16);
+    }
+}
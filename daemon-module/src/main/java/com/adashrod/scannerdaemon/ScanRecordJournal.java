@@ -0,0 +1,266 @@
+package com.adashrod.scannerdaemon;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * The append-only journal behind {@link ScanRecord}. Every change to the record is appended as one line in the same
+ * "filename|titleNumber|attempts" format as the record file, so replaying a journal over the record file in order
+ * reproduces the latest state. Journals are numbered files next to the record file, e.g. scanRecord.txt.journal.3; a
+ * compaction starts a new journal and deletes the older ones once their contents are in the record file.
+ *
+ * Appended lines are buffered until {@link #commit()}, which writes everything buffered so far in one write, so
+ * concurrent workers committing around the same time share one write and one fsync.
+ */
+class ScanRecordJournal implements Closeable {
+    /**
+     * When a commit is forced to the storage device
+     */
+    enum FsyncPolicy {
+        /**
+         * every commit is forced before it returns
+         */
+        ALWAYS,
+        /**
+         * commits are forced in the background about once a second
+         */
+        PERIODIC,
+        /**
+         * commits are left to the OS to write out
+         */
+        NEVER
+    }
+
+    private static final String JOURNAL_INFIX = ".journal.";
+
+    private final File recordFile;
+    private final FsyncPolicy fsyncPolicy;
+    private final StringBuilder pending = new StringBuilder();
+    private int pendingEntries;
+    /**
+     * held while writing to or swapping the journal file
+     */
+    private final Object writeLock = new Object();
+    private FileChannel channel;
+    private long sequence;
+    /**
+     * entries committed since the last compaction
+     */
+    private int committedEntries;
+    private boolean unforced;
+
+    ScanRecordJournal(final File recordFile, final FsyncPolicy fsyncPolicy) {
+        this.recordFile = recordFile;
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    /**
+     * Replays every existing journal, oldest first, then opens a new journal for appending
+     * @param consumer receives each entry in the order they were appended
+     * @throws IOException if a journal can't be read or the new one can't be created
+     */
+    void open(final BiConsumer<ScanRecord.LogLine, Integer> consumer) throws IOException {
+        synchronized (writeLock) {
+            committedEntries = 0;
+            for (final File journalFile: findJournalFiles(recordFile)) {
+                committedEntries += replay(journalFile, consumer);
+                sequence = Math.max(sequence, sequenceOf(journalFile));
+            }
+            openNext();
+        }
+    }
+
+    /**
+     * Reads a journal without opening it for appending, e.g. one that belongs to another node's record
+     * @param journalFile a journal file from {@link #findJournalFiles(File)}
+     * @param consumer    receives each entry in the order they were appended
+     * @return how many entries were read
+     * @throws IOException if the journal can't be read
+     */
+    static int replay(final File journalFile, final BiConsumer<ScanRecord.LogLine, Integer> consumer) throws IOException {
+        // a crash can leave the last line partially written; only complete lines count
+        final String content = new String(Files.readAllBytes(journalFile.toPath()), Charset.defaultCharset());
+        final int end = content.lastIndexOf('\n');
+        if (end == -1) { return 0; }
+        int entries = 0;
+        for (final String line: content.substring(0, end).split("\n")) {
+            try {
+                final Pair<ScanRecord.LogLine, Integer> pair = ScanRecord.LogLine.parseLine(line.trim());
+                consumer.accept(pair.getKey(), pair.getValue());
+                entries++;
+            } catch (final IllegalArgumentException ignored) {}
+        }
+        return entries;
+    }
+
+    /**
+     * Buffers an entry to be written by the next commit
+     */
+    void append(final ScanRecord.LogLine logLine, final int attempts) {
+        synchronized (pending) {
+            pending.append(ScanRecord.LogLine.writeLine(logLine, attempts));
+            pendingEntries++;
+        }
+    }
+
+    /**
+     * Writes all buffered entries to the journal, forcing them to the device if the fsync policy is
+     * {@link FsyncPolicy#ALWAYS}
+     * @return how many bytes were written, 0 if there was nothing to commit
+     * @throws IOException if writing fails
+     */
+    int commit() throws IOException {
+        synchronized (writeLock) {
+            final String batch;
+            final int batchEntries;
+            synchronized (pending) {
+                if (pendingEntries == 0) { return 0; }
+                batch = pending.toString();
+                batchEntries = pendingEntries;
+                pending.setLength(0);
+                pendingEntries = 0;
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(batch.getBytes(Charset.defaultCharset()));
+            final int bytes = buffer.remaining();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            committedEntries += batchEntries;
+            if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+                channel.force(false);
+            } else {
+                unforced = true;
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Forces any commits that haven't been forced yet. Used for {@link FsyncPolicy#PERIODIC}.
+     * @throws IOException if forcing fails
+     */
+    void force() throws IOException {
+        synchronized (writeLock) {
+            if (unforced) {
+                channel.force(false);
+                unforced = false;
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries committed since the last compaction
+     */
+    int size() {
+        synchronized (writeLock) {
+            return committedEntries;
+        }
+    }
+
+    /**
+     * Commits and closes the current journal and starts a new one. Must be called while the record is locked so that
+     * the rotated journals contain exactly the changes in the record at that point.
+     * @return the sequence number of the last rotated journal; see {@link #deleteThrough(long)}
+     * @throws IOException if the journals can't be written or a new one can't be created
+     */
+    long rotate() throws IOException {
+        synchronized (writeLock) {
+            commit();
+            channel.force(false);
+            channel.close();
+            final long rotated = sequence;
+            committedEntries = 0;
+            openNext();
+            return rotated;
+        }
+    }
+
+    /**
+     * Deletes journals whose contents have been written to the record file
+     * @param lastSequence journals numbered up to and including this are deleted
+     */
+    void deleteThrough(final long lastSequence) {
+        for (final File journalFile: findJournalFiles(recordFile)) {
+            if (sequenceOf(journalFile) <= lastSequence) {
+                journalFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Discards everything buffered and journaled and starts a new, empty journal
+     * @throws IOException if a new journal can't be created
+     */
+    void reset() throws IOException {
+        synchronized (writeLock) {
+            synchronized (pending) {
+                pending.setLength(0);
+                pendingEntries = 0;
+            }
+            channel.close();
+            deleteThrough(sequence);
+            committedEntries = 0;
+            openNext();
+        }
+    }
+
+    /**
+     * Closes the journal and deletes all journal files, e.g. after the record has been converted to another format
+     * @throws IOException if closing fails
+     */
+    void delete() throws IOException {
+        synchronized (writeLock) {
+            channel.close();
+            deleteThrough(Long.MAX_VALUE);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            commit();
+            force();
+            channel.close();
+        }
+    }
+
+    private void openNext() throws IOException {
+        sequence++;
+        final File journalFile = new File(recordFile.getPath() + JOURNAL_INFIX + sequence);
+        channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+        unforced = false;
+    }
+
+    /**
+     * @param recordFile a record file
+     * @return the record's journals, oldest first
+     */
+    static List<File> findJournalFiles(final File recordFile) {
+        final String prefix = recordFile.getName() + JOURNAL_INFIX;
+        final File[] files = recordFile.getAbsoluteFile().getParentFile().listFiles((final File dir, final String name) -> {
+            return name.startsWith(prefix) && name.substring(prefix.length()).matches("\\d+");
+        });
+        final List<File> journalFiles = new ArrayList<>();
+        if (files != null) {
+            for (final File file: files) { journalFiles.add(file); }
+        }
+        journalFiles.sort(Comparator.comparingLong(ScanRecordJournal::sequenceOf));
+        return journalFiles;
+    }
+
+    private static long sequenceOf(final File journalFile) {
+        final String name = journalFile.getName();
+        return Long.parseLong(name.substring(name.lastIndexOf(JOURNAL_INFIX) + JOURNAL_INFIX.length()));
+    }
+}
@@ -0,0 +1,29 @@
+package com.adashrod.scannerdaemon;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link SupervisingFileScanner} when a call to the demuxer was given up on, either because it took longer
+ * than its timeout or because its output stopped growing. Its processes have been killed by the time this is thrown.
+ */
+class ScannerTimeoutException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean stalled;
+
+    /**
+     * @param message what was given up on and why
+     * @param stalled true if the output stopped growing, false if the call ran out of time
+     */
+    ScannerTimeoutException(final String message, final boolean stalled) {
+        super(message);
+        this.stalled = stalled;
+    }
+
+    /**
+     * @return true if the output stopped growing, false if the call ran out of time
+     */
+    boolean isStalled() {
+        return stalled;
+    }
+}
@@ -0,0 +1,179 @@
+package com.adashrod.scannerdaemon;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Tells what an entry of the directory being scanned is before the demuxer is run on it, so that folders of extras or
+ * photos and files that aren't video, which the demuxer would only fail on, never get as far as starting a process.
+ * <ul>
+ *     <li>a directory is a BD dir if its BDMV directory has an index.bdmv or MovieObject.bdmv (INDEX.BDM or
+ *     MOVIEOBJ.BDM for AVCHD)</li>
+ *     <li>a file is recognized by the magic bytes at its start: EBML for Matroska and WebM, sync bytes every 188 bytes
+ *     for transport streams or every 192 bytes for BD clips, an MPEG start code followed by a pack header or the
+ *     sequence header or NAL unit an MPEG-2, VC-1, H.264 or HEVC stream starts with, the ISO media box types of MP4 and
+ *     MOV, RIFF for AVI and WAV, and the sync words of the raw audio formats eac3to reads</li>
+ * </ul>
+ * Empty entries, a BDMV directory without either file, and files that start with nothing but zeros while they're still
+ * growing or being written to are most likely still being copied, so they're {@link Kind#INCOMPLETE} rather than
+ * unsupported. A file that starts with zeros and isn't changing, e.g. a disc image, is unsupported.
+ */
+class SourceClassifier {
+    /**
+     * enough for three transport stream packets of BD clips
+     */
+    private static final int HEADER_BYTES = 392;
+    private static final String[] BD_STRUCTURE_FILES = {"index.bdmv", "MovieObject.bdmv", "INDEX.BDM", "MOVIEOBJ.BDM"};
+    private static final String[] ISO_MEDIA_BOXES = {"ftyp", "moov", "mdat", "free", "skip", "wide", "pnot"};
+    /**
+     * how long a file that starts with zeros is watched for changes in its size or modification time
+     */
+    private static final long CHANGE_CHECK_MS = 1000;
+
+    enum Kind {
+        BLU_RAY,
+        CONTAINER,
+        /**
+         * can't be told yet, e.g. because it's still being copied
+         */
+        INCOMPLETE,
+        UNSUPPORTED
+    }
+
+    private SourceClassifier() {}
+
+    /**
+     * @param source an entry of the directory being scanned
+     * @return what it is
+     * @throws IOException if a file can't be read
+     */
+    static Kind classify(final File source) throws IOException {
+        return source.isDirectory() ? classifyDir(source) : classifyFile(source);
+    }
+
+    private static Kind classifyDir(final File dir) {
+        final File bdmv = new File(dir, "BDMV");
+        final String[] bdmvNames = bdmv.list();
+        if (bdmvNames != null) {
+            for (final String name: bdmvNames) {
+                for (final String structureFile: BD_STRUCTURE_FILES) {
+                    if (name.equalsIgnoreCase(structureFile)) { return Kind.BLU_RAY; }
+                }
+            }
+            return Kind.INCOMPLETE;
+        }
+        final String[] names = dir.list();
+        return names != null && names.length == 0 ? Kind.INCOMPLETE : Kind.UNSUPPORTED;
+    }
+
+    private static Kind classifyFile(final File file) throws IOException {
+        final BasicFileAttributes before = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        if (before.size() == 0) { return Kind.INCOMPLETE; }
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (header.hasRemaining()) {
+                // files shorter than the header end early
+                if (channel.read(header) < 0) { break; }
+            }
+        }
+        final byte[] bytes = new byte[header.position()];
+        header.flip();
+        header.get(bytes);
+        boolean allZero = true;
+        for (final byte b: bytes) {
+            if (b != 0) {
+                allZero = false;
+                break;
+            }
+        }
+        if (allZero) { return isChanging(file, before) ? Kind.INCOMPLETE : Kind.UNSUPPORTED; }
+        return isContainer(bytes) ? Kind.CONTAINER : Kind.UNSUPPORTED;
+    }
+
+    /**
+     * @param before the file's attributes from before its header was read
+     * @return true if the file's size or modification time changes within {@link #CHANGE_CHECK_MS} of before
+     */
+    private static boolean isChanging(final File file, final BasicFileAttributes before) throws IOException {
+        try {
+            Thread.sleep(CHANGE_CHECK_MS);
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            // can't tell; looked at again next time
+            return true;
+        }
+        final BasicFileAttributes after = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        return after.size() != before.size() || !after.lastModifiedTime().equals(before.lastModifiedTime());
+    }
+
+    private static boolean isContainer(final byte[] bytes) {
+        // Matroska, WebM
+        if (startsWith(bytes, 0, 0x1a, 0x45, 0xdf, 0xa3)) { return true; }
+        // transport stream; BD clips have a 4-byte timestamp before each packet
+        if (syncEvery(bytes, 0, 188) || syncEvery(bytes, 4, 192)) { return true; }
+        // MPEG program stream (VOB, EVO), MPEG-2, H.264, HEVC and VC-1 elementary streams
+        if (isMpegStart(bytes)) { return true; }
+        // MP4, MOV
+        if (bytes.length >= 8) {
+            final String box = new String(bytes, 4, 4, StandardCharsets.ISO_8859_1);
+            for (final String isoMediaBox: ISO_MEDIA_BOXES) {
+                if (box.equals(isoMediaBox)) { return true; }
+            }
+        }
+        // AVI, WAV, RF64, Wave64
+        if (startsWith(bytes, 0, 'R', 'I', 'F', 'F') || startsWith(bytes, 0, 'R', 'F', '6', '4') ||
+                startsWith(bytes, 0, 'r', 'i', 'f', 'f', 0x2e, 0x91, 0xcf, 0x11)) {
+            return true;
+        }
+        // AC3 and E-AC3, DTS (16- and 14-bit, either byte order), FLAC, TrueHD and MLP
+        return startsWith(bytes, 0, 0x0b, 0x77) || startsWith(bytes, 0, 0x7f, 0xfe, 0x80, 0x01) ||
+            startsWith(bytes, 0, 0xfe, 0x7f, 0x01, 0x80) || startsWith(bytes, 0, 0x1f, 0xff, 0xe8, 0x00) ||
+            startsWith(bytes, 0, 0xff, 0x1f, 0x00, 0xe8) || startsWith(bytes, 0, 'f', 'L', 'a', 'C') ||
+            startsWith(bytes, 4, 0xf8, 0x72, 0x6f, 0xba) || startsWith(bytes, 4, 0xf8, 0x72, 0x6f, 0xbb);
+    }
+
+    /**
+     * @return true if bytes start with an MPEG start code, 00 00 01 or 00 00 00 01, followed by what a program or
+     * elementary stream starts with; the start code alone would match e.g. an .ico file too
+     */
+    private static boolean isMpegStart(final byte[] bytes) {
+        final int offset = startsWith(bytes, 0, 0x00, 0x00, 0x01) ? 3 : startsWith(bytes, 0, 0x00, 0x00, 0x00, 0x01) ? 4 : -1;
+        if (offset < 0 || bytes.length <= offset) { return false; }
+        final int code = bytes[offset] & 0xff;
+        // pack header, MPEG-1/2 sequence header, VC-1 sequence header
+        if (code == 0xba || code == 0xb3 || code == 0x0f) { return true; }
+        // NAL unit headers have the forbidden zero bit clear
+        if ((code & 0x80) != 0) { return false; }
+        // H.264 SEI, sequence parameter set or access unit delimiter
+        final int h264Type = code & 0x1f;
+        if (h264Type == 6 || h264Type == 7 || h264Type == 9) { return true; }
+        // HEVC video parameter set, sequence parameter set, access unit delimiter or prefix SEI
+        final int hevcType = code >> 1 & 0x3f;
+        return hevcType == 32 || hevcType == 33 || hevcType == 35 || hevcType == 39;
+    }
+
+    private static boolean startsWith(final byte[] bytes, final int offset, final int... magic) {
+        if (bytes.length < offset + magic.length) { return false; }
+        for (int i = 0; i < magic.length; i++) {
+            if ((bytes[offset + i] & 0xff) != magic[i]) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if there's a 0x47 sync byte at offset and every packetSize bytes after it, at least twice
+     */
+    private static boolean syncEvery(final byte[] bytes, final int offset, final int packetSize) {
+        if (bytes.length < offset + packetSize + 1) { return false; }
+        for (int i = offset; i < bytes.length; i += packetSize) {
+            if (bytes[i] != 0x47) { return false; }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,180 @@
+package com.adashrod.scannerdaemon;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Identifies sources by their content rather than their name, so that a source that was renamed, or copied in a second
+ * time under another name, can be recognized. Fingerprints are cheap enough to take every time a source is scanned:
+ * <ul>
+ *     <li>a container file by its size and a hash of {@link #SAMPLES} chunks of {@link #CHUNK_BYTES} spread over it,
+ *     which is the whole file if it's small</li>
+ *     <li>a BD dir by a hash of the structure files in BDMV, i.e. index.bdmv, MovieObject.bdmv and the playlists and
+ *     clip infos, which are small, plus the names and sizes of the clips in BDMV/STREAM</li>
+ * </ul>
+ * Unlike {@link CachingFileScanner#fingerprint(File)}, modification times aren't part of it, since copying doesn't
+ * always keep them. The name each fingerprint was first seen under is persisted in cache/sourceFingerprints.txt.
+ */
+class SourceFingerprints {
+    static final int SAMPLES = 3;
+    static final int CHUNK_BYTES = 1 << 20;
+
+    private final Logger logger = Logger.getLogger(SourceFingerprints.class);
+
+    private final File fingerprintsFile;
+    /**
+     * fingerprint -> name of the entry in the directory being scanned
+     */
+    private final Map<String, String> names = new HashMap<>();
+
+    /**
+     * @param cacheDir where the fingerprints are persisted
+     */
+    SourceFingerprints(final File cacheDir) {
+        fingerprintsFile = new File(cacheDir, "sourceFingerprints.txt");
+        load();
+    }
+
+    /**
+     * Remembers the name of a source unless its fingerprint is already known
+     * @param fingerprint the source's fingerprint from {@link #fingerprint(File)}
+     * @param name        the source's name
+     * @return the name the fingerprint was already known under, or null if it wasn't
+     */
+    synchronized String putIfAbsent(final String fingerprint, final String name) {
+        final String known = names.putIfAbsent(fingerprint, name);
+        if (known == null) { save(); }
+        return known;
+    }
+
+    /**
+     * Remembers a new name for a source, e.g. after it was renamed
+     * @param fingerprint the source's fingerprint from {@link #fingerprint(File)}
+     * @param name        the source's name
+     */
+    synchronized void put(final String fingerprint, final String name) {
+        if (!name.equals(names.put(fingerprint, name))) { save(); }
+    }
+
+    /**
+     * @param source a container file or BD dir
+     * @return a hex digest, or null for a directory that isn't a BD dir
+     * @throws IOException if the source can't be read
+     */
+    static String fingerprint(final File source) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException nsae) {
+            // every Java platform is required to support SHA-1
+            throw new IllegalStateException(nsae);
+        }
+        if (source.isDirectory()) {
+            final File bdmv = new File(source, "BDMV");
+            if (!bdmv.isDirectory()) { return null; }
+            digest.update("bd\n".getBytes(StandardCharsets.UTF_8));
+            for (final String name: new String[] {"index.bdmv", "MovieObject.bdmv", "PLAYLIST", "CLIPINF"}) {
+                final File file = new File(bdmv, name);
+                final File[] files = file.isDirectory() ? file.listFiles(File::isFile) : file.isFile() ? new File[] {file} : new File[0];
+                Arrays.sort(files, Comparator.comparing(File::getName));
+                for (final File structureFile: files) {
+                    digest.update(String.format("%s|%d\n", structureFile.getName(), structureFile.length()).getBytes(StandardCharsets.UTF_8));
+                    digest.update(Files.readAllBytes(structureFile.toPath()));
+                }
+            }
+            final File[] clips = new File(bdmv, "STREAM").listFiles(File::isFile);
+            if (clips != null) {
+                Arrays.sort(clips, Comparator.comparing(File::getName));
+                for (final File clip: clips) {
+                    digest.update(String.format("%s|%d\n", clip.getName(), clip.length()).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } else {
+            try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                final long size = channel.size();
+                digest.update(String.format("file|%d\n", size).getBytes(StandardCharsets.UTF_8));
+                final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+                if (size <= (long) SAMPLES * CHUNK_BYTES) {
+                    sample(channel, 0, size, chunk, digest);
+                } else {
+                    // evenly spaced, from the start of the file to the end
+                    for (int i = 0; i < SAMPLES; i++) {
+                        sample(channel, (size - CHUNK_BYTES) / (SAMPLES - 1) * i, CHUNK_BYTES, chunk, digest);
+                    }
+                }
+            }
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b: digest.digest()) { hex.append(String.format("%02x", b)); }
+        return hex.toString();
+    }
+
+    /**
+     * Hashes length bytes of the channel starting at position, a chunk at a time
+     */
+    private static void sample(final FileChannel channel, final long position, final long length, final ByteBuffer chunk,
+            final MessageDigest digest) throws IOException {
+        long read = 0;
+        while (read < length) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), length - read));
+            final int n = channel.read(chunk, position + read);
+            // the file got shorter since its size was read
+            if (n < 0) { break; }
+            chunk.flip();
+            digest.update(chunk);
+            read += n;
+        }
+    }
+
+    private void load() {
+        if (!fingerprintsFile.exists()) { return; }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(fingerprintsFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split("\t", 2);
+                if (parts.length != 2) { continue; }
+                names.put(parts[0], parts[1]);
+            }
+        } catch (final IOException ioe) {
+            logger.warn(String.format("Ignoring unreadable source fingerprints %s: %s", fingerprintsFile, ioe));
+            names.clear();
+        }
+    }
+
+    private void save() {
+        final File tempFile = new File(fingerprintsFile.getPath() + ".tmp");
+        fingerprintsFile.getAbsoluteFile().getParentFile().mkdirs();
+        try {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile, false), StandardCharsets.UTF_8))) {
+                for (final Map.Entry<String, String> entry: names.entrySet()) {
+                    writer.write(String.format("%s\t%s\n", entry.getKey(), entry.getValue()));
+                }
+            }
+            Files.move(tempFile.toPath(), fingerprintsFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException ioe) {
+            logger.warn(String.format("Failed to write source fingerprints %s: %s", fingerprintsFile, ioe.getMessage()));
+        }
+    }
+}
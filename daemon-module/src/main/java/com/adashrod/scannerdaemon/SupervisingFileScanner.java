@@ -0,0 +1,378 @@
+package com.adashrod.scannerdaemon;
+
+import com.adashrod.mkvscanner.DemuxerException;
+import com.adashrod.mkvscanner.FileScanner;
+import com.adashrod.mkvscanner.model.Iso639Language;
+import com.adashrod.mkvscanner.model.Video;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * A FileScanner that gives up on calls to the wrapped scanner that hang, e.g. an eac3to stuck on a bad sector, so that
+ * one bad disc can't hold up a demux worker forever. Each call runs on its own thread and is given up on if it:
+ * <ul>
+ *     <li>takes longer than a base timeout plus the time it would take to demux its input at a minimum rate, or</li>
+ *     <li>for demuxes, doesn't add anything to its output files for the stall timeout</li>
+ * </ul>
+ * When a call is given up on, the demuxer processes that were started for it are killed along with their own child
+ * processes, and a {@link ScannerTimeoutException} is thrown, so the caller records it as a failure like any other.
+ *
+ * A call's processes are found among the children of this JVM while it runs: a new child has to be the demuxer's
+ * executable, and goes to the call whose input its arguments name, or, where the OS doesn't report arguments (Windows),
+ * to the oldest running call that started before it and doesn't have a live process. Anything else this JVM starts,
+ * e.g. a plugin's ps, is left alone.
+ *
+ * The progress of each running demux, judged by how much it has written so far, is shown as an MBean named
+ * com.adashrod.scannerdaemon:type=Scanner.
+ */
+class SupervisingFileScanner implements FileScanner, SupervisingFileScannerMBean {
+    /**
+     * how often a running call is checked on
+     */
+    private static final long POLL_MS = 5000;
+    /**
+     * how long to wait for a call to return after its processes were killed
+     */
+    private static final long KILL_WAIT_MS = 10_000;
+    /**
+     * how often a running call that doesn't have a live process is checked for a new one
+     */
+    private static final long SPAWN_POLL_MS = 100;
+
+    private final Logger logger = Logger.getLogger(SupervisingFileScanner.class);
+
+    private final FileScanner fileScanner;
+    private final File outputDir;
+    private final OutputSizeEstimator outputSizeEstimator;
+    private final long baseTimeoutMs;
+    private final long minBytesPerSecond;
+    private final long stallMs;
+    /**
+     * the demuxer executable's name, lower case and without .exe, or null if any child process could be the demuxer
+     */
+    private final String demuxerName;
+    private final ExecutorService callers;
+    /**
+     * the calls running right now, by item
+     */
+    private final Map<String, RunningCall> runningCalls = new ConcurrentHashMap<>();
+    /**
+     * every call running right now, oldest first, along with the processes found for it
+     */
+    private final List<RunningCall> calls = new ArrayList<>();
+    /**
+     * pids of this JVM's children that aren't a demuxer of any call; guarded by {@link #calls}
+     */
+    private final Set<Long> ignoredPids = new HashSet<>();
+
+    /**
+     * @param fileScanner         the scanner that does the actual work
+     * @param outputDir           where the demuxer writes its output, watched for stalls
+     * @param outputSizeEstimator estimates how much each demux reads, to scale its timeout
+     * @param baseTimeoutMs       how long any call may take, on top of the time for its input
+     * @param minBytesPerSecond   the slowest rate a demux is allowed to read its input at, 0 for no limit beyond the base
+     *                            timeout
+     * @param stallMs             how long a demux may go without adding to its output, 0 for no limit
+     * @param demuxerExecutable   the demuxer's executable, to tell its processes from others this JVM starts, or null if
+     *                            any child process could be the demuxer
+     */
+    SupervisingFileScanner(final FileScanner fileScanner, final File outputDir, final OutputSizeEstimator outputSizeEstimator,
+            final long baseTimeoutMs, final long minBytesPerSecond, final long stallMs, final String demuxerExecutable) {
+        this.fileScanner = fileScanner;
+        this.outputDir = outputDir;
+        this.outputSizeEstimator = outputSizeEstimator;
+        this.baseTimeoutMs = baseTimeoutMs;
+        this.minBytesPerSecond = minBytesPerSecond;
+        this.stallMs = stallMs;
+        demuxerName = demuxerExecutable != null ? executableName(demuxerExecutable) : null;
+        final AtomicInteger callerCount = new AtomicInteger();
+        callers = Executors.newCachedThreadPool((final Runnable runnable) -> {
+            final Thread thread = new Thread(runnable, "scanner-call-" + callerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public String exec(final File file, final String... args) throws DemuxerException, IOException {
+        return supervise(file.getName(), file, 0, null, () -> fileScanner.exec(file, args));
+    }
+
+    @Override
+    public Video scanAndParseFile(final File file) throws DemuxerException, IOException {
+        return supervise(file.getName(), file, 0, null, () -> fileScanner.scanAndParseFile(file));
+    }
+
+    @Override
+    public Set<Integer> scanBluRayDir(final File bluRayDir) throws DemuxerException, IOException {
+        return supervise(bluRayDir.getName(), bluRayDir, 0, null, () -> fileScanner.scanBluRayDir(bluRayDir));
+    }
+
+    @Override
+    public Video scanAndParseBluRayTitle(final File bluRayDir, final int titleNumber) throws DemuxerException, IOException {
+        return supervise(String.format("%s title %d", bluRayDir.getName(), titleNumber), bluRayDir, 0, null,
+            () -> fileScanner.scanAndParseBluRayTitle(bluRayDir, titleNumber));
+    }
+
+    @Override
+    public Collection<String> demuxBluRayTitleByTracks(final File bluRayDir, final int titleNumber, final Collection<Integer> tracks)
+            throws DemuxerException, IOException {
+        return supervise(String.format("%s title %d", bluRayDir.getName(), titleNumber), bluRayDir,
+            outputSizeEstimator.estimateTitle(bluRayDir), DemuxCheckpoints.titleOutputPattern(bluRayDir, titleNumber),
+            () -> fileScanner.demuxBluRayTitleByTracks(bluRayDir, titleNumber, tracks));
+    }
+
+    @Override
+    public Collection<String> demuxBluRayTitleByLanguages(final File bluRayDir, final int titleNumber,
+            final Collection<Iso639Language> languages) throws DemuxerException, IOException {
+        return supervise(String.format("%s title %d", bluRayDir.getName(), titleNumber), bluRayDir,
+            outputSizeEstimator.estimateTitle(bluRayDir), DemuxCheckpoints.titleOutputPattern(bluRayDir, titleNumber),
+            () -> fileScanner.demuxBluRayTitleByLanguages(bluRayDir, titleNumber, languages));
+    }
+
+    @Override
+    public Collection<String> demuxFileByTracks(final File file, final Collection<Integer> tracks) throws DemuxerException, IOException {
+        return supervise(file.getName(), file, outputSizeEstimator.estimateFile(file), DemuxCheckpoints.fileOutputPattern(file),
+            () -> fileScanner.demuxFileByTracks(file, tracks));
+    }
+
+    @Override
+    public Collection<String> demuxFileByLanguages(final File file, final Collection<Iso639Language> languages)
+            throws DemuxerException, IOException {
+        return supervise(file.getName(), file, outputSizeEstimator.estimateFile(file), DemuxCheckpoints.fileOutputPattern(file),
+            () -> fileScanner.demuxFileByLanguages(file, languages));
+    }
+
+    /**
+     * Stops the threads the calls run on, interrupting any that are running
+     */
+    void close() {
+        callers.shutdownNow();
+    }
+
+    @Override
+    public String[] getRunningCalls() {
+        final long now = System.currentTimeMillis();
+        return runningCalls.entrySet().stream().map((final Map.Entry<String, RunningCall> entry) -> {
+            final RunningCall call = entry.getValue();
+            final long elapsedMs = Math.max(1, now - call.startMs);
+            // the estimate is an upper bound, so the percentage is low when not every track is kept
+            final String percent = call.estimatedBytes > 0 ?
+                Math.min(99, 100 * call.outputBytes / call.estimatedBytes) + "%" : "?%";
+            return String.format("%s: %s, %.1f MB/s, running %d min", entry.getKey(), percent,
+                1000.0 * call.outputBytes / elapsedMs / (1 << 20), elapsedMs / 60_000);
+        }).sorted().toArray(String[]::new);
+    }
+
+    /**
+     * Runs a call to the wrapped scanner and waits for it, killing it if it runs out of time or stalls
+     * @param item          what the call is about, for messages
+     * @param input         the file or BD dir passed to the demuxer
+     * @param inputBytes    how much the call reads, to scale the timeout; 0 for just the base timeout
+     * @param outputPattern regex of the names of the files the call writes in the output dir, or null if it doesn't
+     *                      write any, in which case it can't stall
+     * @param call          the call
+     */
+    private <T> T supervise(final String item, final File input, final long inputBytes, final String outputPattern,
+            final ScannerCall<T> call) throws DemuxerException, IOException {
+        final long timeoutMs = baseTimeoutMs + (minBytesPerSecond > 0 ? 1000 * (inputBytes / minBytesPerSecond) : 0);
+        final Pattern outputs = outputPattern != null ? Pattern.compile(outputPattern) : null;
+        final RunningCall runningCall = new RunningCall(input.getName(), inputBytes);
+        final long start = runningCall.startMs;
+        synchronized (calls) {
+            calls.add(runningCall);
+        }
+        if (outputs != null) { runningCalls.put(item, runningCall); }
+        final Future<T> future = callers.submit(call::call);
+        long lastCheck = start;
+        long lastGrowth = start;
+        try {
+            while (true) {
+                findProcesses();
+                try {
+                    return future.get(hasLiveProcess(runningCall) ? POLL_MS : SPAWN_POLL_MS, TimeUnit.MILLISECONDS);
+                } catch (final TimeoutException te) {
+                    final long now = System.currentTimeMillis();
+                    if (now - lastCheck < POLL_MS) { continue; }
+                    lastCheck = now;
+                    if (now - start >= timeoutMs) {
+                        throw giveUp(future, item, runningCall, false,
+                            String.format("%s timed out after %d minute(s)", item, (now - start) / 60_000));
+                    }
+                    if (outputs == null) { continue; }
+                    final long outputBytes = outputBytes(outputs);
+                    if (outputBytes != runningCall.outputBytes) {
+                        runningCall.outputBytes = outputBytes;
+                        lastGrowth = now;
+                    } else if (stallMs > 0 && now - lastGrowth >= stallMs) {
+                        throw giveUp(future, item, runningCall, true,
+                            String.format("%s stalled: no output for %d minute(s)", item, (now - lastGrowth) / 60_000));
+                    }
+                }
+            }
+        } catch (final InterruptedException ie) {
+            // e.g. the daemon is shutting down; don't leave the demuxer running
+            Thread.currentThread().interrupt();
+            killProcesses(item, runningCall);
+            future.cancel(true);
+            throw new IOException(String.format("interrupted while demuxing %s", item));
+        } catch (final ExecutionException ee) {
+            final Throwable cause = ee.getCause();
+            if (cause instanceof DemuxerException) { throw (DemuxerException) cause; }
+            if (cause instanceof IOException) { throw (IOException) cause; }
+            if (cause instanceof RuntimeException) { throw (RuntimeException) cause; }
+            if (cause instanceof Error) { throw (Error) cause; }
+            throw new IOException(cause);
+        } finally {
+            runningCalls.remove(item, runningCall);
+            synchronized (calls) {
+                calls.remove(runningCall);
+            }
+        }
+    }
+
+    private ScannerTimeoutException giveUp(final Future<?> future, final String item, final RunningCall runningCall,
+            final boolean stalled, final String message) throws InterruptedException {
+        killProcesses(item, runningCall);
+        future.cancel(true);
+        try {
+            // the call should return or fail soon after its processes are gone
+            future.get(KILL_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (final ExecutionException | TimeoutException | RuntimeException ignored) {
+            // CancellationException included; the call's thread is a daemon thread, so it can't keep the JVM alive
+        }
+        return new ScannerTimeoutException(message, stalled);
+    }
+
+    /**
+     * Assigns the children of this JVM that are new since the last time to the calls they were started for; see the
+     * class comment
+     */
+    private void findProcesses() {
+        final List<ProcessHandle> children = ProcessHandle.current().children().collect(Collectors.toList());
+        synchronized (calls) {
+            // forget the pids of children that are gone, since pids get reused
+            ignoredPids.retainAll(children.stream().map(ProcessHandle::pid).collect(Collectors.toSet()));
+            final Set<Long> known = new HashSet<>(ignoredPids);
+            calls.forEach((final RunningCall call) -> call.processes.forEach((final ProcessHandle process) -> known.add(process.pid())));
+            children.stream()
+                .filter((final ProcessHandle process) -> !known.contains(process.pid()))
+                .sorted(Comparator.comparing((final ProcessHandle process) -> process.info().startInstant().orElse(Instant.MAX)))
+                .forEach((final ProcessHandle process) -> {
+                    final RunningCall owner = isDemuxer(process) ? ownerOf(process) : null;
+                    if (owner != null) {
+                        owner.processes.add(process);
+                    } else {
+                        ignoredPids.add(process.pid());
+                    }
+                });
+        }
+    }
+
+    /**
+     * @return the call a new demuxer process was started for, or null if it can't be any running call's
+     */
+    private RunningCall ownerOf(final ProcessHandle process) {
+        final ProcessHandle.Info info = process.info();
+        final Instant started = info.startInstant().orElse(Instant.MAX);
+        // a second of slack, since start times might be rounded
+        final List<RunningCall> candidates = calls.stream()
+            .filter((final RunningCall call) -> Instant.ofEpochMilli(call.startMs).minusSeconds(1).isBefore(started))
+            .collect(Collectors.toList());
+        final String arguments = info.arguments().map((final String[] args) -> String.join(" ", args)).orElse(null);
+        if (arguments != null) {
+            return candidates.stream()
+                .filter((final RunningCall call) -> arguments.contains(call.inputName))
+                .min(Comparator.comparing((final RunningCall call) -> hasLiveProcess(call)))
+                .orElse(null);
+        }
+        return candidates.stream().filter((final RunningCall call) -> !hasLiveProcess(call)).findFirst().orElse(null);
+    }
+
+    private boolean isDemuxer(final ProcessHandle process) {
+        if (demuxerName == null) { return true; }
+        // if the OS won't say, it could be
+        return process.info().command().map((final String command) -> executableName(command).equals(demuxerName)).orElse(true);
+    }
+
+    private boolean hasLiveProcess(final RunningCall call) {
+        synchronized (calls) {
+            return call.processes.stream().anyMatch(ProcessHandle::isAlive);
+        }
+    }
+
+    private static String executableName(final String path) {
+        final String name = new File(path).getName().toLowerCase();
+        return name.endsWith(".exe") ? name.substring(0, name.length() - 4) : name;
+    }
+
+    /**
+     * Kills the processes that were started for a call, and everything they started
+     */
+    private void killProcesses(final String item, final RunningCall runningCall) {
+        // one last look, in case it was started since the last check
+        findProcesses();
+        final List<ProcessHandle> alive;
+        synchronized (calls) {
+            alive = runningCall.processes.stream().filter(ProcessHandle::isAlive).collect(Collectors.toList());
+        }
+        if (alive.isEmpty()) {
+            logger.error(String.format("couldn't find the demuxer process working on %s; nothing was killed, so it might still be running",
+                item));
+            return;
+        }
+        for (final ProcessHandle process: alive) {
+            // children first, so that nothing is orphaned in between
+            process.descendants().forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+            logger.info(String.format("killed demuxer process %d for %s", process.pid(), item));
+        }
+    }
+
+    private long outputBytes(final Pattern outputs) {
+        final File[] files = outputDir.listFiles((final File file) -> outputs.matcher(file.getName()).matches());
+        return files == null ? 0 : Arrays.stream(files).mapToLong(File::length).sum();
+    }
+
+    private static class RunningCall {
+        private final String inputName;
+        private final long startMs = System.currentTimeMillis();
+        private final long estimatedBytes;
+        private volatile long outputBytes;
+        /**
+         * guarded by {@link SupervisingFileScanner#calls}
+         */
+        private final List<ProcessHandle> processes = new ArrayList<>();
+
+        RunningCall(final String inputName, final long estimatedBytes) {
+            this.inputName = inputName;
+            this.estimatedBytes = estimatedBytes;
+        }
+    }
+
+    @FunctionalInterface
+    private interface ScannerCall<T> {
+        T call() throws DemuxerException, IOException;
+    }
+}
@@ -0,0 +1,12 @@
+package com.adashrod.scannerdaemon;
+
+/**
+ * JMX view of the demuxer calls the {@link SupervisingFileScanner} is watching
+ */
+public interface SupervisingFileScannerMBean {
+    /**
+     * @return each demux running right now with its approximate percent complete, output bytes per second and how long
+     * it's been running
+     */
+    String[] getRunningCalls();
+}
@@ -0,0 +1,203 @@
+package com.adashrod.scannerdaemon;
+
+import com.adashrod.mkvscanner.DemuxerException;
+import com.adashrod.mkvscanner.FileScanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * What the demuxer's title list says about each title of a BD, so that titles can be screened before any of them is
+ * demuxed: titles that play the same video as another title of the same BD, e.g. a second playlist of the main feature
+ * or one of a disc's many obfuscation playlists, and titles that aren't worth demuxing, such as menu loops and trailers.
+ * The list names the clips each title plays and its duration, e.g.
+ * <pre>
+ * 1) 00800.mpls, 00100.m2ts, 2:15:32
+ * 2) 00801.mpls, 2:15:32
+ *    [100+101+102].m2ts
+ * </pre>
+ * A title's size is the size of those clips in BDMV/STREAM. The titles of a BD are kept until the daemon exits, by the
+ * same fingerprint of the BD as {@link CachingFileScanner}'s titles.
+ */
+class TitleListing {
+    private static final Pattern TITLE_LINE = Pattern.compile("\\s*(\\d+)\\)\\s+(.*)");
+    private static final Pattern CLIPS = Pattern.compile("\\[?(\\d{1,5}(?:\\+\\d{1,5})*)]?\\.m2ts", Pattern.CASE_INSENSITIVE);
+    private static final Pattern DURATION = Pattern.compile("(\\d+):(\\d{2}):(\\d{2})");
+
+    private final FileScanner fileScanner;
+    /**
+     * BD fingerprint -> title number -> title
+     */
+    private final Map<String, Map<Integer, Title>> listings = new ConcurrentHashMap<>();
+
+    /**
+     * @param fileScanner used to list the titles of each BD
+     */
+    TitleListing(final FileScanner fileScanner) {
+        this.fileScanner = fileScanner;
+    }
+
+    /**
+     * @param bluRayDir the directory containing the BD
+     * @return title number -> what the demuxer listed for it
+     * @throws DemuxerException if the demuxer fails to list the BD
+     * @throws IOException if the demuxer can't be run
+     */
+    Map<Integer, Title> list(final File bluRayDir) throws DemuxerException, IOException {
+        final String discFingerprint = CachingFileScanner.fingerprint(bluRayDir);
+        Map<Integer, Title> titles = discFingerprint != null ? listings.get(discFingerprint) : null;
+        if (titles == null) {
+            titles = parse(fileScanner.exec(bluRayDir), new File(bluRayDir, "BDMV" + File.separator + "STREAM"));
+            if (discFingerprint != null) { listings.put(discFingerprint, titles); }
+        }
+        return titles;
+    }
+
+    /**
+     * Groups the titles that play the same clips for the same duration
+     * @param titles       a BD's titles from {@link #list(File)}
+     * @param titleNumbers the titles to consider
+     * @return lists of title numbers that are duplicates of each other, in ascending order, each with at least two titles.
+     * Titles the demuxer didn't list clips and a duration for aren't in any group.
+     */
+    static List<List<Integer>> findDuplicates(final Map<Integer, Title> titles, final Collection<Integer> titleNumbers) {
+        final Map<String, List<Integer>> groups = new HashMap<>();
+        for (final Map.Entry<Integer, Title> entry: new TreeMap<>(titles).entrySet()) {
+            final String fingerprint = entry.getValue().fingerprint();
+            if (!titleNumbers.contains(entry.getKey()) || fingerprint == null) { continue; }
+            groups.computeIfAbsent(fingerprint, (final String key) -> new ArrayList<>()).add(entry.getKey());
+        }
+        return groups.values().stream()
+            .filter((final List<Integer> group) -> group.size() > 1)
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Picks out the titles that aren't worth demuxing. Limits that a title's duration or size is unknown for don't apply
+     * to it, and titles the demuxer didn't list are never filtered.
+     * @param titles       a BD's titles from {@link #list(File)}
+     * @param titleNumbers the titles to consider, e.g. without duplicates
+     * @param minSeconds   titles shorter than this are filtered, 0 for no limit
+     * @param minBytes     titles smaller than this are filtered, 0 for no limit
+     * @param maxTitles    only this many of the longest titles are kept, 0 for no limit
+     * @return the titles to filter out
+     */
+    static Set<Integer> filter(final Map<Integer, Title> titles, final Collection<Integer> titleNumbers, final long minSeconds,
+            final long minBytes, final int maxTitles) {
+        final Set<Integer> filtered = new HashSet<>();
+        final List<Integer> kept = new ArrayList<>();
+        for (final int titleNumber: titleNumbers) {
+            final Title title = titles.get(titleNumber);
+            if (title == null) { continue; }
+            if (title.seconds >= 0 && title.seconds < minSeconds || title.bytes >= 0 && title.bytes < minBytes) {
+                filtered.add(titleNumber);
+            } else {
+                kept.add(titleNumber);
+            }
+        }
+        if (maxTitles > 0 && kept.size() > maxTitles) {
+            final Comparator<Integer> longestFirst = Comparator
+                .comparingLong((final Integer titleNumber) -> titles.get(titleNumber).seconds)
+                .thenComparingLong((final Integer titleNumber) -> titles.get(titleNumber).bytes)
+                .reversed()
+                .thenComparing(Comparator.naturalOrder());
+            kept.sort(longestFirst);
+            filtered.addAll(kept.subList(maxTitles, kept.size()));
+        }
+        return filtered;
+    }
+
+    /**
+     * @param listing   the demuxer's output for a BD dir
+     * @param streamDir the BD's BDMV/STREAM dir, to measure the clips in
+     * @return title number -> title, for each title in the listing
+     */
+    static Map<Integer, Title> parse(final String listing, final File streamDir) {
+        final Map<Integer, Title> titles = new HashMap<>();
+        final Title[] title = new Title[1];
+        // the listing's progress output and line endings are taken care of by the consumer
+        LineStreamConsumer.of(listing, 0, (final String line) -> {
+            final Matcher titleLine = TITLE_LINE.matcher(line);
+            if (titleLine.matches()) {
+                title[0] = new Title();
+                titles.put(Integer.parseInt(titleLine.group(1)), title[0]);
+                for (final String part: titleLine.group(2).split(",\\s*")) {
+                    final Matcher clips = CLIPS.matcher(part.trim());
+                    if (clips.matches()) { title[0].setClips(clips.group(1), streamDir); }
+                    final Matcher duration = DURATION.matcher(part.trim());
+                    if (duration.matches()) {
+                        title[0].seconds = 3600 * Long.parseLong(duration.group(1)) + 60 * Long.parseLong(duration.group(2)) +
+                            Long.parseLong(duration.group(3));
+                    }
+                }
+            } else if (title[0] != null && title[0].clips == null) {
+                // a title that plays several clips lists them on the next line
+                final Matcher clips = CLIPS.matcher(line.trim());
+                if (clips.matches()) { title[0].setClips(clips.group(1), streamDir); }
+            }
+        });
+        return titles;
+    }
+
+    /**
+     * One title of a BD as listed by the demuxer
+     */
+    static class Title {
+        /**
+         * the clip numbers it plays, e.g. "100+101+102", or null if not listed
+         */
+        private String clips;
+        /**
+         * -1 if not listed
+         */
+        private long seconds = -1;
+        /**
+         * the size of its clips, -1 if not known
+         */
+        private long bytes = -1;
+
+        long getSeconds() {
+            return seconds;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return what duplicates of this title have in common, or null if it can't be compared
+         */
+        String fingerprint() {
+            return clips != null && seconds >= 0 ? clips + "|" + seconds : null;
+        }
+
+        private void setClips(final String clipNumbers, final File streamDir) {
+            final StringBuilder normalized = new StringBuilder();
+            long size = 0;
+            for (final String clip: clipNumbers.split("\\+")) {
+                // e.g. 100 -> 00100
+                final String name = String.format("%05d", Integer.parseInt(clip));
+                if (normalized.length() > 0) { normalized.append('+'); }
+                normalized.append(name);
+                File file = new File(streamDir, name + ".m2ts");
+                if (!file.isFile()) { file = new File(streamDir, name + ".M2TS"); }
+                size = size >= 0 && file.isFile() ? size + file.length() : -1;
+            }
+            clips = normalized.toString();
+            bytes = size;
+        }
+    }
+}
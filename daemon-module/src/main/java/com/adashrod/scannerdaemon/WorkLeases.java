@@ -0,0 +1,215 @@
+package com.adashrod.scannerdaemon;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets daemons on several machines share one directory to scan by having each claim a work item, i.e. a container file
+ * or one title of a BD, before demuxing it. A claim is a lease file in a shared directory, created exclusively so that
+ * only one node can hold it, and holding the node's id and a token that's unique to this run of the node. The lease
+ * file's modification time is its heartbeat: it's touched every third of the lease time while the lease is held, and a
+ * lease that hasn't been touched for the whole lease time has expired and can be taken over, e.g. because its node
+ * crashed. Taking over renames the expired file out of the way first, which only one node can do, and then checks that
+ * what was renamed really was the expired lease.
+ *
+ * Expiry compares the lease file's modification time with the local clock, so the nodes' clocks have to agree to well
+ * within the lease time.
+ */
+class WorkLeases {
+    private final Logger logger = Logger.getLogger(WorkLeases.class);
+
+    private final File leaseDir;
+    private final String nodeId;
+    private final String content;
+    private final long leaseMs;
+    /**
+     * key -> lease file, for the leases this node holds
+     */
+    private final Map<String, File> held = new HashMap<>();
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor((final Runnable runnable) -> {
+        final Thread thread = new Thread(runnable, "lease-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param leaseDir where the lease files are kept; has to be shared by all the nodes
+     * @param nodeId   this node's id, unique among the nodes
+     * @param leaseMs  how long a lease lasts without a heartbeat
+     */
+    WorkLeases(final File leaseDir, final String nodeId, final long leaseMs) {
+        this.leaseDir = leaseDir;
+        this.nodeId = nodeId;
+        this.leaseMs = leaseMs;
+        content = String.format("%s\t%s\n", nodeId, UUID.randomUUID());
+        leaseDir.mkdirs();
+        heartbeat.scheduleWithFixedDelay(this::renew, leaseMs / 3, leaseMs / 3, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Claims a work item
+     * @param key names the work item, the same on every node
+     * @return the lease, which releases the claim when closed, or null if another node holds it
+     */
+    Lease acquire(final String key) {
+        final File leaseFile = leaseFile(key);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                Files.write(leaseFile.toPath(), content.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+                synchronized (held) {
+                    held.put(key, leaseFile);
+                }
+                return () -> release(key);
+            } catch (final FileAlreadyExistsException faee) {
+                if (!takeOverExpired(leaseFile)) { return null; }
+            } catch (final IOException ioe) {
+                logger.warn(String.format("Failed to create lease %s: %s", leaseFile, ioe.getMessage()));
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param key names a work item
+     * @return the id of the node holding an unexpired lease on it other than this one, or null
+     */
+    String holderElsewhere(final String key) {
+        final File leaseFile = leaseFile(key);
+        final String existing = read(leaseFile);
+        if (existing == null || existing.equals(content) || isExpired(leaseFile, existing)) { return null; }
+        return existing.split("\t", 2)[0];
+    }
+
+    /**
+     * Releases every lease this node still holds and stops the heartbeat
+     */
+    void close() {
+        heartbeat.shutdownNow();
+        final Map<String, File> leases;
+        synchronized (held) {
+            leases = new HashMap<>(held);
+        }
+        leases.keySet().forEach(this::release);
+    }
+
+    /**
+     * Moves an expired lease file out of the way
+     * @return true if the lease file was expired and is gone now
+     */
+    private boolean takeOverExpired(final File leaseFile) {
+        final String existing = read(leaseFile);
+        if (existing == null) {
+            // gone since, so it can be created now
+            return !leaseFile.exists();
+        }
+        if (!isExpired(leaseFile, existing)) { return false; }
+        final long modified = leaseFile.lastModified();
+        final File expired = new File(leaseDir, String.format("%s.%s.expired", leaseFile.getName(), UUID.randomUUID()));
+        try {
+            Files.move(leaseFile.toPath(), expired.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException ioe) {
+            // another node got to it first
+            return false;
+        }
+        // another node might have taken it over and created a new lease between the check and the rename
+        if (!existing.equals(read(expired)) || expired.lastModified() != modified) {
+            try {
+                Files.move(expired.toPath(), leaseFile.toPath());
+            } catch (final IOException ioe) {
+                logger.warn(String.format("Failed to put back lease %s: %s", leaseFile, ioe.getMessage()));
+                expired.delete();
+            }
+            return false;
+        }
+        logger.info(String.format("taking over expired lease %s from node %s", leaseFile.getName(), existing.split("\t", 2)[0]));
+        expired.delete();
+        return true;
+    }
+
+    /**
+     * A lease left behind by an earlier run of this node has expired as far as this node is concerned, since that run
+     * can't be working on it anymore
+     */
+    private boolean isExpired(final File leaseFile, final String existing) {
+        if (existing.equals(content)) { return false; }
+        return existing.startsWith(nodeId + "\t") || leaseFile.lastModified() + leaseMs < System.currentTimeMillis();
+    }
+
+    private void renew() {
+        final Map<String, File> leases;
+        synchronized (held) {
+            leases = new HashMap<>(held);
+        }
+        leases.forEach((final String key, final File leaseFile) -> {
+            if (!content.equals(read(leaseFile))) {
+                logger.warn(String.format("lost lease on %s, another node might be working on it too", key));
+                synchronized (held) {
+                    held.remove(key, leaseFile);
+                }
+                return;
+            }
+            try {
+                Files.setLastModifiedTime(leaseFile.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (final IOException ioe) {
+                logger.warn(String.format("Failed to renew lease %s: %s", leaseFile, ioe.getMessage()));
+            }
+        });
+    }
+
+    private void release(final String key) {
+        final File leaseFile;
+        synchronized (held) {
+            leaseFile = held.remove(key);
+        }
+        if (leaseFile != null && content.equals(read(leaseFile)) && !leaseFile.delete() && leaseFile.exists()) {
+            logger.warn(String.format("Failed to delete lease %s", leaseFile));
+        }
+    }
+
+    /**
+     * @return the lease file's content, or null if there's no such file. A file that's still being written reads as
+     * empty.
+     */
+    private static String read(final File leaseFile) {
+        try {
+            return new String(Files.readAllBytes(leaseFile.toPath()), StandardCharsets.UTF_8);
+        } catch (final NoSuchFileException nsfe) {
+            return null;
+        } catch (final IOException ioe) {
+            return "";
+        }
+    }
+
+    /**
+     * Lease files are named after their key, with anything that isn't safe in a file name replaced and a hash of the
+     * key added so that keys that only differ in those characters don't collide
+     */
+    private File leaseFile(final String key) {
+        return new File(leaseDir, String.format("%s-%08x.lease", key.replaceAll("[^\\w.-]", "_"), key.hashCode()));
+    }
+
+    /**
+     * A claim on a work item, released when closed
+     */
+    interface Lease extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,25 @@
+package com.adashrod.scannerdaemon.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Listing the titles of a BD dir
+ */
+@Name("com.adashrod.scannerdaemon.BluRayScan")
+@Label("BD Scan")
+@Category({"BluRayScannerDaemon", "Daemon"})
+@StackTrace(false)
+public class BluRayScanEvent extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("Titles")
+    public int titles;
+
+    @Label("Outcome")
+    public String outcome;
+}
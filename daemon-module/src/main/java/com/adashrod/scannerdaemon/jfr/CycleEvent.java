@@ -0,0 +1,33 @@
+package com.adashrod.scannerdaemon.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One pass of the daemon over the directory being scanned, or over the entries the directory watcher reported
+ */
+@Name("com.adashrod.scannerdaemon.Cycle")
+@Label("Scan Cycle")
+@Category({"BluRayScannerDaemon", "Daemon"})
+@StackTrace(false)
+public class CycleEvent extends Event {
+    @Label("Entries")
+    @Description("new, changed or unsettled entries looked at")
+    public int entries;
+
+    @Label("Watcher Triggered")
+    @Description("true if the entries came from the directory watcher rather than a sweep of the directory")
+    public boolean watcherTriggered;
+
+    @Label("Bytes Generated")
+    @DataAmount
+    public long bytesGenerated;
+
+    @Label("Outcome")
+    public String outcome;
+}
@@ -0,0 +1,34 @@
+package com.adashrod.scannerdaemon.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Demuxing a container file, such as an MKV
+ */
+@Name("com.adashrod.scannerdaemon.FileDemux")
+@Label("File Demux")
+@Category({"BluRayScannerDaemon", "Daemon"})
+@StackTrace(false)
+public class FileDemuxEvent extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("Bytes Read")
+    @DataAmount
+    public long bytesRead;
+
+    @Label("Files Generated")
+    public int filesGenerated;
+
+    @Label("Bytes Generated")
+    @DataAmount
+    public long bytesGenerated;
+
+    @Label("Outcome")
+    public String outcome;
+}
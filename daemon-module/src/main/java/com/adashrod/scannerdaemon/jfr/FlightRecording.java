@@ -0,0 +1,40 @@
+package com.adashrod.scannerdaemon.jfr;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.time.Duration;
+
+/**
+ * Starts a continuous flight recording with the JDK's low-overhead "default" settings. The daemon's events aren't in
+ * those settings, so they're recorded with their own defaults, i.e. all of them.
+ * The recording keeps a rolling window of data on disk and is written to its destination when the JVM exits; it can
+ * also be dumped at any time with "jcmd &lt;pid&gt; JFR.dump name=BluRayScannerDaemon filename=...".
+ */
+public final class FlightRecording {
+    public static final String NAME = "BluRayScannerDaemon";
+
+    private FlightRecording() {}
+
+    /**
+     * @param destination where the recording is written when the JVM exits
+     * @param maxAge      how much of the recording is kept
+     * @return the running recording
+     * @throws IOException if the default settings can't be read or the destination isn't writable
+     * @throws ParseException if the default settings can't be parsed
+     */
+    public static Recording startContinuous(final File destination, final Duration maxAge) throws IOException, ParseException {
+        destination.getAbsoluteFile().getParentFile().mkdirs();
+        final Recording recording = new Recording(Configuration.getConfiguration("default"));
+        recording.setName(NAME);
+        recording.setToDisk(true);
+        recording.setMaxAge(maxAge);
+        recording.setDumpOnExit(true);
+        recording.setDestination(destination.toPath());
+        recording.start();
+        return recording;
+    }
+}
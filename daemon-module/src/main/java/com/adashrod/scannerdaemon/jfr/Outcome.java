@@ -0,0 +1,22 @@
+package com.adashrod.scannerdaemon.jfr;
+
+/**
+ * Values of the outcome field of the daemon's flight recorder events
+ */
+public final class Outcome {
+    public static final String SUCCESS = "success";
+    /**
+     * failed, but will be tried again
+     */
+    public static final String FAILURE = "failure";
+    /**
+     * failed the max number of times
+     */
+    public static final String ABANDONED = "abandoned";
+    /**
+     * given up on after taking too long
+     */
+    public static final String TIMEOUT = "timeout";
+
+    private Outcome() {}
+}
@@ -0,0 +1,30 @@
+package com.adashrod.scannerdaemon.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One call to a plugin, not counting time spent waiting in its queue
+ */
+@Name("com.adashrod.scannerdaemon.PluginDispatch")
+@Label("Plugin Dispatch")
+@Category({"BluRayScannerDaemon", "Plugins"})
+@StackTrace(false)
+public class PluginDispatchEvent extends Event {
+    @Label("Plugin")
+    public String plugin;
+
+    @Label("Event")
+    @Description("which plugin method was called, e.g. afterScan")
+    public String event;
+
+    @Label("File")
+    public String file;
+
+    @Label("Outcome")
+    public String outcome;
+}
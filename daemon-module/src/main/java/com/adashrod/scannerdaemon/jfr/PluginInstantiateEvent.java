@@ -0,0 +1,25 @@
+package com.adashrod.scannerdaemon.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Loading, instantiating and calling onLoad for one plugin class
+ */
+@Name("com.adashrod.scannerdaemon.PluginInstantiate")
+@Label("Plugin Instantiate")
+@Category({"BluRayScannerDaemon", "Plugins"})
+@StackTrace(false)
+public class PluginInstantiateEvent extends Event {
+    @Label("Jar")
+    public String jar;
+
+    @Label("Class")
+    public String className;
+
+    @Label("Outcome")
+    public String outcome;
+}
@@ -0,0 +1,32 @@
+package com.adashrod.scannerdaemon.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Copying one jar from the plugins directory and creating or extending its class loader
+ */
+@Name("com.adashrod.scannerdaemon.PluginJarLoad")
+@Label("Plugin Jar Load")
+@Category({"BluRayScannerDaemon", "Plugins"})
+@StackTrace(false)
+public class PluginJarLoadEvent extends Event {
+    @Label("Jar")
+    public String jar;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Dependency")
+    @Description("true if the jar has no plugins and is only a dependency of plugin jars")
+    public boolean dependency;
+
+    @Label("Outcome")
+    public String outcome;
+}
@@ -0,0 +1,27 @@
+package com.adashrod.scannerdaemon.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Reading the scan record file again after it was changed outside of the daemon
+ */
+@Name("com.adashrod.scannerdaemon.ScanRecordReload")
+@Label("Scan Record Reload")
+@Category({"BluRayScannerDaemon", "Scan Record"})
+@StackTrace(false)
+public class ScanRecordReloadEvent extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("Bytes Read")
+    @DataAmount
+    public long bytesRead;
+
+    @Label("Outcome")
+    public String outcome;
+}
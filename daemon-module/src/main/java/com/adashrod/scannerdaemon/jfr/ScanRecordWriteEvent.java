@@ -0,0 +1,32 @@
+package com.adashrod.scannerdaemon.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Committing changes to the scan record journal, or compacting the journal into the record file
+ */
+@Name("com.adashrod.scannerdaemon.ScanRecordWrite")
+@Label("Scan Record Write")
+@Category({"BluRayScannerDaemon", "Scan Record"})
+@StackTrace(false)
+public class ScanRecordWriteEvent extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("Kind")
+    @Description("commit or compaction")
+    public String kind;
+
+    @Label("Bytes Written")
+    @DataAmount
+    public long bytesWritten;
+
+    @Label("Outcome")
+    public String outcome;
+}
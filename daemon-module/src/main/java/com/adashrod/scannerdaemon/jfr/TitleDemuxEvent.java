@@ -0,0 +1,33 @@
+package com.adashrod.scannerdaemon.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Demuxing one title of a BD dir
+ */
+@Name("com.adashrod.scannerdaemon.TitleDemux")
+@Label("Title Demux")
+@Category({"BluRayScannerDaemon", "Daemon"})
+@StackTrace(false)
+public class TitleDemuxEvent extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("Title")
+    public int title;
+
+    @Label("Files Generated")
+    public int filesGenerated;
+
+    @Label("Bytes Generated")
+    @DataAmount
+    public long bytesGenerated;
+
+    @Label("Outcome")
+    public String outcome;
+}
@@ -1,8 +1,8 @@
 package com.adashrod.scannerdaemon.plugins;
 
-import com.adashrod.mkvscanner.util.StreamConsumer;
 import com.adashrod.mkvscanner.util.StringLineIterator;
 import com.adashrod.scannerdaemon.Daemon;
+import com.adashrod.scannerdaemon.LineStreamConsumer;
 import com.adashrod.scannerdaemon.Plugin;
 import com.adashrod.scannerdaemon.PluginApi;
 
@@ -21,10 +21,12 @@ import java.net.URISyntaxException;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -68,22 +70,29 @@ public class ProcessKiller extends Plugin {
     private Integer findPid(final boolean isWindows) throws IOException, InterruptedException {
         if (isWindows) {
             final Process wmicProc = Runtime.getRuntime().exec(new String[]{"WMIC", "path", "win32_process", "get", "Processid,Commandline,CreationDate"});
-            final StreamConsumer stdOutConsumer = new StreamConsumer(wmicProc.getInputStream()),
-                stdErrConsumer = new StreamConsumer(wmicProc.getErrorStream());
+            // only the header and the daemon's own lines are needed out of every process on the machine
+            final List<String> lines = new ArrayList<>();
+            final LineStreamConsumer stdOutConsumer = new LineStreamConsumer(wmicProc.getInputStream(), 0, (final String line) -> {
+                    if (lines.isEmpty() || line.contains("DemuxerDaemon.jar")) { lines.add(line); }
+                }),
+                stdErrConsumer = new LineStreamConsumer(wmicProc.getErrorStream(), 0);
             stdOutConsumer.start();
             stdErrConsumer.start();
             final int ret = wmicProc.waitFor();
-            if (ret != 0) { return null; }
-            return parseWindowsProcessList(stdOutConsumer.getStreamContent());
+            stdOutConsumer.join();
+            if (ret != 0 || lines.isEmpty()) { return null; }
+            return parseWindowsProcessList(String.join("\n", lines));
         } else {
             final Process psProc = Runtime.getRuntime().exec(new String[]{"/bin/bash", "-c", "ps -efo pid,etimes,args | grep \"DemuxerDaemon.jar\""});
-            final StreamConsumer stdOutConsumer = new StreamConsumer(psProc.getInputStream()),
-                stdErrConsumer = new StreamConsumer(psProc.getErrorStream());
+            final List<String> lines = new ArrayList<>();
+            final LineStreamConsumer stdOutConsumer = new LineStreamConsumer(psProc.getInputStream(), 0, lines::add),
+                stdErrConsumer = new LineStreamConsumer(psProc.getErrorStream(), 0);
             stdOutConsumer.start();
             stdErrConsumer.start();
             final int ret = psProc.waitFor();
+            stdOutConsumer.join();
             if (ret != 0) { return null; }
-            return parseLinuxProcessList(stdOutConsumer.getStreamContent());
+            return parseLinuxProcessList(String.join("\n", lines));
         }
     }
 